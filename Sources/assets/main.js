@@ -14,91 +14,179 @@ const SCHEME_EXPRESSIONS = [
   "(display \"foxtrot golf hotel\\n\") 42"
 ];
 
-function completeEvaluation(expression, result, type) {
-  const li = document.querySelector("#scheme-content ul li:last-child");
+// The prefix of the transcript entry key of the page's own evaluation with a
+// given id.  Must match ChibiScheme.ASYNC_ENTRY_PREFIX.
+const ASYNC_ENTRY_PREFIX = "eval-";
+
+// Evaluations started with evaluateSchemeAsync, by id, awaiting results from
+// the app's message port.
+const pendingEvaluations = new Map();
+
+// Sequence numbers of the transcript entries of evaluations still running, by
+// the key that the app's patches for them carry.  Evaluations in the page and
+// in remote sessions overlap, so their output and results can't just go to
+// the newest entry.
+const transcriptEntries = new Map();
+
+window.addEventListener("message", event => {
+  if (event.data === "schmeep-bridge" && event.ports.length > 0) {
+    event.ports[0].onmessage = receiveBridgeMessage;
+  }
+});
+
+// Messages from the app are either batches of patches or evaluation results.
+function receiveBridgeMessage(event) {
+  const message = JSON.parse(event.data);
 
-  if (li) {
-    const span = li.querySelector(".value");
+  if (message.patches) {
+    applyPatches(message.patches);
+    return;
+  }
 
-    if (span) {
-      span.textContent = result;
-      li.classList.remove("queued");
-      li.classList.add(type);
+  const { id, status, result } = message;
+  const pending = pendingEvaluations.get(id);
+
+  if (pending) {
+    pendingEvaluations.delete(id);
+    if (status === "result") {
+      pending.resolve(result);
+    } else {
+      pending.reject(new Error(result));
     }
   }
 }
 
-function displayBluetoothExpression(expression) {
-  displayExpressionWithSpans(" " + expression, "bluetooth", "queued");
+function completeEvaluation(sequence, result, type) {
+  transcriptComplete(sequence, result, type);
 }
 
-function displayBluetoothResult(expression, result) {
-  completeEvaluation(expression, result, "remote");
+// Apply a batch of changes sent by the app's PatchQueue.
+function applyPatches(patches) {
+  for (const patch of patches) {
+    switch (patch.verb) {
+    case "complete":
+      completeEvaluation(transcriptEntries.get(patch.entry), patch.text,
+                         patch.type);
+      transcriptEntries.delete(patch.entry);
+      break;
+    case "expression":
+      displayPatchExpression(patch);
+      break;
+    case "output":
+      appendOutput(patch.entry, patch.text);
+      break;
+    case "replace":
+      replaceElement(patch.selector, patch.html);
+      break;
+    case "result":
+      displayResult(patch.text, patch.source, patch.type);
+      break;
+    case "stats":
+      document.querySelector("#stats-text").textContent = patch.text;
+      break;
+    case "status":
+      updateConnectionStatus(patch.type, patch.text);
+      break;
+    default:
+      console.warn("Unknown patch verb:", patch.verb);
+    }
+  }
 }
 
-window.nativeDisplayExpression = function(expression) {
-  displayExpressionWithSpans(" " + expression, "local", "local");
-};
-
-window.nativeDisplayResult = function(text, source, type) {
-  displayResult(text, source, type);
-};
+// Add a transcript entry for the expression in patch, and remember it by the
+// patch's entry key, if any, for the patches with its output and result.
+function displayPatchExpression(patch) {
+  const sequence =
+        displayExpressionWithSpans(" " + patch.text, patch.source, patch.type);
 
-window.nativeDisplayCapturedOutput = function(output) {
-  if (output && output.trim()) {
-    const li = document.querySelector("#scheme-content ul li:last-child");
+  if (patch.entry !== undefined) {
+    transcriptEntries.set(patch.entry, sequence);
+  }
+}
 
-    if (li) {
-      const outputSpan = li.querySelector(".output");
+// Append output to the transcript entry with key entry.  Output from
+// evaluations without an entry, e.g. RAX handlers and page scripts, goes to
+// the console instead.
+function appendOutput(entry, output) {
+  const sequence = transcriptEntries.get(entry);
 
-      if (outputSpan) {
-        outputSpan.textContent = output;
-      }
-    }
+  if (sequence === undefined) {
+    console.log("Scheme output:", output);
+  } else {
+    transcriptAppendOutput(sequence, output);
   }
-};
+}
 
-function displayExpressionWithSpans(expression, source, type) {
-  const schemeContent = document.getElementById("scheme-content");
-  const ul = schemeContent.querySelector("ul");
-  const li = document.createElement("li");
+function replaceElement(selector, html) {
+  const element = document.querySelector(selector);
 
-  li.classList.add("icon", source, type);
+  if (element) {
+    element.outerHTML = html;
+  } else {
+    console.error("Element not found: " + selector);
+  }
+}
 
-  const outputSpan = document.createElement("span");
+function displayExpressionWithSpans(expression, source, type) {
+  return transcriptAddExpression(expression, source, type);
+}
 
-  outputSpan.className = "output";
+function displayResult(text, source, type) {
+  transcriptAddText(text, source, type);
+}
 
-  const arrow = document.createTextNode(" ⇒ ");
-  const span = document.createElement("span");
+// Evaluate expression without blocking the page, returning a promise of its
+// result.  The promise's cancel method abandons the evaluation, interrupting
+// it if it has started.
+function evaluateSchemeAsync(expression) {
+  if (!(window.Scheme && window.Scheme.evalAsync)) {
+    return Promise.reject(new Error("Scheme bridge not available."));
+  }
+  return awaitEvaluation(window.Scheme.evalAsync(expression));
+}
 
-  span.className = "value";
-  span.textContent = "...";
+// Like evaluateSchemeAsync, but for an expression typed at the page's REPL, so
+// a huge result is cut to one page, and (more) returns the rest.
+function evaluateReplExpressionAsync(expression) {
+  if (!(window.Scheme && window.Scheme.replAsync)) {
+    return Promise.reject(new Error("Scheme bridge not available."));
+  }
+  return awaitEvaluation(window.Scheme.replAsync(expression));
+}
 
-  li.textContent = expression;
-  li.appendChild(outputSpan);
-  li.appendChild(arrow);
-  li.appendChild(span);
+// Like evaluateSchemeAsync, but call the procedure that the expression
+// handler evaluates to with the string argument.  The app evaluates handler
+// only once, and reuses the procedure.
+function applySchemeHandlerAsync(handler, argument) {
+  if (!(window.Scheme && window.Scheme.handleAsync)) {
+    return Promise.reject(new Error("Scheme bridge not available."));
+  }
+  return awaitEvaluation(window.Scheme.handleAsync(handler, argument));
+}
 
-  ul.appendChild(li);
-  schemeContent.scrollTop = schemeContent.scrollHeight;
+// Have the app compile handler before its first event.
+function prepareSchemeHandler(handler) {
+  if (window.Scheme && window.Scheme.prepareHandler) {
+    window.Scheme.prepareHandler(handler);
+  }
 }
 
-function displayResult(text, source, type) {
-  const schemeContent = document.getElementById("scheme-content");
-  const ul = schemeContent.querySelector("ul");
-  const li = document.createElement("li");
+function awaitEvaluation(id) {
+  const promise = new Promise((resolve, reject) => {
+    pendingEvaluations.set(id, { resolve, reject });
+  });
 
-  li.classList.add("icon", source, type);
-  li.textContent = text;
-  ul.appendChild(li);
-  schemeContent.scrollTop = schemeContent.scrollHeight;
+  promise.cancel = () => window.Scheme.cancel(id);
+  promise.id = id;
+  return promise;
 }
 
-function evaluateScheme(expression) {
+// Page scripts are also replayed into the contexts of Bluetooth sessions, so
+// their definitions are available to the REPL.
+function loadScheme(source) {
   try {
-    if (window.Scheme && window.Scheme.eval) {
-      return window.Scheme.eval(expression);
+    if (window.Scheme && window.Scheme.load) {
+      return window.Scheme.load(source);
     } else {
       return "Scheme bridge not available.";
     }
@@ -132,16 +220,25 @@ function generateSchemeButtons() {
 
 function runSchemeExpression(expression) {
   updateConnectionStatus("evaluating", "Evaluating: " + expression);
-  displayExpressionWithSpans(" " + expression, "local", "local");
-
-  const result = evaluateScheme(expression);
-
-  setTimeout(() => {
-    updateConnectionStatus("connected", "Ready.");
-    completeEvaluation(expression, result, "local");
-  }, 10);
 
-  return result;
+  const sequence =
+        displayExpressionWithSpans(" " + expression, "local", "local");
+  const evaluation = evaluateReplExpressionAsync(expression);
+  const entry = ASYNC_ENTRY_PREFIX + evaluation.id;
+
+  transcriptEntries.set(entry, sequence);
+  return evaluation
+    .then(result => {
+      completeEvaluation(sequence, result, "local");
+      return result;
+    }, error => {
+      completeEvaluation(sequence, error.message, "error");
+      return "Error: " + error.message;
+    })
+    .finally(() => {
+      transcriptEntries.delete(entry);
+      updateConnectionStatus("connected", "Ready.");
+    });
 }
 
 function updateConnectionStatus(statusType, message) {
@@ -149,34 +246,46 @@ function updateConnectionStatus(statusType, message) {
   document.querySelector("#connection-status-text").textContent = message;
 }
 
-function runSchemeScripts() {
+function fetchScript(src) {
+  return new Promise(resolve => {
+    const xhr = new XMLHttpRequest();
+
+    xhr.open("GET", src, true);
+    xhr.onload = function() {
+      if (xhr.status === 200 || xhr.status === 0) {
+        resolve(xhr.responseText);
+      } else {
+        displayResult("Error loading " + src + ": HTTP " + xhr.status, "local", "error");
+        resolve(null);
+      }
+    };
+    xhr.onerror = function() {
+      displayResult("Error loading " + src + ": Network error", "local", "error");
+      resolve(null);
+    };
+    xhr.send();
+  });
+}
+
+// Load the page's Scheme scripts in order, returning a promise that resolves
+// once all of them have been loaded.
+async function runSchemeScripts() {
   for (const s of document.querySelectorAll('script[type="application/x-scheme"]')) {
-    if (s.hasAttribute("src")) {
-      const src = s.getAttribute("src");
-      const xhr = new XMLHttpRequest();
-
-      xhr.open("GET", src, true);
-      xhr.onload = function() {
-        if (xhr.status === 200 || xhr.status === 0) {
-          evaluateScheme(xhr.responseText);
-        } else {
-          displayResult("Error loading " + src + ": HTTP " + xhr.status, "local", "error");
-        }
-      };
-      xhr.onerror = function() {
-        displayResult("Error loading " + src + ": Network error", "local", "error");
-      };
-      xhr.send();
-    } else {
-      evaluateScheme(s.textContent);
+    const source =
+          s.hasAttribute("src") ? await fetchScript(s.getAttribute("src")) : s.textContent;
+
+    if (source !== null) {
+      loadScheme(source);
     }
   }
 }
 
+// Handlers are installed once the scripts have loaded, since handler
+// expressions are compiled when they are installed, and may use definitions
+// from the scripts.
 function initializePage() {
   generateSchemeButtons();
-  runSchemeScripts();
-  installRAXHandlers(document.body);
+  runSchemeScripts().then(() => installRAXHandlers(document.body));
 }
 
 window.addEventListener("load", initializePage);
@@ -52,6 +52,22 @@ const EVENT_PROPERTIES = {
   "wheel": ["deltaMode", "deltaX", "deltaY", "deltaZ"]
 };
 
+// Event types that can fire many times per frame.  Their handlers use the
+// "latest" policy unless the attribute says otherwise, and their listeners are
+// passive, so they never delay scrolling.
+const HIGH_RATE_EVENTS =
+      new Set(["input", "mousemove", "scroll", "touchmove", "wheel"]);
+
+// Default delay, in milliseconds, for the "debounce" policy.
+const DEBOUNCE_DELAY = 250;
+
+// Policies that an attribute may give for its events.  See readAndExecute.
+const POLICIES = new Set(["debounce", "exclusive", "frame", "latest"]);
+
+// The most event records a "frame" handler accumulates before dropping the
+// oldest ones.
+const MAX_BATCH = 64;
+
 function eventToJSON(event) {
   const result = {};
 
@@ -75,14 +91,6 @@ function querySelectorAllInclusive(root, selector) {
           ...root.querySelectorAll(selector)];
 }
 
-function escapeForScheme(string) {
-  return string.replace(/\\/g, "\\\\")
-    .replace(/"/g, "\\\"")
-    .replace(/\n/g, "\\n")
-    .replace(/\r/g, "\\r")
-    .replace(/\t/g, "\\t");
-}
-
 function processHandlerResult(result) {
   if (!result || result === "...") return;
 
@@ -121,16 +129,67 @@ function processHandlerResult(result) {
   }
 }
 
-function readAndExecute(expression) {
-  let enabled = true;
+function reportHandlerError(error) {
+  console.warn("RAX: Handler failed:", error.message);
+}
+
+// Return an event listener that calls the Scheme handler expression.
+// Handlers are evaluated asynchronously, so the page stays responsive while
+// they run, and at most one evaluation per listener is in flight.  Policy
+// decides what happens to events that arrive meanwhile:
+//
+// - "exclusive": They are ignored.
+// - "latest": The most recent one is delivered once the evaluation finishes.
+// - "debounce": Only the last event of a burst is delivered, once no event has
+//   arrived for delay milliseconds.
+// - "frame": Events are collected, and delivered at most once per animation
+//   frame as a JSON array of event records.
+function readAndExecute(expression, policy = "exclusive", delay = DEBOUNCE_DELAY) {
+  let pending = [];
+  let running = false;
+  let timer = null;
+
+  function deliver() {
+    timer = null;
+    if (running || pending.length === 0) return;
+
+    const argument = policy === "frame"
+          ? "[" + pending.join(",") + "]"
+          : pending[pending.length - 1];
+
+    pending = [];
+    running = true;
+    applySchemeHandlerAsync(expression, argument)
+      .then(processHandlerResult, reportHandlerError)
+      .finally(() => {
+        running = false;
+        if (pending.length > 0 && timer === null) {
+          if (policy === "frame") {
+            timer = requestAnimationFrame(deliver);
+          } else {
+            deliver();
+          }
+        }
+      });
+  }
 
   return function(event) {
-    if (enabled) {
-      enabled = false;
-      const result = evaluateScheme(
-        `(${expression} "${escapeForScheme(eventToJSON(event))}")`);
-      processHandlerResult(result);
-      enabled = true;
+    if (policy === "exclusive" && running) return;
+
+    const record = eventToJSON(event);
+
+    if (policy === "frame") {
+      pending.push(record);
+      if (pending.length > MAX_BATCH) pending.shift();
+      if (timer === null && !running) timer = requestAnimationFrame(deliver);
+    } else {
+      pending = [record];
+      if (policy === "debounce") {
+        clearTimeout(timer);
+        timer = setTimeout(deliver, delay);
+      } else {
+        deliver();
+      }
     }
   };
 }
@@ -138,22 +197,49 @@ function readAndExecute(expression) {
 function submitAndExecute(element) {
   return function(event) {
     if (document.querySelectorAll(".rax-executing").length == 0) {
+      const target = event.target;
+
       event.preventDefault();
       event.stopPropagation();
-      event.target.classList.add("rax-executing");
-
-      const result = evaluateScheme(
-        `(${element["action"]} "${escapeForScheme(formToJSON(element))}")`);
-      processHandlerResult(result);
-
-      event.target.classList.remove("rax-executing");
+      target.classList.add("rax-executing");
+      applySchemeHandlerAsync(element["action"], formToJSON(element))
+        .then(processHandlerResult, reportHandlerError)
+        .finally(() => target.classList.remove("rax-executing"));
     }
   };
 }
 
 // Parse "<event-type> <scheme-expression>", returning a two-element array.
+// Throw an error if attribute doesn't have that form.
 function parseSpec(attribute) {
-  return attribute.match(/^(\S+)\s(.+)$/).slice(1);
+  const match = attribute.match(/^(\S+)\s(.+)$/);
+
+  if (!match) {
+    throw new Error("Expected an event type and an expression.");
+  }
+  return match.slice(1);
+}
+
+// Parse "<event-type>[:<policy>[=<milliseconds>]]", the first part of a spec,
+// e.g. "mousemove:frame" or "input:debounce=500".  Throw an error if spec
+// doesn't have that form or names an unknown policy.
+function parseEventSpec(spec) {
+  const match = spec.match(/^([^:]+)(?::(\w+)(?:=(\d+))?)?$/);
+
+  if (!match) {
+    throw new Error(`Malformed event spec "${spec}".`);
+  }
+
+  const [, type, policy, delay] = match;
+
+  if (policy && !POLICIES.has(policy)) {
+    throw new Error(`Unknown policy "${policy}".`);
+  }
+  return {
+    type,
+    policy: policy || (HIGH_RATE_EVENTS.has(type) ? "latest" : "exclusive"),
+    delay: delay ? parseInt(delay, 10) : DEBOUNCE_DELAY
+  };
 }
 
 // Return every attribute of element whose name starts with "data-rax", in
@@ -166,8 +252,15 @@ function raxAttributes(element) {
 function* straySpecs() {
   for (const element of document.querySelectorAll("[data-rax]")) {
     const attribute = element.getAttribute("data-rax");
-    const [type, expression] = parseSpec(attribute);
+    let spec, expression, type;
 
+    // Bad attributes were reported by installRAXHandlers.
+    try {
+      [spec, expression] = parseSpec(attribute);
+      ({ type } = parseEventSpec(spec));
+    } catch (error) {
+      continue;
+    }
     if (type == "stray") {
       yield expression;
     }
@@ -198,15 +291,22 @@ function installStrayHandler() {
 function installRAXHandlers(root) {
   for (const element of querySelectorAllInclusive(root, "[data-rax]")) {
     for (const a of raxAttributes(element)) {
-      const [type, expression] = parseSpec(a.value);
+      let spec, expression, type, policy, delay;
+
+      try {
+        [spec, expression] = parseSpec(a.value);
+        ({ type, policy, delay } = parseEventSpec(spec));
+      } catch (error) {
+        console.warn(`RAX: Ignoring ${a.name}="${a.value}":`, error.message);
+        continue;
+      }
 
       console.log("type = " + type + ", expression = " + expression); // <><>
 
-      if (type == "input") {
-        element.addEventListener(
-          type,
-          readAndExecute(expression));
-      } else if (type == "submit") {
+      if (type != "submit") {
+        prepareSchemeHandler(expression);
+      }
+      if (type == "submit") {
         element.addEventListener("submit", submitAndExecute(element));
       } else if (type == "stray") {
         installStrayHandler();
@@ -214,7 +314,10 @@ function installRAXHandlers(root) {
         // <> Handle each variant of <UIEvent> specially.  For example, for
         // keyboard events, provide a way to specify what key maps to what
         // action.
-        element.addEventListener(type, readAndExecute(expression));
+        element.addEventListener(
+          type,
+          readAndExecute(expression, policy, delay),
+          { passive: HIGH_RATE_EVENTS.has(type) });
       }
     }
   }
@@ -0,0 +1,326 @@
+// The REPL transcript in #scheme-content.
+//
+// Entries are kept in a ring buffer of compact records, so the oldest are
+// forgotten once there are more than the capacity given by the element's
+// data-capacity attribute.  Only a window of at most WINDOW_SIZE consecutive
+// entries is rendered as <li> elements.  Scrolling near either end of the
+// window renders the next PAGE_SIZE entries in that direction and removes as
+// many from the other end.
+//
+// A record is either {expression, output, value, source, type}, for an
+// evaluation, {text, source, type}, for a message, or {html}, for an element
+// that something else, e.g. a RAX handler, appended to the list.
+
+const DEFAULT_TRANSCRIPT_CAPACITY = 1000;
+const PAGE_SIZE = 25;
+const SCROLL_MARGIN = 200;
+const WINDOW_SIZE = 100;
+
+const transcript = {
+  capacity: DEFAULT_TRANSCRIPT_CAPACITY,
+  container: null,
+  first: 0,                     // Sequence number of the oldest record.
+  list: null,
+  next: 0,                      // Sequence number of the next record.
+  pinned: true,                 // Whether to follow new entries.
+  records: [],
+  scrollScheduled: false,
+  windowEnd: 0,
+  windowStart: 0
+};
+
+function transcriptRecord(sequence) {
+  return transcript.records[sequence % transcript.capacity];
+}
+
+function renderRecord(record, sequence) {
+  if (record.html !== undefined) {
+    const template = document.createElement("template");
+
+    template.innerHTML = record.html;
+
+    const element = template.content.firstElementChild;
+
+    element.dataset.entry = sequence;
+    installRAXHandlers(element);
+    return element;
+  }
+
+  const li = document.createElement("li");
+
+  li.dataset.entry = sequence;
+  li.classList.add("icon", record.source, record.type);
+  if (record.expression === undefined) {
+    li.textContent = record.text;
+    return li;
+  }
+
+  const outputSpan = document.createElement("span");
+  const valueSpan = document.createElement("span");
+
+  outputSpan.className = "output";
+  outputSpan.textContent = record.output;
+  valueSpan.className = "value";
+  valueSpan.textContent = record.value;
+  li.textContent = record.expression;
+  li.appendChild(outputSpan);
+  li.appendChild(document.createTextNode(" ⇒ "));
+  li.appendChild(valueSpan);
+  return li;
+}
+
+function renderedRow(sequence) {
+  return transcript.list.querySelector(`:scope > [data-entry="${sequence}"]`);
+}
+
+// Remove the rendered rows for sequence numbers in [start, end).
+function removeRows(start, end) {
+  for (let sequence = start; sequence < end; sequence++) {
+    const row = renderedRow(sequence);
+
+    if (row) row.remove();
+  }
+}
+
+function addRecord(record) {
+  const sequence = transcript.next++;
+
+  transcript.records[sequence % transcript.capacity] = record;
+  if (transcript.next - transcript.first > transcript.capacity) {
+    const forgotten = transcript.first++;
+
+    if (forgotten >= transcript.windowStart) {
+      const container = transcript.container;
+      const height = container.scrollHeight;
+
+      removeRows(forgotten, forgotten + 1);
+      transcript.windowStart = forgotten + 1;
+      if (!transcript.pinned) {
+        container.scrollTop -= height - container.scrollHeight;
+      }
+    }
+  }
+  transcript.windowStart = Math.max(transcript.windowStart, transcript.first);
+  transcript.windowEnd = Math.max(transcript.windowEnd, transcript.windowStart);
+
+  // If every rendered entry has been forgotten while the user was scrolled
+  // back, nothing is left to scroll, so go back to the newest entries.
+  if (transcript.windowStart === transcript.windowEnd
+      && transcript.windowEnd !== sequence) {
+    renderNewest();
+    return;
+  }
+
+  // New entries are only rendered if the window reaches the end, i.e. the
+  // user hasn't scrolled back.
+  if (transcript.windowEnd === sequence) {
+    transcript.list.appendChild(renderRecord(record, sequence));
+    transcript.windowEnd++;
+    if (transcript.windowEnd - transcript.windowStart > WINDOW_SIZE) {
+      const container = transcript.container;
+      const height = container.scrollHeight;
+
+      removeRows(transcript.windowStart, transcript.windowStart + 1);
+      transcript.windowStart++;
+      if (!transcript.pinned) {
+        container.scrollTop -= height - container.scrollHeight;
+      }
+    }
+    scheduleScrollToEnd();
+  }
+}
+
+// Render the last PAGE_SIZE entries, replacing the window, and follow new
+// entries again.
+function renderNewest() {
+  const start = Math.max(transcript.first, transcript.next - PAGE_SIZE);
+  const fragment = document.createDocumentFragment();
+
+  removeRows(transcript.windowStart, transcript.windowEnd);
+  for (let sequence = start; sequence < transcript.next; sequence++) {
+    fragment.appendChild(renderRecord(transcriptRecord(sequence), sequence));
+  }
+  transcript.list.appendChild(fragment);
+  transcript.windowStart = start;
+  transcript.windowEnd = transcript.next;
+  transcript.pinned = true;
+  scheduleScrollToEnd();
+}
+
+// Scroll to the newest entry at most once per frame, and only if the user
+// was already there.
+function scheduleScrollToEnd() {
+  if (!transcript.pinned || transcript.scrollScheduled) return;
+  transcript.scrollScheduled = true;
+  requestAnimationFrame(() => {
+    transcript.scrollScheduled = false;
+    transcript.container.scrollTop = transcript.container.scrollHeight;
+  });
+}
+
+// Render up to PAGE_SIZE older entries above the window, keeping the visible
+// rows where they are, and remove as many rows from the bottom.
+function pageInOlder() {
+  const container = transcript.container;
+  const start = Math.max(transcript.first, transcript.windowStart - PAGE_SIZE);
+
+  if (start === transcript.windowStart) return;
+
+  const fragment = document.createDocumentFragment();
+  const height = container.scrollHeight;
+
+  for (let sequence = start; sequence < transcript.windowStart; sequence++) {
+    fragment.appendChild(renderRecord(transcriptRecord(sequence), sequence));
+  }
+  transcript.list.insertBefore(fragment, transcript.list.firstChild);
+  container.scrollTop += container.scrollHeight - height;
+  transcript.windowStart = start;
+  if (transcript.windowEnd - start > WINDOW_SIZE) {
+    removeRows(start + WINDOW_SIZE, transcript.windowEnd);
+    transcript.windowEnd = start + WINDOW_SIZE;
+  }
+}
+
+// Render up to PAGE_SIZE newer entries below the window, and remove as many
+// rows from the top.
+function pageInNewer() {
+  const container = transcript.container;
+  const end = Math.min(transcript.next, transcript.windowEnd + PAGE_SIZE);
+
+  if (end === transcript.windowEnd) return;
+
+  const fragment = document.createDocumentFragment();
+
+  for (let sequence = transcript.windowEnd; sequence < end; sequence++) {
+    fragment.appendChild(renderRecord(transcriptRecord(sequence), sequence));
+  }
+  transcript.list.appendChild(fragment);
+  transcript.windowEnd = end;
+  if (end - transcript.windowStart > WINDOW_SIZE) {
+    const height = container.scrollHeight;
+
+    removeRows(transcript.windowStart, end - WINDOW_SIZE);
+    transcript.windowStart = end - WINDOW_SIZE;
+    container.scrollTop -= height - container.scrollHeight;
+  }
+}
+
+function handleTranscriptScroll() {
+  const container = transcript.container;
+  const bottom = container.scrollHeight - container.clientHeight;
+
+  if (container.scrollTop < SCROLL_MARGIN) {
+    pageInOlder();
+  } else if (container.scrollTop > bottom - SCROLL_MARGIN) {
+    pageInNewer();
+  }
+  transcript.pinned = transcript.windowEnd === transcript.next
+    && container.scrollTop >= bottom - 1;
+}
+
+// Return the evaluation record with the given sequence number, or null if it
+// has been forgotten or isn't an evaluation.
+function evaluationRecord(sequence) {
+  if (!(sequence >= transcript.first && sequence < transcript.next)) {
+    return null;
+  }
+
+  const record = transcriptRecord(sequence);
+
+  return record.expression === undefined ? null : record;
+}
+
+// Add an entry for expression, awaiting its value, and return its sequence
+// number, which transcriptAppendOutput and transcriptComplete take.
+function transcriptAddExpression(expression, source, type) {
+  const sequence = transcript.next;
+
+  addRecord({ expression, output: "", value: "...", source, type });
+  return sequence;
+}
+
+function transcriptAddText(text, source, type) {
+  addRecord({ text, source, type });
+}
+
+// Output arrives in chunks while evaluation runs, so append each one to the
+// entry with the given sequence number.
+function transcriptAppendOutput(sequence, output) {
+  const record = evaluationRecord(sequence);
+
+  if (!record) return;
+  record.output += output;
+
+  const row = renderedRow(sequence);
+
+  if (row) row.querySelector(".output").textContent = record.output;
+}
+
+// Record value as the result of the entry with the given sequence number.
+function transcriptComplete(sequence, value, type) {
+  const record = evaluationRecord(sequence);
+
+  if (!record) return;
+  record.value = value;
+  record.type = type;
+
+  const row = renderedRow(sequence);
+
+  if (row) {
+    row.querySelector(".value").textContent = value;
+    row.classList.remove("queued");
+    row.classList.add(type);
+  }
+}
+
+function resetTranscript(list) {
+  transcript.first = transcript.next;
+  transcript.list = list;
+  transcript.pinned = true;
+  transcript.records = [];
+  transcript.windowEnd = transcript.next;
+  transcript.windowStart = transcript.next;
+  transcriptObserver.observe(list, { childList: true });
+  adoptRows(list.children);
+}
+
+// Record elements that something else added to the list.
+function adoptRows(rows) {
+  for (const row of [...rows]) {
+    if (row.dataset.entry === undefined) {
+      row.remove();
+      addRecord({ html: row.outerHTML });
+    }
+  }
+}
+
+// RAX handlers may append rows to the list, or replace it entirely, as
+// eg-clear does.
+const transcriptObserver = new MutationObserver(mutations => {
+  for (const mutation of mutations) {
+    for (const node of mutation.addedNodes) {
+      if (node.nodeType !== Node.ELEMENT_NODE) continue;
+      if (mutation.target === transcript.container && node.tagName === "UL") {
+        transcriptObserver.disconnect();
+        transcriptObserver.observe(transcript.container, { childList: true });
+        resetTranscript(node);
+      } else if (mutation.target === transcript.list) {
+        adoptRows([node]);
+      }
+    }
+  }
+});
+
+function initializeTranscript() {
+  const container = document.getElementById("scheme-content");
+  const capacity = parseInt(container.dataset.capacity, 10);
+
+  transcript.capacity = capacity > 0 ? capacity : DEFAULT_TRANSCRIPT_CAPACITY;
+  transcript.container = container;
+  container.addEventListener("scroll", handleTranscriptScroll,
+                             { passive: true });
+  transcriptObserver.observe(container, { childList: true });
+  resetTranscript(container.querySelector("ul"));
+}
+
+document.addEventListener("DOMContentLoaded", initializeTranscript);
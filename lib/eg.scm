@@ -12,35 +12,38 @@
 (define-syntax eg
   (syntax-rules ()
     ((eg expression ...)
-     (lambda (event-json)
-       (let* ((expr-list '(expression ...))
-              (port (open-output-string))
-	      (result
-               (parameterize ((current-output-port port))
-                 (call-with-current-continuation
-                  (lambda (k)
-                    (with-exception-handler k
-                      (lambda ()
-                        (eval (cons 'begin expr-list)
-			      (interaction-environment))))))))
-	      (output (get-output-string port))
-              (expr-sxml `(code ,(call-with-output-string
-				  (lambda (p)
-				    (for-each (lambda (x) (write x p))
-					      expr-list)))))
-              (result-sxml (if (exception? result)
-                               `(span (@ (class "error"))
-				      ,(format-exception result ""))
-                               `(code ,(call-with-output-string
-					(lambda (p) (write result p))))))
-              (sxml (if (string=? output "")
-                        `(li ,expr-sxml " ⇒ " ,result-sxml)
-                        `(li ,expr-sxml
-			     (br)
-			     (span (@ (class "output")) ,output)
-			     " ⇒ "
-			     ,result-sxml))))
-         (rax-response "#scheme-content ul" "append" (sxml->xml sxml)))))))
+     ;; The expressions are still evaluated with eval on each event, since
+     ;; examples include definitions and imports, which must happen at top
+     ;; level.  Everything else is done once, when the handler is compiled.
+     (let* ((expr-list '(expression ...))
+	    (form (cons 'begin expr-list))
+	    (expr-sxml `(code ,(call-with-output-string
+				(lambda (p)
+				  (for-each (lambda (x) (write x p))
+					    expr-list))))))
+       (lambda (event-json)
+	 (let* ((port (open-output-string))
+		(result
+		 (parameterize ((current-output-port port))
+		   (call-with-current-continuation
+		    (lambda (k)
+		      (with-exception-handler k
+			(lambda ()
+			  (eval form (interaction-environment))))))))
+		(output (get-output-string port))
+		(result-sxml (if (exception? result)
+				 `(span (@ (class "error"))
+					,(format-exception result ""))
+				 `(code ,(call-with-output-string
+					  (lambda (p) (write result p))))))
+		(sxml (if (string=? output "")
+			  `(li ,expr-sxml " ⇒ " ,result-sxml)
+			  `(li ,expr-sxml
+			       (br)
+			       (span (@ (class "output")) ,output)
+			       " ⇒ "
+			       ,result-sxml))))
+	   (rax-response "#scheme-content ul" "append" (sxml->xml sxml))))))))
 
 (define (eg-clear event-json)
   (rax-response "#scheme-content ul" "replace" "<ul></ul>"))
\ No newline at end of file
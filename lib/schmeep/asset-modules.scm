@@ -0,0 +1,103 @@
+;; Load library definitions straight from the APK's assets instead of from
+;; files extracted to the module path.  This is evaluated in the meta
+;; environment, where main_jni.c has defined %asset-source, which returns the
+;; contents of an asset under lib/, or #f, and %meta-env.
+
+(define (asset-read-all source fold-case?)
+  (let ((port (open-input-string
+	       (if fold-case? (string-append "#!fold-case\n" source) source))))
+    (let lp ((forms '()))
+      (let ((form (read port)))
+	(if (eof-object? form)
+	    (reverse forms)
+	    (lp (cons form forms)))))))
+
+(define (asset-module-file name)
+  (let lp ((parts name) (path ""))
+    (if (null? parts)
+	(string-append path ".sld")
+	(lp (cdr parts)
+	    (string-append path
+			   (if (equal? path "") "" "/")
+			   (if (number? (car parts))
+			       (number->string (car parts))
+			       (symbol->string (car parts))))))))
+
+(define (asset-directory file)
+  (let lp ((i (string-length file)))
+    (cond ((zero? i) "")
+	  ((eqv? #\/ (string-ref file (- i 1))) (substring file 0 i))
+	  (else (lp (- i 1))))))
+
+;; Return the sources of the assets named by files, relative to directory, or
+;; #f if any of them isn't an asset.
+(define (asset-sources files directory)
+  (let ((sources
+	 (map (lambda (file) (%asset-source (string-append directory file)))
+	      files)))
+    (and (not (memq #f sources)) sources)))
+
+;; Inline the includes of each of declarations.  An include-library-declarations
+;; declaration is replaced by the declarations in the files it names, which are
+;; spliced into the list, since they belong to the enclosing library.
+(define (asset-inline-all declarations directory)
+  (apply append
+	 (map (lambda (d)
+		(let ((sources
+		       (and (pair? d)
+			    (eq? (car d) 'include-library-declarations)
+			    (asset-sources (cdr d) directory))))
+		  (if sources
+		      (asset-inline-all
+		       (apply append
+			      (map (lambda (source) (asset-read-all source #f))
+				   sources))
+		       directory)
+		      (list (asset-inline-includes d directory)))))
+	      declarations)))
+
+;; Replace include declarations with the forms of the files they name, so
+;; that those are read from the assets, too.  Declarations naming a file that
+;; isn't an asset are left for eval-module to find on the module path, which
+;; is also where shared objects are found.
+(define (asset-inline-includes declaration directory)
+  (define (inline-all declarations)
+    (asset-inline-all declarations directory))
+  (if (not (pair? declaration))
+      declaration
+      (case (car declaration)
+	((define-library)
+	 (cons (car declaration)
+	       (cons (cadr declaration) (inline-all (cddr declaration)))))
+	((cond-expand)
+	 (cons (car declaration)
+	       (map (lambda (clause)
+		      (if (pair? clause)
+			  (cons (car clause) (inline-all (cdr clause)))
+			  clause))
+		    (cdr declaration))))
+	((include include-ci)
+	 (let ((sources (asset-sources (cdr declaration) directory)))
+	   (if (not sources)
+	       declaration
+	       (cons 'begin
+		     (apply append
+			    (map (lambda (source)
+				   (asset-read-all
+				    source
+				    (eq? (car declaration) 'include-ci)))
+				 sources))))))
+	(else declaration))))
+
+(define (asset-module-loader original)
+  (lambda (name)
+    (let* ((file (asset-module-file name))
+	   (source (%asset-source file)))
+      (if source
+	  (let ((directory (asset-directory file)))
+	    (for-each (lambda (form)
+			(eval (asset-inline-includes form directory) %meta-env))
+		      (asset-read-all source #f)))
+	  (original name)))))
+
+(set! load-module-definition (asset-module-loader load-module-definition))
\ No newline at end of file
@@ -1,39 +1,258 @@
+#include <android/asset_manager.h>
+#include <android/asset_manager_jni.h>
 #include <android/log.h>
 #include <ctype.h>
 #include <execinfo.h>
 #include <jni.h>
+#include <limits.h>
 #include <pthread.h>
 #include <signal.h>
 #include <stdarg.h>
 #include <stdbool.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/stat.h>
+#include <time.h>
 #include <unistd.h>
+#include <zlib.h>
 
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "schmeep", __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, "schmeep", __VA_ARGS__)
 
+// Marks the primitives that a heap image refers to.  The library is built
+// with -fvisibility=hidden, but sexp_load_image must find them with dlsym.
+#define IMAGE_EXPORT __attribute__((visibility("default")))
+
+// Evaluation output is forwarded to Bluetooth once this many bytes have
+// accumulated, or once this many milliseconds have passed since the last
+// forwarded chunk, whichever comes first.
+#define STREAM_BUFFER_SIZE 4096
+#define STREAM_FLUSH_MS 100
+
+// Each session (the UI and each Bluetooth client) evaluates in a context of
+// its own.  This is the most that may exist at once.
+#define MAX_CONTEXTS 16
+
+// The most event handler procedures that compileHandler will record in one
+// context.
+#define MAX_HANDLERS 256
+
+// Sizes of the heap each context starts with and may grow to.
+#define HEAP_SIZE (1024 * 1024)
+#define HEAP_MAX_SIZE (8 * 1024 * 1024)
+
 #include "chibi/eval.h"
+#include "chibi/gc_heap.h"
 #include "chibi/sexp.h"
 
-static jobject bluetooth_instance = NULL;
+static AAssetManager *asset_manager = NULL;
+static jobject asset_manager_instance = NULL;
 static jobject main_activity_instance = NULL;
 static JavaVM *cached_jvm = NULL;
-sexp scheme_ctx = NULL;
-sexp scheme_env = NULL;
-static pthread_mutex_t scheme_mutex = PTHREAD_MUTEX_INITIALIZER;
-
-char *format_exception(sexp exception_obj, sexp ctx, const char *prefix,
-		       const char *original_expression);
 
-void bluetooth_output_write(const char *data, size_t length);
+// An independent Scheme context with its own heap and standard environment.
+// Chibi heaps may not be shared between threads, but separate contexts may
+// evaluate on separate threads at the same time.  Everything here is
+// protected by mutex.  During evaluation, output_sink is the local reference to
+// the Java object that receives the context's output, or NULL.  Output is
+// handed to Java in output_array, a global reference to a byte array that is
+// reused for every chunk.  Handler n, as returned by compileHandler, is
+// handlers[n - 1].
+struct context {
+  sexp ctx;
+  sexp env;
+  pthread_mutex_t mutex;
+  jobject output_sink;
+  jbyteArray output_array;
+  sexp handlers[MAX_HANDLERS];
+  int handler_count;
+  sexp stream_flush_procedure;
+  sexp stream_port;
+  char stream_buffer[STREAM_BUFFER_SIZE];
+  size_t stream_length;
+  struct timespec stream_last_flush;
+};
+
+static struct context *contexts[MAX_CONTEXTS];
+static pthread_mutex_t contexts_mutex = PTHREAD_MUTEX_INITIALIZER;
+static bool scheme_initialized = false;
+
+// A snapshot of a context's heap taken just after its standard environment
+// and libraries were loaded, which later contexts load instead of repeating
+// that work.  ChibiScheme keeps it next to the extracted libraries, named
+// after a hash of their sources and of Chibi's native libraries, so an image
+// is never loaded with code it wasn't made from.  A companion file holds its
+// CRC-32 and size.  Protected by image_mutex.
+static char heap_image_path[PATH_MAX];
+static bool heap_image_saved = false;
+static pthread_mutex_t image_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+// Libraries that programs often import.  They are loaded into the meta
+// environment before the heap image is saved, so importing one of them later
+// only binds its exports, instead of reading and expanding its source again.
+// Nothing with state that should differ between runs belongs here, e.g.
+// (srfi 27), whose default random source would be frozen into the image, so
+// every run would produce the same random numbers.
+static const char *preloaded_libraries[] = {"(chibi json)", "(chibi sxml)",
+					    NULL};
+
+// The context evaluating on this thread, for bluetooth_port_writer.
+static _Thread_local struct context *current_context = NULL;
+
+// Counters and latency histograms for the whole app, which (schmeep stats),
+// Stats.report, and Stats.summary read.  Java records its own figures with
+// Stats.record, so the order of enum stat_id must match the constants in
+// Stats.java.  Stats before STAT_FIRST_COUNTER are latencies, in
+// microseconds, and the rest are counters.  A latency's bucket i counts the
+// samples of less than 2^i microseconds that didn't fit in bucket i - 1.
+// Protected by stats_mutex.
+#define STATS_BUCKETS 32
+
+enum stat_id {
+  STAT_QUEUE_WAIT,
+  STAT_LOCK_WAIT,
+  STAT_READ,
+  STAT_COMPILE,
+  STAT_EVAL,
+  STAT_SERIALIZE,
+  STAT_BYTES_IN,
+  STAT_BYTES_OUT,
+  STAT_FRAMES_IN,
+  STAT_FRAMES_OUT,
+  STAT_FLUSHES,
+  STAT_CONNECTIONS,
+  STAT_RECONNECTS,
+  STAT_COUNT
+};
+
+#define STAT_FIRST_COUNTER STAT_BYTES_IN
+
+static const char *stat_names[STAT_COUNT] = {
+    "queue-wait", "lock-wait", "read", "compile", "eval", "serialize",
+    "bytes-in", "bytes-out", "frames-in", "frames-out", "flushes",
+    "connections", "reconnects"};
+
+struct stat_record {
+  long count;
+  long total;
+  long max;
+  long buckets[STATS_BUCKETS];
+};
+
+static struct stat_record stats[STAT_COUNT];
+static pthread_mutex_t stats_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+char *format_exception(sexp exception_obj, sexp ctx, sexp env,
+		       const char *prefix, const char *original_expression);
+IMAGE_EXPORT sexp sexp_schmeep_stats(sexp ctx, sexp self, sexp_sint_t n);
+
+void bluetooth_output_write(struct context *context, const char *data,
+			    size_t length);
 sexp bluetooth_port_writer(sexp ctx, sexp self, sexp_sint_t n, sexp str,
 			   sexp start, sexp end);
 sexp sexp_set_element_outer_html(sexp ctx, sexp self, sexp_sint_t n,
 				 sexp selector, sexp html);
 
+static long microseconds_now() {
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return now.tv_sec * 1000000L + now.tv_nsec / 1000;
+}
+
+// Add value, a latency or an increment, to stat id.
+static void record_stat(int id, long value) {
+  if (id < 0 || id >= STAT_COUNT || value < 0) {
+    return;
+  }
+  pthread_mutex_lock(&stats_mutex);
+
+  struct stat_record *record = &stats[id];
+
+  record->count++;
+  record->total += value;
+  if (value > record->max) {
+    record->max = value;
+  }
+  if (id < STAT_FIRST_COUNTER) {
+    int bucket = 0;
+
+    while (bucket < STATS_BUCKETS - 1 && value >= (1L << bucket)) {
+      bucket++;
+    }
+    record->buckets[bucket]++;
+  }
+  pthread_mutex_unlock(&stats_mutex);
+}
+
+static void snapshot_stats(struct stat_record *copy) {
+  pthread_mutex_lock(&stats_mutex);
+  memcpy(copy, stats, sizeof(stats));
+  pthread_mutex_unlock(&stats_mutex);
+}
+
+// Return an upper bound on the given percentile of record's latencies.
+static long stat_percentile(const struct stat_record *record,
+			    int percentile) {
+  long rank = (record->count * percentile + 99) / 100;
+  long seen = 0;
+
+  for (int i = 0; i < STATS_BUCKETS; i++) {
+    seen += record->buckets[i];
+    if (seen > 0 && seen >= rank) {
+      return (1L << i) < record->max ? (1L << i) : record->max;
+    }
+  }
+  return record->max;
+}
+
+// Write microseconds to buffer in the most readable unit.
+static void format_microseconds(char *buffer, size_t size, long microseconds) {
+  if (microseconds < 1000) {
+    snprintf(buffer, size, "%ld µs", microseconds);
+  } else if (microseconds < 1000000) {
+    snprintf(buffer, size, "%.1f ms", microseconds / 1000.0);
+  } else {
+    snprintf(buffer, size, "%.1f s", microseconds / 1000000.0);
+  }
+}
+
+// Return the app's stats as an alist from name to value.  A latency's value
+// is an alist of its count and its total, max, p50, and p99 microseconds.  A
+// counter's value is its total.
+IMAGE_EXPORT sexp sexp_schmeep_stats(sexp ctx, sexp self, sexp_sint_t n) {
+  static const char *fields[] = {"count", "total", "max", "p50", "p99"};
+  struct stat_record copy[STAT_COUNT];
+
+  snapshot_stats(copy);
+
+  sexp_gc_var3(result, entry, values);
+  sexp_gc_preserve3(ctx, result, entry, values);
+  result = SEXP_NULL;
+  for (int i = STAT_COUNT - 1; i >= 0; i--) {
+    if (i < STAT_FIRST_COUNTER) {
+      long numbers[] = {copy[i].count, copy[i].total, copy[i].max,
+			stat_percentile(&copy[i], 50),
+			stat_percentile(&copy[i], 99)};
+
+      values = SEXP_NULL;
+      for (int j = 4; j >= 0; j--) {
+	entry = sexp_cons(ctx, sexp_intern(ctx, fields[j], -1),
+			  sexp_make_fixnum(numbers[j]));
+	values = sexp_cons(ctx, entry, values);
+      }
+    } else {
+      values = sexp_make_fixnum(copy[i].total);
+    }
+    entry = sexp_cons(ctx, sexp_intern(ctx, stat_names[i], -1), values);
+    result = sexp_cons(ctx, entry, result);
+  }
+  sexp_gc_release3(ctx);
+  return result;
+}
+
 static bool attach_jni_env(JNIEnv **env, bool *detach_needed,
 			   const char *caller) {
   if (!cached_jvm) {
@@ -63,10 +282,30 @@ static void maybe_detach_jni_env(bool detach_needed) {
   }
 }
 
-void bluetooth_output_write(const char *data, size_t length) {
-  LOGI("bluetooth_output_write called: bluetooth_instance=%p cached_jvm=%p "
-       "length=%zu",
-       bluetooth_instance, cached_jvm, length);
+// Return context's output array, creating it if necessary, or NULL.
+static jbyteArray output_array(JNIEnv *env, struct context *context) {
+  if (!context->output_array) {
+    jbyteArray array = (*env)->NewByteArray(env, STREAM_BUFFER_SIZE);
+
+    if (!array) {
+      LOGE("output_array: Failed to allocate output array.");
+      return NULL;
+    }
+    context->output_array = (*env)->NewGlobalRef(env, array);
+    (*env)->DeleteLocalRef(env, array);
+  }
+  return context->output_array;
+}
+
+// Pass length bytes of UTF-8 output to context's output sink and to the app.
+// The bytes are copied once, into context's output array, and both receivers
+// must be done with them before returning.
+void bluetooth_output_write(struct context *context, const char *data,
+			    size_t length) {
+  jobject sink = context->output_sink;
+
+  LOGI("bluetooth_output_write called: sink=%p cached_jvm=%p length=%zu", sink,
+       cached_jvm, length);
 
   JNIEnv *env;
   bool detach_needed;
@@ -75,35 +314,37 @@ void bluetooth_output_write(const char *data, size_t length) {
     return;
   }
 
-  if (bluetooth_instance) {
-    jclass bluetooth_class = (*env)->GetObjectClass(env, bluetooth_instance);
+  jbyteArray array = output_array(env, context);
+
+  if (!array) {
+    maybe_detach_jni_env(detach_needed);
+    return;
+  }
+  (*env)->SetByteArrayRegion(env, array, 0, length, (const jbyte *)data);
+
+  if (sink) {
+    jclass sink_class = (*env)->GetObjectClass(env, sink);
     jmethodID streamPartialOutput = (*env)->GetMethodID(
-	env, bluetooth_class, "streamPartialOutput", "(Ljava/lang/String;)V");
+	env, sink_class, "streamPartialOutput", "([BI)V");
 
     if (streamPartialOutput) {
-      jstring jdata = (*env)->NewStringUTF(env, data);
-
-      (*env)->CallVoidMethod(env, bluetooth_instance, streamPartialOutput,
-			     jdata);
-      (*env)->DeleteLocalRef(env, jdata);
+      (*env)->CallVoidMethod(env, sink, streamPartialOutput, array,
+			     (jint)length);
     } else {
       LOGE("bluetooth_output_write: Method streamPartialOutput not found.");
     }
 
-    (*env)->DeleteLocalRef(env, bluetooth_class);
+    (*env)->DeleteLocalRef(env, sink_class);
   }
 
   if (main_activity_instance) {
     jclass activity_class = (*env)->GetObjectClass(env, main_activity_instance);
     jmethodID displayCapturedOutput = (*env)->GetMethodID(
-	env, activity_class, "displayCapturedOutput", "(Ljava/lang/String;)V");
+	env, activity_class, "displayCapturedOutput", "([BI)V");
 
     if (displayCapturedOutput) {
-      jstring jdata = (*env)->NewStringUTF(env, data);
-
       (*env)->CallVoidMethod(env, main_activity_instance, displayCapturedOutput,
-			     jdata);
-      (*env)->DeleteLocalRef(env, jdata);
+			     array, (jint)length);
     } else {
       LOGE("bluetooth_output_write: Method displayCapturedOutput not found.");
     }
@@ -114,36 +355,248 @@ void bluetooth_output_write(const char *data, size_t length) {
   maybe_detach_jni_env(detach_needed);
 }
 
+// Return the length of the longest prefix of the length bytes at data that
+// doesn't end in the middle of a UTF-8 sequence.
+static size_t utf8_complete_length(const char *data, size_t length) {
+  for (size_t back = 1; back <= 4 && back <= length; back++) {
+    unsigned char c = data[length - back];
+
+    if ((c & 0xc0) == 0x80) {
+      continue;
+    }
+
+    size_t needed = c < 0x80 ? 1 : c >= 0xf0 ? 4 : c >= 0xe0 ? 3 : 2;
+
+    return back >= needed ? length : length - back;
+  }
+  return length;
+}
+
+// Forward context's buffered output.  Unless final is true, a UTF-8 sequence
+// cut off at the end of the buffer is kept for the next flush, so that every
+// chunk can be decoded on its own.
+static void flush_stream_buffer(struct context *context, bool final) {
+  size_t length =
+      final ? context->stream_length
+	    : utf8_complete_length(context->stream_buffer,
+				   context->stream_length);
+
+  if (length > 0) {
+    bluetooth_output_write(context, context->stream_buffer, length);
+    memmove(context->stream_buffer, context->stream_buffer + length,
+	    context->stream_length - length);
+    context->stream_length -= length;
+  }
+  clock_gettime(CLOCK_MONOTONIC, &context->stream_last_flush);
+}
+
+static long milliseconds_since(const struct timespec *then) {
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return (now.tv_sec - then->tv_sec) * 1000 +
+	 (now.tv_nsec - then->tv_nsec) / 1000000;
+}
+
+// Writer for the custom output port that is current-output-port during
+// evaluation.  Output accumulates in the evaluating context's stream_buffer,
+// which is bounded, and is forwarded to its output sink in chunks as
+// evaluation proceeds.
 sexp bluetooth_port_writer(sexp ctx, sexp self, sexp_sint_t n, sexp str,
 			   sexp start, sexp end) {
+  struct context *context = current_context;
   sexp_sint_t start_idx = sexp_unbox_fixnum(start);
   sexp_sint_t end_idx = sexp_unbox_fixnum(end);
   sexp_sint_t length = end_idx - start_idx;
 
-  LOGI("bluetooth_port_writer called: start=%ld end=%ld length=%ld", start_idx,
-       end_idx, length);
-
   if (length <= 0) {
     return sexp_make_fixnum(0);
   }
+  if (!context) {
+    LOGE("bluetooth_port_writer: No context is evaluating on this thread.");
+    return sexp_make_fixnum(length);
+  }
 
-  const char *str_data = sexp_string_data(str);
-  char *buffer = malloc(length + 1);
+  const char *str_data = sexp_string_data(str) + start_idx;
+  sexp_sint_t remaining = length;
 
-  if (!buffer) {
-    LOGE("bluetooth_port_writer: malloc failed.");
-    return sexp_make_fixnum(0);
+  while (remaining > 0) {
+    size_t chunk = STREAM_BUFFER_SIZE - context->stream_length;
+
+    if ((sexp_sint_t)chunk > remaining) {
+      chunk = remaining;
+    }
+    memcpy(context->stream_buffer + context->stream_length, str_data, chunk);
+    context->stream_length += chunk;
+    str_data += chunk;
+    remaining -= chunk;
+    if (context->stream_length == STREAM_BUFFER_SIZE) {
+      flush_stream_buffer(context, false);
+    }
   }
 
-  memcpy(buffer, str_data + start_idx, length);
-  buffer[length] = '\0';
+  if (milliseconds_since(&context->stream_last_flush) >= STREAM_FLUSH_MS) {
+    flush_stream_buffer(context, false);
+  }
+  return sexp_make_fixnum(length);
+}
 
-  LOGI("bluetooth_port_writer: Calling bluetooth_output_write with \"%s\"",
-       buffer);
-  bluetooth_output_write(buffer, length);
+// Push whatever the Scheme port has buffered through bluetooth_port_writer.
+static void flush_stream_port(struct context *context) {
+  sexp ctx = context->ctx;
 
-  free(buffer);
-  return sexp_make_fixnum(length);
+  if (context->stream_port && context->stream_flush_procedure) {
+    sexp_gc_var1(args);
+    sexp_gc_preserve1(ctx, args);
+    args = sexp_list1(ctx, context->stream_port);
+    sexp_apply(ctx, context->stream_flush_procedure, args);
+    sexp_gc_release1(ctx);
+  }
+}
+
+static int init_stream_port(struct context *context) {
+  sexp ctx = context->ctx;
+  sexp env = context->env;
+
+  sexp_define_foreign(ctx, env, "%bluetooth-port-write", 3,
+		      bluetooth_port_writer);
+
+  sexp import_result = sexp_eval_string(
+      ctx, "(import (only (chibi io) make-custom-output-port))", -1, env);
+
+  if (!import_result || sexp_exceptionp(import_result)) {
+    return -1;
+  }
+
+  sexp port = sexp_eval_string(
+      ctx, "(make-custom-output-port %bluetooth-port-write)", -1, env);
+
+  if (!port || sexp_exceptionp(port)) {
+    return -1;
+  }
+
+  sexp flush = sexp_env_ref(
+      ctx, env, sexp_intern(ctx, "flush-output-port", -1), SEXP_FALSE);
+
+  sexp_preserve_object(ctx, port);
+  context->stream_port = port;
+  if (flush && sexp_procedurep(flush)) {
+    sexp_preserve_object(ctx, flush);
+    context->stream_flush_procedure = flush;
+  }
+  return 0;
+}
+
+// Return the contents of the asset lib/path as a string, or #f if there is no
+// such asset.  Assets under lib/ are stored uncompressed, so the buffer is
+// mapped directly from the APK.
+IMAGE_EXPORT sexp sexp_asset_source(sexp ctx, sexp self, sexp_sint_t n,
+				    sexp path) {
+  if (!sexp_stringp(path)) {
+    return sexp_type_exception(ctx, self, SEXP_STRING, path);
+  }
+  if (!asset_manager) {
+    return SEXP_FALSE;
+  }
+
+  char name[PATH_MAX];
+
+  if (snprintf(name, sizeof(name), "lib/%s", sexp_string_data(path)) >=
+      (int)sizeof(name)) {
+    return SEXP_FALSE;
+  }
+
+  AAsset *asset = AAssetManager_open(asset_manager, name, AASSET_MODE_BUFFER);
+
+  if (!asset) {
+    return SEXP_FALSE;
+  }
+
+  const void *buffer = AAsset_getBuffer(asset);
+  sexp result = buffer ? sexp_c_string(ctx, buffer, AAsset_getLength(asset))
+		       : SEXP_FALSE;
+
+  AAsset_close(asset);
+  return result;
+}
+
+// Evaluate every form in source, which is a Scheme string, in env.  Return
+// the first exception raised, or the value of the last form.
+static sexp eval_source(sexp ctx, sexp env, sexp source) {
+  sexp_gc_var3(input_port, form, result);
+  sexp_gc_preserve3(ctx, input_port, form, result);
+  input_port = sexp_open_input_string(ctx, source);
+  result = SEXP_VOID;
+  if (sexp_exceptionp(input_port)) {
+    result = input_port;
+  } else {
+    while ((form = sexp_read(ctx, input_port)) != SEXP_EOF) {
+      if (sexp_exceptionp(form)) {
+	result = form;
+	break;
+      }
+      result = sexp_eval(ctx, form, env);
+      if (sexp_exceptionp(result)) {
+	break;
+      }
+    }
+    sexp_close_port(ctx, input_port);
+  }
+  sexp_gc_release3(ctx);
+  return result;
+}
+
+// Define the primitives that asset-modules.scm and (schmeep stats) use in the
+// meta environment.  This happens before the heap image is saved, and the
+// compiled module loader refers to these opcodes, so the image holds them.
+// That is safe because sexp_define_foreign records each function's C name,
+// and sexp_load_image uses it to look the function up again with dlsym, which
+// is why they are marked IMAGE_EXPORT.  Contexts loaded from an image call
+// this again only to refresh the bindings.
+static int define_meta_primitives(sexp ctx) {
+  sexp meta_env = sexp_global(ctx, SEXP_G_META_ENV);
+
+  if (!meta_env || !sexp_envp(meta_env)) {
+    return -1;
+  }
+  sexp_define_foreign(ctx, meta_env, "%asset-source", 1, sexp_asset_source);
+  sexp_define_foreign(ctx, meta_env, "%schmeep-stats", 0, sexp_schmeep_stats);
+  sexp_env_define(ctx, meta_env, sexp_intern(ctx, "%meta-env", -1), meta_env);
+  return 0;
+}
+
+// Make the meta environment's module loader read library definitions from
+// the APK.  Only init-7.scm and meta-7.scm, which sexp_load_standard_env
+// needs before this can run, and symbolic links to shared objects are on the
+// module path.
+static int init_asset_modules(struct context *context) {
+  sexp ctx = context->ctx;
+  sexp meta_env = sexp_global(ctx, SEXP_G_META_ENV);
+
+  if (define_meta_primitives(ctx) != 0) {
+    return -1;
+  }
+
+  sexp_gc_var2(path, source);
+  sexp_gc_preserve2(ctx, path, source);
+  path = sexp_c_string(ctx, "schmeep/asset-modules.scm", -1);
+  source = sexp_asset_source(ctx, NULL, 1, path);
+
+  int status = -1;
+
+  if (sexp_stringp(source)) {
+    sexp result = eval_source(ctx, meta_env, source);
+
+    if (sexp_exceptionp(result)) {
+      LOGE("init_asset_modules: %s",
+	   format_exception(result, ctx, context->env, "asset-modules.scm",
+			    NULL));
+    } else {
+      status = 0;
+    }
+  }
+  sexp_gc_release2(ctx);
+  return status;
 }
 
 sexp sexp_set_element_outer_html(sexp ctx, sexp self, sexp_sint_t n,
@@ -216,13 +669,35 @@ sexp sexp_log_info(sexp ctx, sexp self, sexp_sint_t n, sexp message) {
   return SEXP_VOID;
 }
 
+static void destroy_context(struct context *context) {
+  pthread_mutex_lock(&context->mutex);
+  if (context->ctx) {
+    sexp_destroy_context(context->ctx);
+  }
+  if (context->output_array) {
+    JNIEnv *env;
+    bool detach_needed;
+
+    if (attach_jni_env(&env, &detach_needed, "destroy_context")) {
+      (*env)->DeleteGlobalRef(env, context->output_array);
+      maybe_detach_jni_env(detach_needed);
+    }
+  }
+  pthread_mutex_unlock(&context->mutex);
+  pthread_mutex_destroy(&context->mutex);
+  free(context);
+}
+
 void cleanup_scheme() {
-  if (scheme_ctx) {
-    LOGI("cleanup_scheme: Destroying Scheme context.");
-    sexp_destroy_context(scheme_ctx);
-    scheme_ctx = NULL;
-    scheme_env = NULL;
+  pthread_mutex_lock(&contexts_mutex);
+  for (int i = 0; i < MAX_CONTEXTS; i++) {
+    if (contexts[i]) {
+      LOGI("cleanup_scheme: Destroying Scheme context %d.", i);
+      destroy_context(contexts[i]);
+      contexts[i] = NULL;
+    }
   }
+  pthread_mutex_unlock(&contexts_mutex);
 
   if (cached_jvm) {
     JNIEnv *env;
@@ -230,10 +705,6 @@ void cleanup_scheme() {
 	(*cached_jvm)->GetEnv(cached_jvm, (void **)&env, JNI_VERSION_1_6);
 
     if (attach_status == JNI_OK) {
-      if (bluetooth_instance) {
-	(*env)->DeleteGlobalRef(env, bluetooth_instance);
-	bluetooth_instance = NULL;
-      }
       if (main_activity_instance) {
 	(*env)->DeleteGlobalRef(env, main_activity_instance);
 	main_activity_instance = NULL;
@@ -246,10 +717,12 @@ void crash_handler(int sig, siginfo_t *info, void *context) {
   LOGE("JNI: CRASH DETECTED - Signal %d at address %p", sig, info->si_addr);
   LOGE("JNI: Crash occurred in PID %d, TID %d", getpid(), gettid());
 
-  if (scheme_ctx) {
-    LOGE("JNI: Scheme context available at crash: %p", scheme_ctx);
+  if (current_context && current_context->ctx) {
+    sexp ctx = current_context->ctx;
+
+    LOGE("JNI: Scheme context available at crash: %p", ctx);
 
-    sexp stack = sexp_global(scheme_ctx, SEXP_STACK);
+    sexp stack = sexp_global(ctx, SEXP_STACK);
 
     if (stack) {
       LOGE("JNI: Scheme stack at crash: %p", stack);
@@ -260,7 +733,7 @@ void crash_handler(int sig, siginfo_t *info, void *context) {
       }
     }
   } else {
-    LOGE("JNI: No Scheme context available at crash");
+    LOGE("JNI: No Scheme context evaluating on crashing thread");
   }
 
   void *buffer[16];
@@ -283,69 +756,342 @@ void crash_handler(int sig, siginfo_t *info, void *context) {
   raise(sig);
 }
 
-int init_scheme() {
-  LOGI("init_scheme: Starting Scheme initialization.");
-  sexp_scheme_init();
-  scheme_ctx =
-      sexp_make_eval_context(NULL, NULL, NULL, 1024 * 1024, 8 * 1024 * 1024);
-  if (!scheme_ctx) {
-    LOGE("init_scheme: Failed to create Scheme context.");
+// Compute the CRC-32 and size of the file at path.  Return 0 on success.
+static int checksum_file(const char *path, unsigned long *crc, long *size) {
+  FILE *file = fopen(path, "rb");
+
+  if (!file) {
     return -1;
   }
+
+  unsigned char buffer[65536];
+  size_t count;
+  uLong sum = crc32(0L, Z_NULL, 0);
+
+  *size = 0;
+  while ((count = fread(buffer, 1, sizeof(buffer), file)) > 0) {
+    sum = crc32(sum, buffer, count);
+    *size += count;
+  }
+
+  int status = ferror(file) ? -1 : 0;
+
+  fclose(file);
+  *crc = sum;
+  return status;
+}
+
+static void checksum_path(char *result, size_t size, const char *image) {
+  snprintf(result, size, "%s.crc", image);
+}
+
+// Must be called with image_mutex held.
+static void remove_heap_image() {
+  char checksum[PATH_MAX];
+
+  checksum_path(checksum, sizeof(checksum), heap_image_path);
+  unlink(heap_image_path);
+  unlink(checksum);
+}
+
+// Return a context loaded from the heap image, or NULL if there is no image
+// or it can't be used, in which case it is removed so that a fresh one is
+// saved.
+static sexp load_heap_image() {
+  sexp ctx = NULL;
+
+  pthread_mutex_lock(&image_mutex);
+  if (!heap_image_path[0] || access(heap_image_path, R_OK) != 0) {
+    pthread_mutex_unlock(&image_mutex);
+    return NULL;
+  }
+
+  char checksum[PATH_MAX];
+  unsigned long expected_crc = 0, actual_crc = 0;
+  long expected_size = -1, actual_size = 0;
+  FILE *file;
+
+  checksum_path(checksum, sizeof(checksum), heap_image_path);
+  file = fopen(checksum, "r");
+  if (file) {
+    if (fscanf(file, "%lx %ld", &expected_crc, &expected_size) != 2) {
+      expected_size = -1;
+    }
+    fclose(file);
+  }
+  if (checksum_file(heap_image_path, &actual_crc, &actual_size) != 0 ||
+      actual_crc != expected_crc || actual_size != expected_size) {
+    LOGE("load_heap_image: Checksum mismatch in %s.  Removing it.",
+	 heap_image_path);
+    remove_heap_image();
+  } else {
+    ctx = sexp_load_image(heap_image_path, 0, HEAP_SIZE, HEAP_MAX_SIZE);
+    if (!ctx || !sexp_contextp(ctx)) {
+      LOGE("load_heap_image: Failed to load %s: %s.  Removing it.",
+	   heap_image_path, sexp_load_image_err());
+      remove_heap_image();
+      ctx = NULL;
+    }
+  }
+  pthread_mutex_unlock(&image_mutex);
+  return ctx;
+}
+
+// Save ctx as the heap image, unless this process has already tried.  The
+// image and its checksum are written under temporary names and renamed, so a
+// crash leaves either no image or one whose checksum doesn't match.
+static void save_heap_image(sexp ctx) {
+  pthread_mutex_lock(&image_mutex);
+  if (!heap_image_path[0] || heap_image_saved) {
+    pthread_mutex_unlock(&image_mutex);
+    return;
+  }
+  heap_image_saved = true;
+
+  char checksum[PATH_MAX], temporary[PATH_MAX], temporary_checksum[PATH_MAX];
+  unsigned long crc;
+  long size;
+
+  checksum_path(checksum, sizeof(checksum), heap_image_path);
+  snprintf(temporary, sizeof(temporary), "%s.tmp", heap_image_path);
+  snprintf(temporary_checksum, sizeof(temporary_checksum), "%s.tmp",
+	   checksum);
+
+  sexp result = sexp_save_image(ctx, temporary);
+
+  if (result != SEXP_TRUE) {
+    LOGE("save_heap_image: Failed to save heap image.");
+  } else if (checksum_file(temporary, &crc, &size) != 0) {
+    LOGE("save_heap_image: Failed to read back heap image.");
+  } else {
+    FILE *file = fopen(temporary_checksum, "w");
+
+    if (file && fprintf(file, "%08lx %ld\n", crc, size) > 0 &&
+	fclose(file) == 0) {
+      file = NULL;
+      if (rename(temporary, heap_image_path) == 0 &&
+	  rename(temporary_checksum, checksum) == 0) {
+	LOGI("save_heap_image: Saved %ld-byte heap image to %s.", size,
+	     heap_image_path);
+	pthread_mutex_unlock(&image_mutex);
+	return;
+      }
+    }
+    if (file) {
+      fclose(file);
+    }
+    LOGE("save_heap_image: Failed to write heap image checksum.");
+  }
+  unlink(temporary);
+  unlink(temporary_checksum);
+  remove_heap_image();
+  pthread_mutex_unlock(&image_mutex);
+}
+
+// Load each of preloaded_libraries as a module, without importing it.  A
+// library that can't be loaded is left to be loaded when it is imported.
+static void preload_libraries(sexp ctx) {
+  sexp meta_env = sexp_global(ctx, SEXP_G_META_ENV);
+  char expression[128];
+
+  for (int i = 0; preloaded_libraries[i]; i++) {
+    snprintf(expression, sizeof(expression), "(load-module '%s)",
+	     preloaded_libraries[i]);
+
+    sexp result = sexp_eval_string(ctx, expression, -1, meta_env);
+
+    if (!result || sexp_exceptionp(result) || result == SEXP_FALSE) {
+      LOGE("preload_libraries: Failed to load %s.", preloaded_libraries[i]);
+    }
+  }
+}
+
+// Load the standard environment and the libraries every context imports.
+// This is the work that a heap image saves.
+static int load_environment(struct context *context) {
+  sexp ctx = sexp_make_eval_context(NULL, NULL, NULL, HEAP_SIZE,
+				    HEAP_MAX_SIZE);
+
+  if (!ctx) {
+    LOGE("load_environment: Failed to create Scheme context.");
+    return -1;
+  }
+  context->ctx = ctx;
+
   sexp module_path_string =
-      sexp_c_string(scheme_ctx, "/data/data/com.speechcode.schmeep/lib", -1);
+      sexp_c_string(ctx, "/data/data/com.speechcode.schmeep/lib", -1);
+
+  sexp_global(ctx, SEXP_G_MODULE_PATH) = sexp_list1(ctx, module_path_string);
 
-  sexp_global(scheme_ctx, SEXP_G_MODULE_PATH) =
-      sexp_list1(scheme_ctx, module_path_string);
+  // Each context loads its own copy of the standard environment, since its
+  // objects live in the context's heap.
+  sexp_load_standard_env(ctx, NULL, SEXP_SEVEN);
 
-  sexp_load_standard_env(scheme_ctx, NULL, SEXP_SEVEN);
-  scheme_env = sexp_context_env(scheme_ctx);
+  sexp env = sexp_context_env(ctx);
 
-  sexp_load_standard_ports(scheme_ctx, scheme_env, stdin, stdout, stderr, 1);
+  context->env = env;
+  if (init_asset_modules(context) == 0) {
+    LOGI("load_environment: Loading libraries from assets.");
+  } else {
+    LOGE("load_environment: Failed to load libraries from assets.  "
+	 "Using only the module path.");
+  }
+  sexp_load_standard_ports(ctx, env, stdin, stdout, stderr, 1);
 
   const char *set_path_expr =
       "(current-module-path (cons \"/data/data/com.speechcode.schmeep/lib\" "
       "(current-module-path)))";
 
-  sexp path_result =
-      sexp_eval_string(scheme_ctx, set_path_expr, -1, scheme_env);
+  sexp path_result = sexp_eval_string(ctx, set_path_expr, -1, env);
 
   if (path_result && !sexp_exceptionp(path_result)) {
-    LOGI("init_scheme: Library search path configured.");
+    LOGI("load_environment: Library search path configured.");
   } else {
-    LOGE("init_scheme: Failed to set library search path.");
+    LOGE("load_environment: Failed to set library search path.");
   }
 
-  sexp_define_foreign(scheme_ctx, scheme_env, "set-element-outer-html!", 2,
-		      sexp_set_element_outer_html);
-  LOGI("init_scheme: Registered set-element-outer-html! native function.");
+  sexp import_result = sexp_eval_string(
+      ctx, "(import (schmeep exception-formatter))", -1, env);
 
-  sexp_define_foreign(scheme_ctx, scheme_env, "log-info", 1, sexp_log_info);
-  LOGI("init_scheme: Registered log-info native function.");
+  if (import_result && !sexp_exceptionp(import_result)) {
+    LOGI("load_environment: Exception formatter imported.");
+  } else {
+    LOGE("load_environment: Failed to import exception formatter.");
+    return 0;
+  }
 
-  sexp import_result = sexp_eval_string(
-      scheme_ctx, "(import (schmeep exception-formatter))", -1, scheme_env);
+  import_result = sexp_eval_string(ctx, "(import (schmeep printer))", -1, env);
 
   if (import_result && !sexp_exceptionp(import_result)) {
-    LOGI("init_scheme: Exception formatter imported.");
+    LOGI("load_environment: Bounded printer imported.");
   } else {
-    LOGE("init_scheme: Failed to import exception formatter.");
+    LOGE("load_environment: Failed to import bounded printer.");
+    return 0;
+  }
+
+  preload_libraries(ctx);
+  save_heap_image(ctx);
+  return 0;
+}
+
+// Use the heap image if there is a usable one.  Return -1 otherwise.
+static int load_environment_from_image(struct context *context) {
+  sexp ctx = load_heap_image();
+
+  if (!ctx) {
+    return -1;
   }
 
-  LOGI("init_scheme: Scheme context initialized successfully.");
+  sexp env = sexp_context_env(ctx);
+  sexp formatter = sexp_env_ref(
+      ctx, env, sexp_intern(ctx, "format-exception", -1), SEXP_FALSE);
+
+  if (!formatter || !sexp_procedurep(formatter) ||
+      define_meta_primitives(ctx) != 0) {
+    LOGE("load_environment_from_image: Heap image is incomplete.  "
+	 "Removing it.");
+    sexp_destroy_context(ctx);
+    pthread_mutex_lock(&image_mutex);
+    remove_heap_image();
+    pthread_mutex_unlock(&image_mutex);
+    return -1;
+  }
+  context->ctx = ctx;
+  context->env = env;
+  sexp_load_standard_ports(ctx, env, stdin, stdout, stderr, 1);
+  LOGI("load_environment_from_image: Loaded heap image.");
   return 0;
 }
 
-char *format_exception(sexp exception_obj, sexp ctx, const char *prefix,
-		       const char *original_expression) {
+static int init_context(struct context *context) {
+  LOGI("init_context: Starting Scheme context initialization.");
+  if (load_environment_from_image(context) != 0 &&
+      load_environment(context) != 0) {
+    return -1;
+  }
+
+  sexp ctx = context->ctx;
+  sexp env = context->env;
+
+  // Native functions are defined after the heap image is saved, since an
+  // image can't hold pointers into this library.
+  sexp_define_foreign(ctx, env, "set-element-outer-html!", 2,
+		      sexp_set_element_outer_html);
+  LOGI("init_context: Registered set-element-outer-html! native function.");
+
+  sexp_define_foreign(ctx, env, "log-info", 1, sexp_log_info);
+  LOGI("init_context: Registered log-info native function.");
+
+  if (init_stream_port(context) == 0) {
+    LOGI("init_context: Streaming output port created.");
+  } else {
+    LOGE("init_context: Failed to create streaming output port.");
+  }
+
+  LOGI("init_context: Scheme context initialized successfully.");
+  return 0;
+}
+
+// Create a context and record it in the first free slot of contexts, or
+// return NULL if there is none or initialization fails.
+static struct context *create_context() {
+  pthread_mutex_lock(&contexts_mutex);
+
+  int slot = -1;
+
+  for (int i = 0; i < MAX_CONTEXTS; i++) {
+    if (!contexts[i]) {
+      slot = i;
+      break;
+    }
+  }
+  if (slot == -1) {
+    pthread_mutex_unlock(&contexts_mutex);
+    LOGE("create_context: All %d contexts are in use.", MAX_CONTEXTS);
+    return NULL;
+  }
+
+  struct context *context = calloc(1, sizeof(struct context));
+
+  if (!context) {
+    pthread_mutex_unlock(&contexts_mutex);
+    LOGE("create_context: Out of memory.");
+    return NULL;
+  }
+  pthread_mutex_init(&context->mutex, NULL);
+
+  // Reserve the slot, then initialize without holding contexts_mutex so that
+  // other sessions can create contexts in parallel.
+  contexts[slot] = context;
+  pthread_mutex_unlock(&contexts_mutex);
+
+  pthread_mutex_lock(&context->mutex);
+
+  int status = init_context(context);
+
+  pthread_mutex_unlock(&context->mutex);
+
+  if (status != 0) {
+    pthread_mutex_lock(&contexts_mutex);
+    contexts[slot] = NULL;
+    pthread_mutex_unlock(&contexts_mutex);
+    destroy_context(context);
+    return NULL;
+  }
+  LOGI("create_context: Created context %d at %p.", slot, context);
+  return context;
+}
+
+char *format_exception(sexp exception_obj, sexp ctx, sexp env,
+		       const char *prefix, const char *original_expression) {
   static _Thread_local char error_message[2048];
 
-  if (!ctx || !scheme_env) {
+  if (!ctx || !env) {
     return "Error: Scheme not available.";
   }
 
   sexp formatter_symbol = sexp_intern(ctx, "format-exception", -1);
-  sexp formatter = sexp_env_ref(ctx, scheme_env, formatter_symbol, SEXP_FALSE);
+  sexp formatter = sexp_env_ref(ctx, env, formatter_symbol, SEXP_FALSE);
 
   if (formatter && sexp_procedurep(formatter)) {
     sexp prefix_str = sexp_c_string(ctx, prefix, -1);
@@ -366,7 +1112,7 @@ char *format_exception(sexp exception_obj, sexp ctx, const char *prefix,
 }
 
 JNIEXPORT void JNICALL Java_com_speechcode_schmeep_ChibiScheme_initializeScheme(
-    JNIEnv *env, jobject object) {
+    JNIEnv *env, jobject object, jobject assets, jstring image_path) {
   LOGI("JNI: initializeScheme called.");
 
   struct sigaction sa;
@@ -387,30 +1133,69 @@ JNIEXPORT void JNICALL Java_com_speechcode_schmeep_ChibiScheme_initializeScheme(
     LOGE("JNI: Failed to install SIGABRT signal handler");
   }
 
-  pthread_mutex_lock(&scheme_mutex);
+  pthread_mutex_lock(&contexts_mutex);
 
-  if (scheme_ctx == NULL) {
+  if (!scheme_initialized) {
     LOGI("JNI: Initializing Chibi Scheme.");
-
-    if (init_scheme() == 0) {
-      LOGI("JNI: Chibi Scheme initialized successfully.");
-    } else {
-      LOGE("JNI: Failed to initialize Chibi Scheme.");
+    asset_manager_instance = (*env)->NewGlobalRef(env, assets);
+    asset_manager = AAssetManager_fromJava(env, asset_manager_instance);
+    if (image_path) {
+      const char *path = (*env)->GetStringUTFChars(env, image_path, NULL);
+
+      if (path) {
+	snprintf(heap_image_path, sizeof(heap_image_path), "%s", path);
+	(*env)->ReleaseStringUTFChars(env, image_path, path);
+      }
     }
+    sexp_scheme_init();
+    scheme_initialized = true;
   } else {
     LOGI("JNI: Chibi Scheme already initialized.");
   }
 
-  pthread_mutex_unlock(&scheme_mutex);
+  pthread_mutex_unlock(&contexts_mutex);
+}
+
+JNIEXPORT jlong JNICALL Java_com_speechcode_schmeep_ChibiScheme_createContext(
+    JNIEnv *env, jobject object) {
+  LOGI("JNI: createContext called.");
+  return (jlong)(intptr_t)create_context();
 }
 
+JNIEXPORT void JNICALL Java_com_speechcode_schmeep_ChibiScheme_destroyContext(
+    JNIEnv *env, jobject object, jlong handle) {
+  struct context *context = (struct context *)(intptr_t)handle;
+
+  LOGI("JNI: destroyContext called for %p.", context);
+  if (!context) {
+    return;
+  }
+
+  pthread_mutex_lock(&contexts_mutex);
+  for (int i = 0; i < MAX_CONTEXTS; i++) {
+    if (contexts[i] == context) {
+      contexts[i] = NULL;
+      pthread_mutex_unlock(&contexts_mutex);
+      destroy_context(context);
+      return;
+    }
+  }
+  pthread_mutex_unlock(&contexts_mutex);
+  LOGE("JNI: destroyContext: Unknown context %p.", context);
+}
+
+// Deliberately doesn't take the context's mutex, which is held for the whole
+// of the evaluation being interrupted.
 JNIEXPORT jstring JNICALL
 Java_com_speechcode_schmeep_ChibiScheme_interruptScheme(JNIEnv *env,
-							jobject object) {
+							jobject object,
+							jlong handle) {
+  struct context *context = (struct context *)(intptr_t)handle;
+
   LOGI("JNI: interruptScheme called.");
 
-  if (scheme_ctx != NULL) {
-    sexp child_ctx = sexp_context_child(scheme_ctx);
+  if (context && context->ctx != NULL) {
+    sexp child_ctx = sexp_context_child(context->ctx);
     if (child_ctx != NULL) {
       sexp_context_interruptp(child_ctx) = 1;
     }
@@ -418,83 +1203,125 @@ Java_com_speechcode_schmeep_ChibiScheme_interruptScheme(JNIEnv *env,
   return (*env)->NewStringUTF(env, "Interrupted.");
 }
 
+// Return the total size of the heap chunks of the context for handle.  Like
+// interruptScheme, this doesn't take the context's mutex, since the watchdog
+// calls it during evaluation.  Chunks are only ever added to the end of the
+// list, so at worst the total is slightly out of date.
+JNIEXPORT jlong JNICALL Java_com_speechcode_schmeep_ChibiScheme_heapSize(
+    JNIEnv *env, jobject object, jlong handle) {
+  struct context *context = (struct context *)(intptr_t)handle;
+  jlong size = 0;
+
+  if (context && context->ctx != NULL) {
+    for (sexp_heap heap = sexp_context_heap(context->ctx); heap;
+	 heap = heap->next) {
+      size += heap->size;
+    }
+  }
+  return size;
+}
+
 JNIEXPORT void JNICALL Java_com_speechcode_schmeep_ChibiScheme_cleanupScheme(
     JNIEnv *env, jobject object) {
   LOGI("JNI: cleanupScheme called.");
   cleanup_scheme();
 }
 
-JNIEXPORT jstring JNICALL
-Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
-						       jobject object,
-						       jstring expression) {
-  LOGI("JNI: evaluateScheme called.");
+// Look up the context for handle and lock it.  Return NULL, and set *error to
+// a message for Java, if there is no usable context.
+static struct context *lock_context(JNIEnv *env, jlong handle,
+				    jstring *error) {
+  struct context *context = (struct context *)(intptr_t)handle;
 
-  pthread_mutex_lock(&scheme_mutex);
-  if (scheme_ctx == NULL || scheme_env == NULL) {
-    LOGE("JNI: Scheme not initialized - ctx=%p env=%p", scheme_ctx, scheme_env);
-    pthread_mutex_unlock(&scheme_mutex);
-    return (*env)->NewStringUTF(env, "Error: Scheme not initialized.");
+  if (!context) {
+    LOGE("JNI: No Scheme context.");
+    *error = (*env)->NewStringUTF(env, "Error: Scheme not initialized.");
+    return NULL;
   }
 
-  const char *expr_cstr = (*env)->GetStringUTFChars(env, expression, NULL);
+  long start = microseconds_now();
 
-  if (!expr_cstr) {
-    LOGE("JNI: Failed to convert expression string.");
-    pthread_mutex_unlock(&scheme_mutex);
-    return (*env)->NewStringUTF(env, "Error: Invalid expression string.");
+  pthread_mutex_lock(&context->mutex);
+  record_stat(STAT_LOCK_WAIT, microseconds_now() - start);
+  if (context->ctx == NULL || context->env == NULL) {
+    LOGE("JNI: Scheme not initialized - ctx=%p env=%p", context->ctx,
+	 context->env);
+    pthread_mutex_unlock(&context->mutex);
+    *error = (*env)->NewStringUTF(env, "Error: Scheme not initialized.");
+    return NULL;
   }
+  return context;
+}
 
-  sexp old_output_port = sexp_current_output_port(scheme_ctx);
-  sexp output_port = sexp_open_output_string(scheme_ctx);
-  sexp param_symbol = sexp_global(scheme_ctx, SEXP_G_CUR_OUT_SYMBOL);
+// Send the output of the evaluation that is about to start in context to
+// sink.  Return the output port to restore afterward.
+static sexp begin_evaluation(struct context *context, jobject sink) {
+  sexp ctx = context->ctx;
+  sexp old_output_port = sexp_current_output_port(ctx);
+  sexp output_port =
+      context->stream_port ? context->stream_port : old_output_port;
+
+  sexp_set_parameter(ctx, context->env, sexp_global(ctx, SEXP_G_CUR_OUT_SYMBOL),
+		     output_port);
+  context->output_sink = sink;
+  current_context = context;
+  clock_gettime(CLOCK_MONOTONIC, &context->stream_last_flush);
+  return old_output_port;
+}
 
-  sexp_set_parameter(scheme_ctx, scheme_env, param_symbol, output_port);
-  sexp_gc_var3(input_port, expr_obj, result);
-  sexp_gc_preserve3(scheme_ctx, input_port, expr_obj, result);
+static void end_evaluation(struct context *context, sexp old_output_port) {
+  sexp ctx = context->ctx;
 
-  sexp expr_string = sexp_c_string(scheme_ctx, expr_cstr, -1);
+  flush_stream_buffer(context, true);
+  current_context = NULL;
+  context->output_sink = NULL;
+  sexp_set_parameter(ctx, context->env, sexp_global(ctx, SEXP_G_CUR_OUT_SYMBOL),
+		     old_output_port);
+}
 
-  input_port = sexp_open_input_string(scheme_ctx, expr_string);
-  result = SEXP_VOID;
-  if (sexp_exceptionp(input_port)) {
-    result = input_port;
-  } else {
-    while ((expr_obj = sexp_read(scheme_ctx, input_port)) != SEXP_EOF) {
-      if (sexp_exceptionp(expr_obj)) {
-	result = expr_obj;
-	break;
-      }
-      result = sexp_eval(scheme_ctx, expr_obj, scheme_env);
-      if (sexp_exceptionp(result)) {
-	break;
-      }
-    }
-    sexp_close_port(scheme_ctx, input_port);
+// Return the first page of result's printed representation as a Java string,
+// using print-bounded from (schmeep printer), or NULL if that isn't available.
+// The page is converted while it is still preserved, since nothing else
+// refers to it.
+static jstring print_bounded(JNIEnv *env, struct context *context,
+			     sexp result) {
+  sexp ctx = context->ctx;
+  sexp printer = sexp_env_ref(
+      ctx, context->env, sexp_intern(ctx, "print-bounded", -1), SEXP_FALSE);
+
+  if (!printer || !sexp_procedurep(printer)) {
+    return NULL;
   }
-  sexp_gc_release3(scheme_ctx);
 
-  sexp output_str = sexp_get_output_string(scheme_ctx, output_port);
-  const char *captured_output = NULL;
+  jstring java_page = NULL;
 
-  if (output_str && sexp_stringp(output_str)) {
-    captured_output = sexp_string_data(output_str);
-
-    size_t length = captured_output ? strlen(captured_output) : 0;
-
-    if (captured_output && length > 0) {
-      LOGI("JNI: Sending captured output to Bluetooth");
-      bluetooth_output_write(captured_output, length);
-    }
+  sexp_gc_var2(args, page);
+  sexp_gc_preserve2(ctx, args, page);
+  args = sexp_list1(ctx, result);
+  page = sexp_apply(ctx, printer, args);
+  if (!page || sexp_exceptionp(page) || !sexp_stringp(page) ||
+      !sexp_string_data(page)) {
+    LOGE("JNI: print-bounded failed.  Printing whole result.");
+  } else {
+    LOGI("JNI: Scheme result: %s", sexp_string_data(page));
+    java_page = (*env)->NewStringUTF(env, sexp_string_data(page));
   }
+  sexp_gc_release2(ctx);
+  return java_page;
+}
 
-  sexp_set_parameter(scheme_ctx, scheme_env, param_symbol, old_output_port);
-
-  (*env)->ReleaseStringUTFChars(env, expression, expr_cstr);
+// Convert result, the outcome of evaluating expression in context, to the
+// string returned to Java: a string's contents, an error message, or the
+// written representation of anything else.  If paged, which is only true for
+// expressions typed at a REPL, huge results are cut to one page, and (more)
+// returns the rest.
+static jstring result_to_java(JNIEnv *env, struct context *context,
+			      sexp result, const char *expression, bool paged) {
+  sexp scheme_ctx = context->ctx;
+  sexp scheme_env = context->env;
 
   if (!result) {
     LOGE("JNI: Failed to evaluate Scheme expression.");
-    pthread_mutex_unlock(&scheme_mutex);
     return (*env)->NewStringUTF(env, "Error: Unknown evaluation error.");
   }
 
@@ -502,17 +1329,21 @@ Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
     if (result == sexp_global(scheme_ctx, SEXP_G_INTERRUPT_ERROR)) {
       LOGI("JNI: Interrupt error detected - evaluation was interrupted "
 	   "successfully.");
-      pthread_mutex_unlock(&scheme_mutex);
       return (*env)->NewStringUTF(env, "Interrupted.");
     }
 
-    char *error_msg = format_exception(result, scheme_ctx, "JNI", expr_cstr);
+    char *error_msg = format_exception(result, scheme_ctx, scheme_env, "JNI", expression);
 
     LOGE("JNI: %s", error_msg);
-    pthread_mutex_unlock(&scheme_mutex);
     return (*env)->NewStringUTF(env, error_msg);
   }
 
+  jstring page = paged ? print_bounded(env, context, result) : NULL;
+
+  if (page) {
+    return page;
+  }
+
   const char *result_cstr;
 
   if (sexp_stringp(result)) {
@@ -520,7 +1351,6 @@ Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
 
     if (!result_cstr) {
       LOGE("JNI: sexp_string_data returned NULL for string result.");
-      pthread_mutex_unlock(&scheme_mutex);
       return (*env)->NewStringUTF(env, "Error: String data extraction failed.");
     }
 
@@ -532,7 +1362,6 @@ Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
       LOGE(
 	  "JNI: Failed to convert result to string - result_str=%p exception=%d.",
 	  result_str, result_str ? sexp_exceptionp(result_str) : -1);
-      pthread_mutex_unlock(&scheme_mutex);
       return (*env)->NewStringUTF(env, "Error: Result conversion error.");
     }
 
@@ -540,7 +1369,6 @@ Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
 
     if (!result_cstr) {
       LOGE("JNI: sexp_string_data returned NULL for valid result_str.");
-      pthread_mutex_unlock(&scheme_mutex);
       return (*env)->NewStringUTF(env, "Error: String data extraction failed.");
     }
 
@@ -548,77 +1376,227 @@ Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
   }
 
   LOGI("JNI: Using scheme_ctx=%p scheme_env=%p", scheme_ctx, scheme_env);
-
-  jstring java_result = (*env)->NewStringUTF(env, result_cstr);
-
-  pthread_mutex_unlock(&scheme_mutex);
-  return java_result;
+  return (*env)->NewStringUTF(env, result_cstr);
 }
 
-JNIEXPORT jboolean JNICALL
-Java_com_speechcode_schmeep_ChibiScheme_isCompleteExpression(
-    JNIEnv *env, jobject object, jstring expression) {
-  LOGI("JNI: isCompleteExpression called.");
+JNIEXPORT jstring JNICALL
+Java_com_speechcode_schmeep_ChibiScheme_evaluateScheme(JNIEnv *env,
+						       jobject object,
+						       jlong handle,
+						       jstring expression,
+						       jobject sink,
+						       jboolean paged) {
+  LOGI("JNI: evaluateScheme called.");
+
+  jstring error;
+  struct context *context = lock_context(env, handle, &error);
 
-  pthread_mutex_lock(&scheme_mutex);
-  if (scheme_ctx == NULL || scheme_env == NULL) {
-    LOGE("JNI: Scheme not initialized - ctx=%p env=%p", scheme_ctx, scheme_env);
-    pthread_mutex_unlock(&scheme_mutex);
-    return JNI_FALSE;
+  if (!context) {
+    return error;
   }
 
+  sexp scheme_ctx = context->ctx;
+  sexp scheme_env = context->env;
   const char *expr_cstr = (*env)->GetStringUTFChars(env, expression, NULL);
 
   if (!expr_cstr) {
     LOGE("JNI: Failed to convert expression string.");
-    pthread_mutex_unlock(&scheme_mutex);
-    return JNI_FALSE;
+    pthread_mutex_unlock(&context->mutex);
+    return (*env)->NewStringUTF(env, "Error: Invalid expression string.");
   }
 
-  sexp_gc_var2(input_port, expr_string);
-  sexp_gc_preserve2(scheme_ctx, input_port, expr_string);
+  sexp old_output_port = begin_evaluation(context, sink);
 
-  expr_string = sexp_c_string(scheme_ctx, expr_cstr, -1);
-  (*env)->ReleaseStringUTFChars(env, expression, expr_cstr);
+  sexp_gc_var3(input_port, expr_obj, result);
+  sexp_gc_preserve3(scheme_ctx, input_port, expr_obj, result);
 
-  input_port = sexp_open_input_string(scheme_ctx, expr_string);
+  sexp expr_string = sexp_c_string(scheme_ctx, expr_cstr, -1);
 
+  input_port = sexp_open_input_string(scheme_ctx, expr_string);
+  result = SEXP_VOID;
   if (sexp_exceptionp(input_port)) {
-    LOGE("JNI: Failed to create input port.");
-    sexp_gc_release2(scheme_ctx);
-    pthread_mutex_unlock(&scheme_mutex);
-    return JNI_FALSE;
+    result = input_port;
+  } else {
+    long start = microseconds_now();
+
+    while ((expr_obj = sexp_read(scheme_ctx, input_port)) != SEXP_EOF) {
+      long read = microseconds_now();
+
+      record_stat(STAT_READ, read - start);
+      if (sexp_exceptionp(expr_obj)) {
+	result = expr_obj;
+	break;
+      }
+      result = sexp_eval(scheme_ctx, expr_obj, scheme_env);
+      flush_stream_port(context);
+      start = microseconds_now();
+      record_stat(STAT_EVAL, start - read);
+      if (sexp_exceptionp(result)) {
+	break;
+      }
+    }
+    sexp_close_port(scheme_ctx, input_port);
+  }
+  end_evaluation(context, old_output_port);
+
+  long start = microseconds_now();
+  jstring java_result = result_to_java(env, context, result, expr_cstr, paged);
+
+  record_stat(STAT_SERIALIZE, microseconds_now() - start);
+
+  sexp_gc_release3(scheme_ctx);
+  (*env)->ReleaseStringUTFChars(env, expression, expr_cstr);
+  pthread_mutex_unlock(&context->mutex);
+  return java_result;
+}
+
+// Evaluate expression, which must produce a procedure of one argument, and
+// record that procedure so that applyHandler can call it without reading or
+// compiling anything.  Return its handler number, or 0 if expression fails or
+// doesn't produce a procedure, or if the table is full.
+JNIEXPORT jint JNICALL Java_com_speechcode_schmeep_ChibiScheme_compileHandler(
+    JNIEnv *env, jobject object, jlong handle, jstring expression) {
+  jstring error;
+  struct context *context = lock_context(env, handle, &error);
+
+  if (!context) {
+    return 0;
+  }
+
+  sexp ctx = context->ctx;
+  const char *expr_cstr = (*env)->GetStringUTFChars(env, expression, NULL);
+
+  if (!expr_cstr) {
+    pthread_mutex_unlock(&context->mutex);
+    return 0;
+  }
+
+  jint handler = 0;
+  sexp old_output_port = begin_evaluation(context, NULL);
+
+  sexp_gc_var2(source, procedure);
+  sexp_gc_preserve2(ctx, source, procedure);
+  source = sexp_c_string(ctx, expr_cstr, -1);
+
+  long start = microseconds_now();
+
+  procedure = eval_source(ctx, context->env, source);
+  flush_stream_port(context);
+  record_stat(STAT_COMPILE, microseconds_now() - start);
+  end_evaluation(context, old_output_port);
+  if (sexp_exceptionp(procedure)) {
+    LOGE("JNI: compileHandler: %s",
+	 format_exception(procedure, ctx, context->env, "Handler", expr_cstr));
+  } else if (!sexp_applicablep(procedure)) {
+    LOGE("JNI: compileHandler: Not a procedure: %s", expr_cstr);
+  } else if (context->handler_count == MAX_HANDLERS) {
+    LOGE("JNI: compileHandler: All %d handlers are in use.", MAX_HANDLERS);
+  } else {
+    sexp_preserve_object(ctx, procedure);
+    context->handlers[context->handler_count++] = procedure;
+    handler = context->handler_count;
+    LOGI("JNI: compileHandler: Compiled handler %d: %s", handler, expr_cstr);
+  }
+  sexp_gc_release2(ctx);
+  (*env)->ReleaseStringUTFChars(env, expression, expr_cstr);
+  pthread_mutex_unlock(&context->mutex);
+  return handler;
+}
+
+// Apply handler, a number returned by compileHandler, to argument.  The
+// result is returned as by evaluateScheme.
+JNIEXPORT jstring JNICALL Java_com_speechcode_schmeep_ChibiScheme_applyHandler(
+    JNIEnv *env, jobject object, jlong handle, jint handler, jstring argument,
+    jobject sink) {
+  jstring error;
+  struct context *context = lock_context(env, handle, &error);
+
+  if (!context) {
+    return error;
+  }
+  if (handler < 1 || handler > context->handler_count) {
+    pthread_mutex_unlock(&context->mutex);
+    return (*env)->NewStringUTF(env, "Error: Unknown handler.");
   }
 
-  sexp expr_obj = sexp_read(scheme_ctx, input_port);
+  sexp ctx = context->ctx;
+  const char *argument_cstr = (*env)->GetStringUTFChars(env, argument, NULL);
 
-  while (expr_obj != SEXP_EOF && !sexp_exceptionp(expr_obj)) {
-    expr_obj = sexp_read(scheme_ctx, input_port);
+  if (!argument_cstr) {
+    pthread_mutex_unlock(&context->mutex);
+    return (*env)->NewStringUTF(env, "Error: Invalid handler argument.");
   }
 
-  sexp_close_port(scheme_ctx, input_port);
+  sexp old_output_port = begin_evaluation(context, sink);
+
+  sexp_gc_var2(arguments, result);
+  sexp_gc_preserve2(ctx, arguments, result);
+  arguments = sexp_list1(ctx, sexp_c_string(ctx, argument_cstr, -1));
+
+  long start = microseconds_now();
+
+  result = sexp_apply(ctx, context->handlers[handler - 1], arguments);
+  flush_stream_port(context);
+  record_stat(STAT_EVAL, microseconds_now() - start);
+  end_evaluation(context, old_output_port);
+  (*env)->ReleaseStringUTFChars(env, argument, argument_cstr);
+  start = microseconds_now();
 
-  jboolean result;
+  jstring java_result = result_to_java(env, context, result, "handler", false);
 
-  if (sexp_exceptionp(expr_obj)) {
-    sexp kind = sexp_exception_kind(expr_obj);
-    sexp incomplete_symbol = sexp_intern(scheme_ctx, "read-incomplete", -1);
+  record_stat(STAT_SERIALIZE, microseconds_now() - start);
 
-    if (kind == incomplete_symbol) {
-      LOGI("JNI: Expression is incomplete.");
-      result = JNI_FALSE;
+  sexp_gc_release2(ctx);
+  pthread_mutex_unlock(&context->mutex);
+  return java_result;
+}
+
+JNIEXPORT void JNICALL Java_com_speechcode_schmeep_Stats_record(
+    JNIEnv *env, jclass class, jint stat, jlong value) {
+  record_stat(stat, value);
+}
+
+// Return a line for each stat.
+JNIEXPORT jstring JNICALL Java_com_speechcode_schmeep_Stats_report(
+    JNIEnv *env, jclass class) {
+  struct stat_record copy[STAT_COUNT];
+  char report[4096];
+  size_t length = 0;
+
+  snapshot_stats(copy);
+  for (int i = 0; i < STAT_COUNT && length < sizeof(report); i++) {
+    if (i < STAT_FIRST_COUNTER) {
+      char mean[32], p50[32], p99[32], max[32];
+
+      format_microseconds(mean, sizeof(mean),
+			  copy[i].count ? copy[i].total / copy[i].count : 0);
+      format_microseconds(p50, sizeof(p50), stat_percentile(&copy[i], 50));
+      format_microseconds(p99, sizeof(p99), stat_percentile(&copy[i], 99));
+      format_microseconds(max, sizeof(max), copy[i].max);
+      length += snprintf(report + length, sizeof(report) - length,
+			 "%s: %ld, mean %s, p50 %s, p99 %s, max %s\n",
+			 stat_names[i], copy[i].count, mean, p50, p99, max);
     } else {
-      LOGI("JNI: Expression is malformed (not incomplete).");
-      result = JNI_TRUE;
+      length += snprintf(report + length, sizeof(report) - length,
+			 "%s: %ld\n", stat_names[i], copy[i].total);
     }
-  } else {
-    LOGI("JNI: Expression is complete.");
-    result = JNI_TRUE;
   }
+  return (*env)->NewStringUTF(env, report);
+}
 
-  sexp_gc_release2(scheme_ctx);
-  pthread_mutex_unlock(&scheme_mutex);
-  return result;
+// Return a summary short enough for the status bar.
+JNIEXPORT jstring JNICALL Java_com_speechcode_schmeep_Stats_summary(
+    JNIEnv *env, jclass class) {
+  struct stat_record copy[STAT_COUNT];
+  char p50[32], p99[32], summary[160];
+
+  snapshot_stats(copy);
+  format_microseconds(p50, sizeof(p50), stat_percentile(&copy[STAT_EVAL], 50));
+  format_microseconds(p99, sizeof(p99), stat_percentile(&copy[STAT_EVAL], 99));
+  snprintf(summary, sizeof(summary),
+	   "%ld evaluations, p50 %s, p99 %s, %ld KB out",
+	   copy[STAT_EVAL].count, p50, p99, copy[STAT_BYTES_OUT].total / 1024);
+  return (*env)->NewStringUTF(env, summary);
 }
 
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -632,24 +1610,6 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
   cleanup_scheme();
 }
 
-JNIEXPORT void JNICALL
-Java_com_speechcode_schmeep_Bluetooth_setNativeOutputCallback(JNIEnv *env,
-							      jobject object) {
-  LOGI("JNI: setNativeOutputCallback called.");
-
-  if (bluetooth_instance) {
-    (*env)->DeleteGlobalRef(env, bluetooth_instance);
-  }
-
-  bluetooth_instance = (*env)->NewGlobalRef(env, object);
-
-  if (bluetooth_instance) {
-    LOGI("JNI: Bluetooth instance registered for output capture.");
-  } else {
-    LOGE("JNI: Failed to create global reference to Bluetooth instance.");
-  }
-}
-
 JNIEXPORT void JNICALL
 Java_com_speechcode_schmeep_MainActivity_registerForOutputCapture(
     JNIEnv *env, jobject object) {
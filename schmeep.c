@@ -5,13 +5,18 @@
 #include <bluetooth/rfcomm.h>
 #include <bluetooth/sdp.h>
 #include <bluetooth/sdp_lib.h>
+#include <ctype.h>
 #include <errno.h>
+#include <netdb.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
 #include <pthread.h>
 #include <signal.h>
 #include <stdbool.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <strings.h>
 #include <sys/ioctl.h>
 #include <sys/select.h>
 #include <sys/socket.h>
@@ -20,27 +25,122 @@
 #include <unistd.h>
 
 #define CACHE_DIR ".cache/schmeep"
+#define CHANNEL_ERROR 2
+#define CHANNEL_MISSING 4
+#define CHANNEL_OUTPUT 0
+#define CHANNEL_RESULT 1
+#define CHANNEL_STATS 3
+#define CONNECT_RETRY_INITIAL_MS 250
+#define CONNECT_RETRY_MAX_MS 4000
+#define CONNECT_RETRY_MAX_ATTEMPTS 8
 #define CACHE_FILE "mac-address.txt"
 #define CMD_A2C_EVALUATION_COMPLETE 255
 #define CMD_C2A_EVALUATE 254
 #define CMD_C2A_INTERRUPT 255
 #define CMD_C2A_MIN_COMMAND CMD_C2A_EVALUATE
+#define FRAME_BUDGET 6
+#define FRAME_DATA 1
+#define FRAME_EVALUATE 2
+#define FRAME_EVALUATION_COMPLETE 4
+#define FRAME_INTERRUPT 3
+#define FRAME_LONG_LENGTH 0x80
+#define FRAME_STATS 5
+#define FRAME_STORE 8
+#define FRAME_UPLOAD 7
+#define HANDSHAKE_MAGIC "\0schmeep"
+#define HANDSHAKE_MAGIC_LENGTH 8
+#define HANDSHAKE_LENGTH (HANDSHAKE_MAGIC_LENGTH + 5)
+#define HANDSHAKE_TIMEOUT_MS 1000
+#define LEGACY_BLOCK_SIZE (CMD_C2A_MIN_COMMAND - 1)
 #define MAX_MESSAGE_LENGTH 1048576
+#define MAX_HEADER_LENGTH (5 + TAG_LENGTH)
+#define MAX_SHORT_FRAME 0xffff
+#define TAG_LENGTH 4
+#define VERSION_FRAMED 2
+#define VERSION_LEGACY 1
+#define VERSION_TAGGED 3
+#define SHA256_HEX_LENGTH 64
 #define SCHMEEP_UUID "611a1a1a-94ba-11f0-b0a8-5f754c08f133"
 #define SERVICE_NAME "schmeep"
 
+// Set if the app didn't answer the handshake in time.  If its reply arrives
+// later, it is the first thing received, and it is discarded.
+static bool discard_handshake_reply = false;
+static uint32_t frame_size = LEGACY_BLOCK_SIZE;
 static pthread_t input_thread_id;
+static int protocol_version = VERSION_LEGACY;
 static pthread_t stream_thread_id;
 
+// In batch mode, the forms of a file are sent without waiting for their
+// results, with up to window of them in flight at once.  Form i is sent as
+// request i + 1.  With protocol version 3, responses carry that id, and errors
+// arrive on CHANNEL_ERROR.  Older apps don't tag responses, but they evaluate
+// in order, so each evaluation complete message answers the oldest form still
+// outstanding, and tail holds the end of that form's response, where its
+// result is.  Protected by batch_mutex.
+#define BATCH_TAIL_SIZE 256
+#define DEFAULT_BATCH_WINDOW 8
+
+struct batch_form {
+  bool error;
+  int line;
+  struct timespec sent;
+};
+
+struct batch {
+  bool active;
+  bool closed;
+  int completed;
+  int count;
+  int errors;
+  bool failed;
+  struct batch_form *forms;
+  const char *path;
+  int sent;
+  char tail[BATCH_TAIL_SIZE];
+  size_t tail_length;
+  int window;
+};
+
+static struct batch batch = {.window = DEFAULT_BATCH_WINDOW};
+static pthread_cond_t batch_cond = PTHREAD_COND_INITIALIZER;
+static pthread_mutex_t batch_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+// During ,upload, the input thread waits for the app's reply to the manifest,
+// which the protocol handler gathers in missing: how many of the files the app
+// lacks, on a line of its own, then their hashes, one per line.  If the
+// request ends first, e.g. because the app rejected the manifest, answered is
+// set with missing still incomplete.  Protected by batch_mutex.
+struct upload {
+  bool answered;
+  uint32_t id;
+  char *missing;
+  size_t missing_length;
+};
+
+struct upload_file {
+  char *content;
+  char hash[SHA256_HEX_LENGTH + 1];
+  size_t length;
+  const char *name;
+};
+
+static struct upload upload;
+
 bool check_address_for_scheme_repl(const char *address);
 bool check_device_for_schmeep_service(const bdaddr_t *bdaddr);
+int connect_to_channel(const char *bt_addr, int channel);
+char *discover_address();
 char *get_cache_file_path();
+void *batch_thread(void *arg);
 void *input_thread(void *arg);
-char *load_cached_address();
-void save_cached_address(const char *address);
-int send_data_block(int sock, const char *data, size_t length);
-int send_evaluate_command(int sock);
-int send_interrupt_command(int sock);
+char *load_cached_address(int *channel);
+int negotiate_protocol(int sock);
+void save_cached_address(const char *address, int channel);
+int send_data_block(int sock, uint32_t id, const char *data, size_t length);
+int send_evaluate_command(int sock, uint32_t id);
+int send_interrupt_command(int sock, uint32_t id);
+int send_upload(int sock, char *arguments);
 void protocol_handler_thread(void *arg);
 void sigint_handler(int sig);
 
@@ -62,7 +162,13 @@ char *get_cache_file_path() {
   return path;
 }
 
-char *load_cached_address() {
+// The cache file holds the address of the last device used and, after it, the
+// RFCOMM channel its Schmeep service was found on, so that reconnecting can
+// skip the SDP query.  If the protocol handshake fails on that channel, the
+// query is run anyway.  Set *channel to -1 if no channel was cached.
+char *load_cached_address(int *channel) {
+  *channel = -1;
+
   char *cache_path = get_cache_file_path();
 
   if (!cache_path) {
@@ -84,7 +190,9 @@ char *load_cached_address() {
     return NULL;
   }
 
-  if (fgets(address, 19, file) == NULL) {
+  int cached_channel = -1;
+
+  if (fscanf(file, "%18s %d", address, &cached_channel) < 1) {
     free(address);
     fclose(file);
     return NULL;
@@ -92,17 +200,18 @@ char *load_cached_address() {
 
   fclose(file);
 
-  address[17] = '\0';
-
   if (strlen(address) != 17) {
     free(address);
     return NULL;
   }
 
+  if (cached_channel >= 1 && cached_channel <= 30) {
+    *channel = cached_channel;
+  }
   return address;
 }
 
-void save_cached_address(const char *address) {
+void save_cached_address(const char *address, int channel) {
   if (!address) {
     return;
   }
@@ -137,7 +246,11 @@ void save_cached_address(const char *address) {
     return;
   }
 
-  fprintf(file, "%s\n", address);
+  if (channel > 0) {
+    fprintf(file, "%s %d\n", address, channel);
+  } else {
+    fprintf(file, "%s\n", address);
+  }
   fclose(file);
 }
 
@@ -206,26 +319,266 @@ static int global_sock = -1;
 
 void sigint_handler(int sig) {
   if (sig == SIGINT && global_sock != -1) {
-    send_interrupt_command(global_sock);
+    send_interrupt_command(global_sock, 0);
     printf("\n");
     fflush(stdout);
   }
 }
 
-int send_data_block(int sock, const char *data, size_t length) {
-  if (length >= CMD_C2A_MIN_COMMAND) {
+static uint32_t read_u32(const uint8_t *data) {
+  return ((uint32_t)data[0] << 24) | ((uint32_t)data[1] << 16) |
+	 ((uint32_t)data[2] << 8) | (uint32_t)data[3];
+}
+
+static void write_u32(uint8_t *data, uint32_t value) {
+  data[0] = value >> 24;
+  data[1] = value >> 16;
+  data[2] = value >> 8;
+  data[3] = value;
+}
+
+static uint32_t rotate_right(uint32_t x, int n) {
+  return (x >> n) | (x << (32 - n));
+}
+
+static const uint32_t sha256_constants[64] = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+    0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+    0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+    0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+    0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+    0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+    0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+    0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+    0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2};
+
+static void sha256_block(uint32_t *state, const uint8_t *block) {
+  uint32_t w[64];
+  uint32_t v[8];
+
+  for (int i = 0; i < 16; i++) {
+    w[i] = read_u32(block + 4 * i);
+  }
+  for (int i = 16; i < 64; i++) {
+    uint32_t s0 = rotate_right(w[i - 15], 7) ^ rotate_right(w[i - 15], 18) ^
+		  (w[i - 15] >> 3);
+    uint32_t s1 = rotate_right(w[i - 2], 17) ^ rotate_right(w[i - 2], 19) ^
+		  (w[i - 2] >> 10);
+
+    w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+  }
+  memcpy(v, state, sizeof(v));
+  for (int i = 0; i < 64; i++) {
+    uint32_t s1 = rotate_right(v[4], 6) ^ rotate_right(v[4], 11) ^
+		  rotate_right(v[4], 25);
+    uint32_t choice = (v[4] & v[5]) ^ (~v[4] & v[6]);
+    uint32_t t1 = v[7] + s1 + choice + sha256_constants[i] + w[i];
+    uint32_t s0 = rotate_right(v[0], 2) ^ rotate_right(v[0], 13) ^
+		  rotate_right(v[0], 22);
+    uint32_t majority = (v[0] & v[1]) ^ (v[0] & v[2]) ^ (v[1] & v[2]);
+
+    memmove(v + 1, v, 7 * sizeof(uint32_t));
+    v[4] += t1;
+    v[0] = t1 + s0 + majority;
+  }
+  for (int i = 0; i < 8; i++) {
+    state[i] += v[i];
+  }
+}
+
+// Store the SHA-256 hash of data, in lowercase hex, in hex, which must have
+// room for SHA256_HEX_LENGTH + 1 bytes.  That's what the app's upload store
+// names files by.
+static void sha256_hex(const char *data, size_t length, char *hex) {
+  uint32_t state[8] = {0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+		       0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+  uint8_t block[64];
+  size_t offset = 0;
+
+  for (; offset + 64 <= length; offset += 64) {
+    sha256_block(state, (const uint8_t *)data + offset);
+  }
+
+  size_t rest = length - offset;
+
+  memset(block, 0, sizeof(block));
+  memcpy(block, data + offset, rest);
+  block[rest] = 0x80;
+  if (rest >= 56) {
+    sha256_block(state, block);
+    memset(block, 0, sizeof(block));
+  }
+  write_u32(block + 56, (uint32_t)((uint64_t)length >> 29));
+  write_u32(block + 60, (uint32_t)(length << 3));
+  sha256_block(state, block);
+  for (int i = 0; i < 8; i++) {
+    sprintf(hex + 8 * i, "%08x", state[i]);
+  }
+}
+
+static int recv_all(int sock, void *buffer, size_t length) {
+  size_t received = 0;
+
+  while (received < length) {
+    ssize_t result =
+	recv(sock, (char *)buffer + received, length - received, 0);
+
+    if (result <= 0) {
+      return -1;
+    }
+    received += result;
+  }
+  return 0;
+}
+
+static int send_all(int sock, const void *data, size_t length) {
+  size_t sent = 0;
+
+  while (sent < length) {
+    ssize_t result = send(sock, (const char *)data + sent, length - sent, 0);
+
+    if (result <= 0) {
+      return -1;
+    }
+    sent += result;
+  }
+  return 0;
+}
+
+// Write the header of a frame of the given type for request id, with length
+// bytes of data after it, into header, returning its length, at most
+// MAX_HEADER_LENGTH.  In the legacy protocol, that's a single length or
+// command byte.  In version 3, the header ends with the request id, which
+// counts as part of the payload.
+static size_t encode_header(uint8_t *header, uint8_t type, uint32_t id,
+			    uint32_t length) {
+  if (protocol_version == VERSION_LEGACY) {
+    if (type == FRAME_DATA) {
+      header[0] = (uint8_t)length;
+    } else {
+      header[0] =
+	  type == FRAME_EVALUATE ? CMD_C2A_EVALUATE : CMD_C2A_INTERRUPT;
+    }
+    return 1;
+  }
+
+  bool tagged = protocol_version >= VERSION_TAGGED;
+  size_t header_length;
+
+  if (tagged) {
+    length += TAG_LENGTH;
+  }
+  if (length > MAX_SHORT_FRAME) {
+    header[0] = type | FRAME_LONG_LENGTH;
+    write_u32(header + 1, length);
+    header_length = 5;
+  } else {
+    header[0] = type;
+    header[1] = length >> 8;
+    header[2] = length;
+    header_length = 3;
+  }
+  if (tagged) {
+    write_u32(header + header_length, id);
+    header_length += TAG_LENGTH;
+  }
+  return header_length;
+}
+
+// The most data that fits in one frame after its request id, if any.
+static size_t data_block_limit() {
+  return protocol_version == VERSION_LEGACY   ? LEGACY_BLOCK_SIZE
+	 : protocol_version == VERSION_FRAMED ? frame_size
+					      : frame_size - TAG_LENGTH;
+}
+
+// Send a handshake block carrying version and frame size, followed by a legacy
+// interrupt.
+static int send_handshake(int sock, uint8_t version, uint32_t size) {
+  uint8_t hello[HANDSHAKE_LENGTH + 2];
+
+  hello[0] = HANDSHAKE_LENGTH;
+  memcpy(hello + 1, HANDSHAKE_MAGIC, HANDSHAKE_MAGIC_LENGTH);
+  hello[1 + HANDSHAKE_MAGIC_LENGTH] = version;
+  write_u32(hello + 2 + HANDSHAKE_MAGIC_LENGTH, size);
+  hello[HANDSHAKE_LENGTH + 1] = CMD_C2A_INTERRUPT;
+  if (send_all(sock, hello, sizeof(hello)) < 0) {
+    perror("Failed to send protocol handshake.");
+    return -1;
+  }
+  return 0;
+}
+
+// Offer protocol version 3.  The offer is a legacy data block followed by a
+// legacy interrupt, so an app that only speaks version 1 discards it and never
+// replies, in which case we stay with version 1.  The app doesn't switch
+// versions until we send its reply back, so a reply that arrives after we've
+// stopped waiting is just discarded.
+int negotiate_protocol(int sock) {
+  if (send_handshake(sock, VERSION_TAGGED, MAX_MESSAGE_LENGTH) < 0) {
+    return -1;
+  }
+
+  fd_set read_fds;
+  struct timeval timeout = {HANDSHAKE_TIMEOUT_MS / 1000,
+			    (HANDSHAKE_TIMEOUT_MS % 1000) * 1000};
+
+  FD_ZERO(&read_fds);
+  FD_SET(sock, &read_fds);
+  if (select(sock + 1, &read_fds, NULL, NULL, &timeout) <= 0) {
+    discard_handshake_reply = true;
+    printf("Using legacy protocol.\n");
+    return 0;
+  }
+
+  uint8_t reply[HANDSHAKE_LENGTH + 1];
+
+  if (recv_all(sock, reply, sizeof(reply)) < 0 ||
+      reply[0] != HANDSHAKE_LENGTH ||
+      memcmp(reply + 1, HANDSHAKE_MAGIC, HANDSHAKE_MAGIC_LENGTH) != 0) {
+    fprintf(stderr, "Malformed protocol handshake reply.\n");
+    return -1;
+  }
+
+  uint8_t agreed_version = reply[1 + HANDSHAKE_MAGIC_LENGTH];
+  uint32_t agreed_frame_size = read_u32(reply + 2 + HANDSHAKE_MAGIC_LENGTH);
+
+  if (agreed_frame_size < LEGACY_BLOCK_SIZE ||
+      agreed_frame_size > MAX_MESSAGE_LENGTH) {
+    fprintf(stderr, "Invalid frame size: %u bytes\n", agreed_frame_size);
+    return -1;
+  }
+  if (agreed_version < VERSION_FRAMED || agreed_version > VERSION_TAGGED) {
+    fprintf(stderr, "Unsupported protocol version: %d\n", agreed_version);
+    return -1;
+  }
+  if (send_handshake(sock, agreed_version, agreed_frame_size) < 0) {
+    return -1;
+  }
+  protocol_version = agreed_version;
+  frame_size = agreed_frame_size;
+  printf("Using protocol version %d with %u-byte frames.\n", protocol_version,
+	 frame_size);
+  return 0;
+}
+
+int send_data_block(int sock, uint32_t id, const char *data, size_t length) {
+  if (length > data_block_limit()) {
     fprintf(stderr, "Data block too large: %zu bytes\n", length);
     return -1;
   }
 
-  uint8_t length_byte = (uint8_t)length;
+  uint8_t header[MAX_HEADER_LENGTH];
+  size_t header_length = encode_header(header, FRAME_DATA, id, length);
 
-  if (send(sock, &length_byte, 1, 0) != 1) {
+  if (send_all(sock, header, header_length) < 0) {
     perror("Failed to send length byte.");
     return -1;
   }
 
-  if (send(sock, data, length, 0) != (ssize_t)length) {
+  if (send_all(sock, data, length) < 0) {
     perror("Failed to send data block.");
     return -1;
   }
@@ -233,60 +586,292 @@ int send_data_block(int sock, const char *data, size_t length) {
   return 0;
 }
 
-int send_command(uint8_t command, char *message, int sock) {
-  if (send(sock, &command, 1, 0) != 1) {
+int send_command(uint8_t command, uint32_t id, char *message, int sock) {
+  uint8_t header[MAX_HEADER_LENGTH];
+  size_t header_length = encode_header(header, command, id, 0);
+
+  if (send(sock, header, header_length, 0) != (ssize_t)header_length) {
     perror(message);
     return -1;
   }
   return 0;
 }
 
-int send_evaluate_command(int sock) {
-  send_command(CMD_C2A_EVALUATE, "Failed to send evaluate command.", sock);
+int send_evaluate_command(int sock, uint32_t id) {
+  return send_command(FRAME_EVALUATE, id, "Failed to send evaluate command.",
+		      sock);
 }
 
-int send_interrupt_command(int sock) {
-  send_command(CMD_C2A_INTERRUPT, "Failed to send interrupt command.", sock);
+// Cancel request id, or, if id is 0, interrupt whatever is being evaluated.
+// Before version 3 of the protocol, the id is ignored.
+int send_interrupt_command(int sock, uint32_t id) {
+  return send_command(FRAME_INTERRUPT, id,
+		      "Failed to send interrupt command.", sock);
 }
 
-int receive_data_block(int sock, char *buffer, int max_size) {
-  unsigned char length_or_command;
-  ssize_t result = recv(sock, &length_or_command, 1, 0);
+// Ask the app for its counters and latency histograms, which arrive like the
+// result of an evaluation.  Only version 2 of the protocol has this command.
+int send_stats_command(int sock) {
+  if (protocol_version == VERSION_LEGACY) {
+    printf("The app doesn't support ,stats.\nscheme> ");
+    fflush(stdout);
+    return 0;
+  }
+  return send_command(FRAME_STATS, 0, "Failed to send stats command.", sock);
+}
 
-  if (result <= 0) {
+// Limit each evaluation in this session to time_ms milliseconds and to
+// growing the heap by heap_kb kilobytes, where 0 means no limit.  The app may
+// have tighter limits of its own.  Only version 3 of the protocol has this
+// command.
+int send_budget_command(int sock, uint32_t time_ms, uint32_t heap_kb) {
+  if (protocol_version < VERSION_TAGGED) {
+    fprintf(stderr, "The app doesn't support evaluation budgets.\n");
+    return 0;
+  }
+
+  uint8_t frame[MAX_HEADER_LENGTH + 8];
+  size_t length = encode_header(frame, FRAME_BUDGET, 0, 8);
+
+  write_u32(frame + length, time_ms);
+  write_u32(frame + length + 4, heap_kb * 1024);
+  if (send_all(sock, frame, length + 8) < 0) {
+    perror("Failed to send budget command.");
     return -1;
   }
+  return 0;
+}
 
-  if (length_or_command == CMD_A2C_EVALUATION_COMPLETE) {
-    printf("scheme> ");
-    fflush(stdout);
-    return 0;
+static double milliseconds_between(const struct timespec *start,
+				   const struct timespec *end) {
+  return (end->tv_sec - start->tv_sec) * 1000.0 +
+	 (end->tv_nsec - start->tv_nsec) / 1000000.0;
+}
+
+// Note an error in the response to a batch form, or, if responses aren't
+// tagged, keep the end of the response to the oldest outstanding form.
+static void batch_record_output(const char *data, size_t length, uint32_t id,
+				int channel) {
+  pthread_mutex_lock(&batch_mutex);
+  if (protocol_version >= VERSION_TAGGED) {
+    if (channel == CHANNEL_ERROR && id >= 1 && id <= (uint32_t)batch.sent) {
+      batch.forms[id - 1].error = true;
+    }
+    pthread_mutex_unlock(&batch_mutex);
+    return;
+  }
+  if (length >= BATCH_TAIL_SIZE) {
+    data += length - (BATCH_TAIL_SIZE - 1);
+    length = BATCH_TAIL_SIZE - 1;
   }
+  if (batch.tail_length + length >= BATCH_TAIL_SIZE) {
+    size_t drop = batch.tail_length + length - (BATCH_TAIL_SIZE - 1);
 
-  if (length_or_command > max_size) {
-    fprintf(stderr, "Data block too large: %d bytes\n", length_or_command);
+    memmove(batch.tail, batch.tail + drop, batch.tail_length - drop);
+    batch.tail_length -= drop;
+  }
+  memcpy(batch.tail + batch.tail_length, data, length);
+  batch.tail_length += length;
+  batch.tail[batch.tail_length] = '\0';
+  pthread_mutex_unlock(&batch_mutex);
+}
+
+// Return true if response, which ends with a result and a newline, reports
+// an error.  The protocol doesn't mark errors, so this goes by the messages
+// the app uses for them.
+static bool is_error_response(char *response) {
+  size_t length = strlen(response);
+
+  if (length > 0 && response[length - 1] == '\n') {
+    response[--length] = '\0';
+  }
+
+  char *newline = strrchr(response, '\n');
+  char *result = newline ? newline + 1 : response;
+
+  return strncmp(result, "Error: ", 7) == 0 ||
+	 strncmp(result, "Exception:", 10) == 0 ||
+	 strcmp(result, "Interrupted.") == 0;
+}
+
+// Report the latency and outcome of the batch form sent as request id.  If
+// responses aren't tagged, that's the oldest outstanding form.
+static void batch_form_complete(uint32_t id) {
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  pthread_mutex_lock(&batch_mutex);
+
+  bool tagged = protocol_version >= VERSION_TAGGED;
+  int index = tagged ? (int)id - 1 : batch.completed;
+
+  if (index >= 0 && index < batch.sent && batch.completed < batch.sent) {
+    struct batch_form *form = &batch.forms[index];
+    bool error = tagged ? form->error : is_error_response(batch.tail);
+
+    batch.completed++;
+    if (error) {
+      batch.errors++;
+    }
+    fprintf(stderr, ";; Form %d at line %d: %.1f ms%s\n", index + 1,
+	    form->line, milliseconds_between(&form->sent, &now),
+	    error ? ", error" : "");
+  }
+  batch.tail_length = 0;
+  batch.tail[0] = '\0';
+  pthread_cond_broadcast(&batch_cond);
+  pthread_mutex_unlock(&batch_mutex);
+}
+
+// Return true if missing holds the app's whole list of the files it lacks.
+static bool missing_list_complete(const char *missing) {
+  char *end;
+  unsigned long count = strtoul(missing, &end, 10);
+
+  if (end == missing || *end != '\n') {
+    return false;
+  }
+
+  unsigned long lines = 0;
+
+  for (const char *p = end + 1; *p; p++) {
+    if (*p == '\n') {
+      lines++;
+    }
+  }
+  return lines >= count;
+}
+
+// Add data, part of the app's list of the files that upload id lacks, to
+// upload.missing.
+static void upload_record_missing(const char *data, size_t length,
+				  uint32_t id) {
+  pthread_mutex_lock(&batch_mutex);
+  if (id == upload.id && !upload.answered) {
+    char *missing =
+	realloc(upload.missing, upload.missing_length + length + 1);
+
+    if (!missing) {
+      perror("Failed to allocate list of missing files.");
+      exit(1);
+    }
+    memcpy(missing + upload.missing_length, data, length);
+    upload.missing = missing;
+    upload.missing_length += length;
+    missing[upload.missing_length] = '\0';
+    if (missing_list_complete(missing)) {
+      upload.answered = true;
+      pthread_cond_broadcast(&batch_cond);
+    }
+  }
+  pthread_mutex_unlock(&batch_mutex);
+}
+
+static void evaluation_complete(uint32_t id) {
+  if (batch.active) {
+    batch_form_complete(id);
+    return;
+  }
+  pthread_mutex_lock(&batch_mutex);
+  if (id != 0 && id == upload.id) {
+    upload.answered = true;
+    pthread_cond_broadcast(&batch_cond);
+  }
+  pthread_mutex_unlock(&batch_mutex);
+  printf("scheme> ");
+  fflush(stdout);
+}
+
+// Receive the next message from the app into buffer, returning the length of
+// its data, which may be 0, or -1 if the connection is gone.  Store the
+// request id and channel that the data belongs to in *id and *channel.
+// Before version 3 of the protocol, those are always 0 and CHANNEL_OUTPUT.
+int receive_data_block(int sock, char *buffer, int max_size, uint32_t *id,
+		       int *channel) {
+  unsigned char length_or_command;
+  uint32_t length;
+
+  *id = 0;
+  *channel = CHANNEL_OUTPUT;
+  if (recv_all(sock, &length_or_command, 1) < 0) {
     return -1;
   }
 
-  int bytes_read = 0;
+  if (protocol_version == VERSION_LEGACY) {
+    if (length_or_command == CMD_A2C_EVALUATION_COMPLETE) {
+      evaluation_complete(0);
+      return 0;
+    }
+    length = length_or_command;
+  } else {
+    uint8_t length_bytes[4];
 
-  while (bytes_read < length_or_command) {
-    result = recv(sock, buffer + bytes_read, length_or_command - bytes_read, 0);
-    if (result <= 0) {
-      return -1;
+    if (length_or_command & FRAME_LONG_LENGTH) {
+      if (recv_all(sock, length_bytes, 4) < 0) {
+	return -1;
+      }
+      length = read_u32(length_bytes);
+    } else {
+      if (recv_all(sock, length_bytes, 2) < 0) {
+	return -1;
+      }
+      length = ((uint32_t)length_bytes[0] << 8) | length_bytes[1];
+    }
+
+    int type = length_or_command & ~FRAME_LONG_LENGTH;
+
+    if (protocol_version >= VERSION_TAGGED) {
+      uint8_t tag[TAG_LENGTH + 1];
+      size_t tag_length = type == FRAME_DATA ? TAG_LENGTH + 1 : TAG_LENGTH;
+
+      if (length < tag_length || recv_all(sock, tag, tag_length) < 0) {
+	return -1;
+      }
+      *id = read_u32(tag);
+      if (type == FRAME_DATA) {
+	*channel = tag[TAG_LENGTH];
+      }
+      length -= tag_length;
+    }
+    if (type == FRAME_EVALUATION_COMPLETE) {
+      evaluation_complete(*id);
+      return 0;
     }
-    bytes_read += result;
   }
 
-  return length_or_command;
+  if (length > (uint32_t)max_size) {
+    fprintf(stderr, "Data block too large: %u bytes\n", length);
+    return -1;
+  }
+
+  if (recv_all(sock, buffer, length) < 0) {
+    return -1;
+  }
+  if (discard_handshake_reply) {
+    discard_handshake_reply = false;
+    if (length == HANDSHAKE_LENGTH &&
+	memcmp(buffer, HANDSHAKE_MAGIC, HANDSHAKE_MAGIC_LENGTH) == 0) {
+      return 0;
+    }
+  }
+
+  return length;
 }
 
 void protocol_handler_thread(void *arg) {
   int sock = *(int *)arg;
-  char buffer[255];
+  char *buffer = malloc(frame_size + 1);
+
+  if (!buffer) {
+    perror("Failed to allocate receive buffer.");
+    return;
+  }
 
   while (1) {
-    int block_size = receive_data_block(sock, buffer, sizeof(buffer) - 1);
+    uint32_t id;
+    int channel;
+    int block_size =
+	receive_data_block(sock, buffer, frame_size, &id, &channel);
 
     if (block_size < 0) {
       break;
@@ -297,9 +882,21 @@ void protocol_handler_thread(void *arg) {
     }
 
     buffer[block_size] = '\0';
+    if (channel == CHANNEL_MISSING) {
+      upload_record_missing(buffer, block_size, id);
+      continue;
+    }
     printf("%s", buffer);
     fflush(stdout);
+    if (batch.active) {
+      batch_record_output(buffer, block_size, id, channel);
+    }
   }
+  free(buffer);
+  pthread_mutex_lock(&batch_mutex);
+  batch.closed = true;
+  pthread_cond_broadcast(&batch_cond);
+  pthread_mutex_unlock(&batch_mutex);
 }
 
 int find_service_channel(const char *bt_addr) {
@@ -464,119 +1061,297 @@ char *scan_active_paired_devices() {
   return NULL;
 }
 
-void usage(char *command) {
-  fprintf(stderr, "Usage: %s [bluetooth_address]\n", command);
-  fprintf(stderr, "Example: %s AA:BB:CC:DD:EE:FF\n\n", command);
-  fprintf(stderr, "If no address is provided, will auto-discover.\n");
-}
+// Connect to the RFCOMM channel, retrying while BlueZ is still cleaning up
+// an earlier connection.  The delay between attempts starts small and
+// doubles, so a quick cleanup costs little.  Return the socket, or -1.
+int connect_to_channel(const char *bt_addr, int channel) {
+  struct sockaddr_rc addr = {0};
 
-int main(int argc, char *argv[]) {
-  const char *bt_addr = NULL;
+  addr.rc_family = AF_BLUETOOTH;
+  addr.rc_channel = channel;
+  str2ba(bt_addr, &addr.rc_bdaddr);
 
-  if (argc == 1) {
-    char *cached_addr = load_cached_address();
-    char *discovered_addr = NULL;
+  int delay_ms = CONNECT_RETRY_INITIAL_MS;
 
-    if (cached_addr) {
-      if (check_address_for_scheme_repl(cached_addr)) {
-	discovered_addr = cached_addr;
-	printf("Using cached device: %s.\n", discovered_addr);
-      } else {
-	free(cached_addr);
-	cached_addr = NULL;
-      }
+  for (int attempt = 1;; attempt++) {
+    int sock = socket(AF_BLUETOOTH, SOCK_STREAM, BTPROTO_RFCOMM);
+
+    if (sock < 0) {
+      perror("Failed to create socket.");
+      return -1;
     }
 
-    if (!discovered_addr) {
-      printf("Scanning devices.\n");
-      discovered_addr = scan_active_paired_devices();
-      if (!discovered_addr) {
-	fprintf(stderr, "No Schmeep service found.\n");
-	usage(argv[0]);
-	return 1;
-      }
-      printf("Using discovered device: %s.\n", discovered_addr);
-      save_cached_address(discovered_addr);
+    int reuse = 1;
+
+    if (setsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &reuse, sizeof(reuse)) <
+	0) {
+      perror("Failed to set SO_REUSEADDR.");
+      close(sock);
+      return -1;
+    }
+
+    if (connect(sock, (struct sockaddr *)&addr, sizeof(addr)) == 0) {
+      return sock;
+    }
+
+    if (errno != EBUSY || attempt == CONNECT_RETRY_MAX_ATTEMPTS) {
+      perror("Failed to connect.");
+      close(sock);
+      return -1;
+    }
+
+    printf("Connection busy.  Waiting %d ms for BlueZ cleanup (attempt "
+	   "%d/%d).\n",
+	   delay_ms, attempt, CONNECT_RETRY_MAX_ATTEMPTS);
+    close(sock);
+    usleep(delay_ms * 1000);
+    delay_ms *= 2;
+    if (delay_ms > CONNECT_RETRY_MAX_MS) {
+      delay_ms = CONNECT_RETRY_MAX_MS;
     }
-    bt_addr = discovered_addr;
-  } else if (argc == 2) {
-    bt_addr = argv[1];
-    save_cached_address(bt_addr);
-  } else {
-    usage(argv[0]);
-    return 1;
   }
+}
 
-  printf("Searching for service with UUID %s.\n", SCHMEEP_UUID);
-  int port = find_service_channel(bt_addr);
+// Find a device running Schmeep, trying the cached address first.  Return its
+// address, or NULL.
+char *discover_address() {
+  int cached_channel;
+  char *cached_addr = load_cached_address(&cached_channel);
 
-  if (port < 0) {
-    fprintf(stderr, "Service not found\n");
-    return 1;
+  if (cached_addr) {
+    if (check_address_for_scheme_repl(cached_addr)) {
+      printf("Using cached device: %s.\n", cached_addr);
+      return cached_addr;
+    }
+    free(cached_addr);
   }
 
-  struct sockaddr_rc addr = {0};
+  printf("Scanning devices.\n");
 
-  addr.rc_family = AF_BLUETOOTH;
-  addr.rc_channel = port;
-  str2ba(bt_addr, &addr.rc_bdaddr);
+  char *discovered_addr = scan_active_paired_devices();
 
-  int sock = socket(AF_BLUETOOTH, SOCK_STREAM, BTPROTO_RFCOMM);
+  if (!discovered_addr) {
+    fprintf(stderr, "No Schmeep service found.\n");
+    return NULL;
+  }
+  printf("Using discovered device: %s.\n", discovered_addr);
+  return discovered_addr;
+}
 
-  if (sock < 0) {
-    perror("Failed to create socket.");
-    return 1;
+// Connect to the app over TCP, given "host:port".  The app listens only if
+// it was built with TCP_PORT, e.g. for "adb forward" or local load testing.
+// Return the socket, or -1.
+int connect_to_tcp(const char *host_port) {
+  const char *colon = strrchr(host_port, ':');
+
+  if (!colon || colon == host_port || !colon[1]) {
+    fprintf(stderr, "Expected host:port, not %s.\n", host_port);
+    return -1;
   }
 
-  int reuse = 1;
+  char host[256];
+  size_t host_length = colon - host_port;
 
-  if (setsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &reuse, sizeof(reuse)) < 0) {
-    perror("Failed to set SO_REUSEADDR.");
-    close(sock);
-    return 1;
+  if (host_length >= sizeof(host)) {
+    fprintf(stderr, "Host name too long: %s\n", host_port);
+    return -1;
   }
+  memcpy(host, host_port, host_length);
+  host[host_length] = '\0';
 
-  printf("Connecting to %s on channel %d.\n", bt_addr, port);
+  struct addrinfo hints = {0};
+  struct addrinfo *addresses;
 
-  int connect_attempts = 0;
-  int max_attempts = 4;
+  hints.ai_family = AF_UNSPEC;
+  hints.ai_socktype = SOCK_STREAM;
 
-  while (connect_attempts < max_attempts) {
-    if (connect(sock, (struct sockaddr *)&addr, sizeof(addr)) == 0) {
+  int status = getaddrinfo(host, colon + 1, &hints, &addresses);
+
+  if (status != 0) {
+    fprintf(stderr, "Failed to resolve %s: %s\n", host, gai_strerror(status));
+    return -1;
+  }
+
+  int sock = -1;
+
+  for (struct addrinfo *a = addresses; a; a = a->ai_next) {
+    sock = socket(a->ai_family, a->ai_socktype, a->ai_protocol);
+    if (sock < 0) {
+      continue;
+    }
+    if (connect(sock, a->ai_addr, a->ai_addrlen) == 0) {
       break;
     }
+    close(sock);
+    sock = -1;
+  }
+  freeaddrinfo(addresses);
+  if (sock < 0) {
+    perror("Failed to connect");
+    return -1;
+  }
 
-    if (errno == EBUSY && connect_attempts < max_attempts - 1) {
-      printf("Connection busy.  Waiting for BlueZ cleanup (attempt %d/%d).\n",
-	     connect_attempts + 1, max_attempts);
-      close(sock);
-      sleep(4);
+  int one = 1;
+
+  setsockopt(sock, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+  printf("Connected to %s.\n", host_port);
+  return sock;
+}
+
+void usage(char *command) {
+  fprintf(stderr, "Usage: %s [options] [bluetooth_address]\n", command);
+  fprintf(stderr, "Example: %s AA:BB:CC:DD:EE:FF\n\n", command);
+  fprintf(stderr, "If no address is provided, will auto-discover.\n\n");
+  fprintf(stderr, "Options:\n");
+  fprintf(stderr, "  --batch file  Evaluate the forms in file, or in standard "
+		  "input if it is -.\n");
+  fprintf(stderr, "  --heap-limit kb  Interrupt evaluations that grow the "
+		  "heap by more than kb KB.\n");
+  fprintf(stderr, "  --tcp host:port  Connect over TCP instead of "
+		  "Bluetooth.\n");
+  fprintf(stderr, "  --time-limit ms  Interrupt evaluations that run for "
+		  "more than ms milliseconds.\n");
+  fprintf(stderr, "  --window n  Keep up to n batch forms in flight "
+		  "(default %d).\n", DEFAULT_BATCH_WINDOW);
+}
+
+// Find the app over Bluetooth, using address, the cached address, or
+// discovery, connect to it, and negotiate the protocol.  Return the socket, or
+// -1.
+int connect_to_bluetooth(const char *address, char *command) {
+  const char *bt_addr = address;
+  int cached_channel;
+  char *cached_addr = load_cached_address(&cached_channel);
+  int channel = -1;
 
-      sock = socket(AF_BLUETOOTH, SOCK_STREAM, BTPROTO_RFCOMM);
-      if (sock < 0) {
-	perror("Failed to recreate socket.");
-	return 1;
+  if (!address) {
+    if (cached_addr && cached_channel > 0) {
+      bt_addr = cached_addr;
+      channel = cached_channel;
+      printf("Using cached device: %s.\n", bt_addr);
+    } else {
+      free(cached_addr);
+      bt_addr = discover_address();
+      if (!bt_addr) {
+	usage(command);
+	return -1;
       }
+    }
+  } else {
+    if (cached_addr && strcasecmp(cached_addr, bt_addr) == 0) {
+      channel = cached_channel;
+    }
+    free(cached_addr);
+  }
+
+  int sock = -1;
+
+  if (channel > 0) {
+    printf("Connecting to %s on cached channel %d.\n", bt_addr, channel);
+    sock = connect_to_channel(bt_addr, channel);
 
-      int reuse = 1;
-      if (setsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &reuse, sizeof(reuse)) <
-	  0) {
-	perror("Failed to set SO_REUSEADDR on retry.");
-	close(sock);
-	return 1;
+    // The app may have been reinstalled or restarted, and some other service
+    // may now be listening on the cached channel.  Anything but a version 3
+    // handshake reply there is a cache miss.
+    if (sock >= 0 && (negotiate_protocol(sock) < 0 ||
+		      protocol_version == VERSION_LEGACY)) {
+      close(sock);
+      sock = -1;
+      discard_handshake_reply = false;
+      protocol_version = VERSION_LEGACY;
+      frame_size = LEGACY_BLOCK_SIZE;
+    }
+    if (sock < 0) {
+      printf("Cached channel failed.\n");
+      if (!address) {
+	free(cached_addr);
+	bt_addr = discover_address();
+	if (!bt_addr) {
+	  usage(command);
+	  return -1;
+	}
       }
+    }
+  }
 
-      connect_attempts++;
-    } else {
-      perror("Failed to connect.");
+  if (sock < 0) {
+    printf("Searching for service with UUID %s.\n", SCHMEEP_UUID);
+    channel = find_service_channel(bt_addr);
+
+    if (channel < 0) {
+      fprintf(stderr, "Service not found\n");
+      return -1;
+    }
+
+    printf("Connecting to %s on channel %d.\n", bt_addr, channel);
+    sock = connect_to_channel(bt_addr, channel);
+    if (sock < 0) {
+      return -1;
+    }
+    if (negotiate_protocol(sock) < 0) {
       close(sock);
+      return -1;
+    }
+  }
+  save_cached_address(bt_addr, channel);
+  if (!address) {
+    free((char *)bt_addr);
+  }
+  return sock;
+}
+
+int main(int argc, char *argv[]) {
+  const char *address = NULL;
+  uint32_t heap_kb = 0;
+  const char *tcp = NULL;
+  uint32_t time_ms = 0;
+
+  for (int i = 1; i < argc; i++) {
+    if (strcmp(argv[i], "--batch") == 0 && i + 1 < argc) {
+      batch.path = argv[++i];
+    } else if (strcmp(argv[i], "--heap-limit") == 0 && i + 1 < argc) {
+      heap_kb = strtoul(argv[++i], NULL, 10);
+    } else if (strcmp(argv[i], "--tcp") == 0 && i + 1 < argc) {
+      tcp = argv[++i];
+    } else if (strcmp(argv[i], "--time-limit") == 0 && i + 1 < argc) {
+      time_ms = strtoul(argv[++i], NULL, 10);
+    } else if (strcmp(argv[i], "--window") == 0 && i + 1 < argc &&
+	       atoi(argv[i + 1]) > 0) {
+      batch.window = atoi(argv[++i]);
+    } else if (argv[i][0] != '-' && !address && !tcp) {
+      address = argv[i];
+    } else {
+      usage(argv[0]);
       return 1;
     }
   }
+  if (!batch.path && !isatty(STDIN_FILENO)) {
+    batch.path = "-";
+  }
+  batch.active = batch.path != NULL;
+
+  int sock = tcp ? connect_to_tcp(tcp) : connect_to_bluetooth(address, argv[0]);
+
+  if (sock < 0) {
+    return 1;
+  }
 
-  printf("Connected! Starting REPL session.\n");
-  printf("Type Scheme expressions.");
-  printf("  Press Ctrl-C to interrupt long-running evaluations.\n\n");
+  // connect_to_bluetooth has already negotiated, since it needs the handshake
+  // to tell whether the cached channel is still right.
+  if ((tcp && negotiate_protocol(sock) < 0) ||
+      ((time_ms || heap_kb) &&
+       send_budget_command(sock, time_ms, heap_kb) < 0)) {
+    close(sock);
+    return 1;
+  }
+
+  if (!batch.active) {
+    printf("Connected! Starting REPL session.\n");
+    printf("Type Scheme expressions.");
+    printf("  Press Ctrl-C to interrupt long-running evaluations.\n");
+    printf("Enter ,stats to see the app's statistics, or ,upload file... "
+	   "to load files.\n\n");
+  }
 
   struct sigaction sa;
 
@@ -597,10 +1372,13 @@ int main(int argc, char *argv[]) {
     return 1;
   }
 
-  printf("scheme> ");
-  fflush(stdout);
+  if (!batch.active) {
+    printf("scheme> ");
+    fflush(stdout);
+  }
 
-  if (pthread_create(&input_thread_id, NULL, input_thread, &sock) != 0) {
+  if (pthread_create(&input_thread_id, NULL,
+		     batch.active ? batch_thread : input_thread, &sock) != 0) {
     perror("Failed to create input thread.");
     close(sock);
     return 1;
@@ -611,34 +1389,58 @@ int main(int argc, char *argv[]) {
   shutdown(sock, SHUT_RDWR);
   close(sock);
   printf("Connection closed.\n");
-  if (argc == 1 && bt_addr) {
-    free((char *)bt_addr);
+  if (batch.active) {
+    return batch.failed || batch.errors > 0 || batch.completed < batch.count;
   }
   return 0;
 }
 
-int send_expression_in_blocks(int sock, const char *expression) {
-  size_t length = strlen(expression);
+// Send length bytes of data as request id's data blocks, followed by a frame
+// of type final_type, in one write.  Report failure with failure.
+static int send_blocks(int sock, uint32_t id, const char *data, size_t length,
+		       uint8_t final_type, const char *failure) {
+  size_t block_limit = data_block_limit();
+  size_t blocks = length / block_limit + 2;
+  uint8_t *message = malloc(length + blocks * MAX_HEADER_LENGTH);
+
+  if (!message) {
+    perror("Failed to allocate message.");
+    return -1;
+  }
+
+  size_t message_length = 0;
   size_t sent = 0;
 
   while (sent < length) {
     size_t remaining = length - sent;
-    size_t block_size = (remaining >= CMD_C2A_MIN_COMMAND)
-			    ? CMD_C2A_MIN_COMMAND - 1
-			    : remaining;
+    size_t block_size = remaining > block_limit ? block_limit : remaining;
 
-    if (send_data_block(sock, expression + sent, block_size) < 0) {
-      return -1;
-    }
+    message_length +=
+	encode_header(message + message_length, FRAME_DATA, id, block_size);
+    memcpy(message + message_length, data + sent, block_size);
+    message_length += block_size;
     sent += block_size;
   }
+  message_length += encode_header(message + message_length, final_type, id, 0);
 
-  return send_evaluate_command(sock);
+  int result = send_all(sock, message, message_length);
+
+  if (result < 0) {
+    perror(failure);
+  }
+  free(message);
+  return result;
+}
+
+// Send the expression's data blocks and the evaluate command, as request id,
+// in one write.
+int send_expression_in_blocks(int sock, uint32_t id, const char *expression) {
+  return send_blocks(sock, id, expression, strlen(expression), FRAME_EVALUATE,
+		     "Failed to send expression.");
 }
 
 void *input_thread(void *arg) {
   int sock = *(int *)arg;
-  bool stdin_is_terminal = isatty(STDIN_FILENO);
 
   while (1) {
 
@@ -652,18 +1454,436 @@ void *input_thread(void *arg) {
       break;
     }
 
-    if (send_expression_in_blocks(sock, line) < 0) {
+    bool stats = strncmp(line, ",stats", 6) == 0 &&
+		 (line[6] == '\0' || isspace((unsigned char)line[6]));
+    bool upload = strncmp(line, ",upload", 7) == 0 &&
+		  (line[7] == '\0' || isspace((unsigned char)line[7]));
+    int sent = stats    ? send_stats_command(sock)
+	       : upload ? send_upload(sock, line + 7)
+			: send_expression_in_blocks(sock, 0, line);
+
+    if (sent < 0) {
       fprintf(stderr, "Failed to send expression.\n");
       free(line);
       break;
     }
 
     free(line);
+  }
+
+  return NULL;
+}
+
+static const char *datum_end(const char *p);
 
-    if (!stdin_is_terminal) {
+static bool is_delimiter(char c) {
+  return c == '\0' || isspace((unsigned char)c) || strchr("()[]\";", c);
+}
+
+// Return the first character at or after p that isn't whitespace or part of
+// a comment, or NULL if a comment is incomplete.
+static const char *skip_atmosphere(const char *p) {
+  while (1) {
+    if (isspace((unsigned char)*p)) {
+      p++;
+    } else if (*p == ';') {
+      while (*p && *p != '\n') {
+	p++;
+      }
+    } else if (p[0] == '#' && p[1] == '|') {
+      int depth = 1;
+
+      for (p += 2; depth > 0; p++) {
+	if (!*p) {
+	  return NULL;
+	} else if (p[0] == '#' && p[1] == '|') {
+	  depth++;
+	  p++;
+	} else if (p[0] == '|' && p[1] == '#') {
+	  depth--;
+	  p++;
+	}
+      }
+    } else if (p[0] == '#' && p[1] == ';') {
+      p = skip_atmosphere(p + 2);
+      if (!p || !*p || !(p = datum_end(p))) {
+	return NULL;
+      }
+    } else {
+      return p;
+    }
+  }
+}
+
+// Return the end of the string or symbol starting at p and ending with the
+// first unescaped occurrence of its opening delimiter, or NULL.
+static const char *quoted_end(const char *p) {
+  char delimiter = *p++;
+
+  for (; *p != delimiter; p++) {
+    if (!*p || (*p == '\\' && !*++p)) {
+      return NULL;
+    }
+  }
+  return p + 1;
+}
+
+// Return the end of the datum starting at p, or NULL if it is incomplete.
+static const char *datum_end(const char *p) {
+  int depth = 0;
+
+  while (1) {
+    if (!(p = skip_atmosphere(p)) || !*p) {
+      return NULL;
+    }
+    if (*p == '\'' || *p == '`' || *p == ',') {
+      p += p[0] == ',' && p[1] == '@' ? 2 : 1;
+      continue;
+    }
+    if (*p == '(' || *p == '[') {
+      depth++;
+      p++;
+      continue;
+    }
+    if (strncmp(p, "#(", 2) == 0 || strncmp(p, "#u8(", 4) == 0) {
+      depth++;
+      p = strchr(p, '(') + 1;
+      continue;
+    }
+    if (*p == ')' || *p == ']') {
+      depth -= depth > 0;
+      p++;
+    } else if (*p == '"' || *p == '|') {
+      if (!(p = quoted_end(p))) {
+	return NULL;
+      }
+    } else {
+      if (strncmp(p, "#\\", 2) == 0 && p[2]) {
+	p += 3;
+      }
+      while (!is_delimiter(*p)) {
+	p++;
+      }
+    }
+    if (depth == 0) {
+      return p;
+    }
+  }
+}
+
+static int count_lines(const char *start, const char *end) {
+  int lines = 0;
+
+  for (; start < end; start++) {
+    lines += *start == '\n';
+  }
+  return lines;
+}
+
+// Read all of the file at path, or standard input if path is "-".  Return a
+// null-terminated copy, or NULL, and store its length in *length_out.
+static char *read_all(const char *path, size_t *length_out) {
+  FILE *file = strcmp(path, "-") == 0 ? stdin : fopen(path, "r");
+
+  if (!file) {
+    perror(path);
+    return NULL;
+  }
+
+  size_t capacity = 4096;
+  size_t length = 0;
+  char *text = malloc(capacity);
+
+  while (text) {
+    length += fread(text + length, 1, capacity - length - 1, file);
+    if (length < capacity - 1) {
       break;
     }
+    capacity *= 2;
+
+    char *larger = realloc(text, capacity);
+
+    if (!larger) {
+      free(text);
+    }
+    text = larger;
   }
+  if (file != stdin) {
+    fclose(file);
+  }
+  if (!text) {
+    perror(path);
+    return NULL;
+  }
+  text[length] = '\0';
+  *length_out = length;
+  return text;
+}
+
+// Split text into top-level forms.  Store copies of them in *forms and the
+// lines where they start in *lines, and return how many there are.  Return -1
+// if the last form is incomplete, storing the line where it starts in
+// (*lines)[0].
+static int split_forms(const char *text, char ***forms, int **lines) {
+  int capacity = 0;
+  int count = 0;
+  int line = 1;
+  const char *p = text;
+
+  *forms = NULL;
+  *lines = NULL;
+  while (1) {
+    const char *start = skip_atmosphere(p);
 
+    if (start) {
+      line += count_lines(p, start);
+      if (!*start) {
+	return count;
+      }
+    }
+
+    const char *end = start ? datum_end(start) : NULL;
+
+    if (count == capacity) {
+      capacity = capacity ? capacity * 2 : 64;
+      *forms = realloc(*forms, capacity * sizeof(**forms));
+      *lines = realloc(*lines, capacity * sizeof(**lines));
+      if (!*forms || !*lines) {
+	perror("Failed to split batch.");
+	exit(1);
+      }
+    }
+    (*lines)[count] = line;
+    if (!end) {
+      for (int i = 0; i < count; i++) {
+	free((*forms)[i]);
+      }
+      (*lines)[0] = line;
+      return -1;
+    }
+    (*forms)[count++] = strndup(start, end - start);
+    line += count_lines(start, end);
+    p = end;
+  }
+}
+
+// Send the forms in batch.path, keeping up to batch.window of them in flight,
+// wait for their results, and summarize them.  Close the connection when
+// done, so that the protocol handler exits, too.
+void *batch_thread(void *arg) {
+  int sock = *(int *)arg;
+  size_t length;
+  char *text = read_all(batch.path, &length);
+  char **forms = NULL;
+  int *lines = NULL;
+  int count = text ? split_forms(text, &forms, &lines) : -1;
+  struct timespec start;
+
+  if (count < 0) {
+    if (text) {
+      fprintf(stderr, "Incomplete form at line %d.\n", lines[0]);
+    }
+    pthread_mutex_lock(&batch_mutex);
+    batch.failed = true;
+    pthread_mutex_unlock(&batch_mutex);
+    goto done;
+  }
+  batch.forms = calloc(count ? count : 1, sizeof(*batch.forms));
+  if (!batch.forms) {
+    perror("Failed to allocate batch.");
+    batch.failed = true;
+    goto done;
+  }
+  batch.count = count;
+  clock_gettime(CLOCK_MONOTONIC, &start);
+  for (int i = 0; i < count; i++) {
+    pthread_mutex_lock(&batch_mutex);
+    while (batch.sent - batch.completed >= batch.window && !batch.closed) {
+      pthread_cond_wait(&batch_cond, &batch_mutex);
+    }
+
+    bool closed = batch.closed;
+
+    if (!closed) {
+      batch.forms[i].line = lines[i];
+      clock_gettime(CLOCK_MONOTONIC, &batch.forms[i].sent);
+      batch.sent++;
+    }
+    pthread_mutex_unlock(&batch_mutex);
+    if (closed || send_expression_in_blocks(sock, i + 1, forms[i]) < 0) {
+      break;
+    }
+  }
+
+  pthread_mutex_lock(&batch_mutex);
+  while (batch.completed < batch.sent && !batch.closed) {
+    pthread_cond_wait(&batch_cond, &batch_mutex);
+  }
+
+  struct timespec end;
+
+  clock_gettime(CLOCK_MONOTONIC, &end);
+
+  double seconds = milliseconds_between(&start, &end) / 1000.0;
+
+  fprintf(stderr, ";; %d of %d forms evaluated, %d errors, %.3f s, "
+		  "%.1f forms/s.\n",
+	  batch.completed, count, batch.errors, seconds,
+	  seconds > 0 ? batch.completed / seconds : 0.0);
+  pthread_mutex_unlock(&batch_mutex);
+
+done:
+  for (int i = 0; i < count; i++) {
+    free(forms[i]);
+  }
+  free(forms);
+  free(lines);
+  free(text);
+  shutdown(sock, SHUT_RDWR);
   return NULL;
 }
+
+// Read the files named in arguments, separated by whitespace, and hash them.
+// Store them in *files and return how many there are, or -1 if one couldn't
+// be read.
+static int read_upload_files(char *arguments, struct upload_file **files) {
+  int count = 0;
+
+  *files = NULL;
+  for (char *name = strtok(arguments, " \t\r\n"); name;
+       name = strtok(NULL, " \t\r\n")) {
+    *files = realloc(*files, (count + 1) * sizeof(**files));
+    if (!*files) {
+      perror("Failed to allocate upload.");
+      exit(1);
+    }
+
+    struct upload_file *file = &(*files)[count];
+
+    file->content = read_all(name, &file->length);
+    if (!file->content) {
+      for (int i = 0; i < count; i++) {
+	free((*files)[i].content);
+      }
+      return -1;
+    }
+    file->name = name;
+    sha256_hex(file->content, file->length, file->hash);
+    count++;
+  }
+  return count;
+}
+
+// Send the manifest of upload.id, whose length is length, listing the hash and
+// name of each file, and wait for the app's list of the files that it lacks.
+// Store that list in *missing, or NULL if the request ended without one.
+static int request_missing_files(int sock, struct upload_file *files,
+				 int count, size_t length, char **missing) {
+  uint8_t *frame = malloc(MAX_HEADER_LENGTH + length + 1);
+
+  if (!frame) {
+    perror("Failed to allocate manifest.");
+    exit(1);
+  }
+
+  size_t header_length = encode_header(frame, FRAME_UPLOAD, upload.id, length);
+  char *manifest = (char *)frame + header_length;
+
+  for (int i = 0; i < count; i++) {
+    manifest += sprintf(manifest, "%s  %s\n", files[i].hash, files[i].name);
+  }
+
+  int sent = send_all(sock, frame, header_length + length);
+
+  free(frame);
+  *missing = NULL;
+  if (sent < 0) {
+    perror("Failed to send upload manifest.");
+    return -1;
+  }
+  pthread_mutex_lock(&batch_mutex);
+  while (!upload.answered && !batch.closed) {
+    pthread_cond_wait(&batch_cond, &batch_mutex);
+  }
+  *missing = upload.missing;
+  upload.missing = NULL;
+  upload.missing_length = 0;
+  pthread_mutex_unlock(&batch_mutex);
+  if (*missing && !missing_list_complete(*missing)) {
+    free(*missing);
+    *missing = NULL;
+  }
+  return 0;
+}
+
+// Upload the files named in arguments, separated by whitespace, as one
+// request, then load them, in order.  The app keeps the files that it receives
+// in a store named by their SHA-256 hashes, so only the ones that it doesn't
+// already have are sent.  Only version 3 of the protocol has this command.
+int send_upload(int sock, char *arguments) {
+  if (protocol_version < VERSION_TAGGED) {
+    printf("The app doesn't support ,upload.\nscheme> ");
+    fflush(stdout);
+    return 0;
+  }
+
+  struct upload_file *files;
+  int count = read_upload_files(arguments, &files);
+  size_t length = 0;
+
+  for (int i = 0; i < count; i++) {
+    length += SHA256_HEX_LENGTH + strlen(files[i].name) + 3;
+  }
+  if (count <= 0 || length > data_block_limit()) {
+    if (count == 0) {
+      printf("Usage: ,upload file...\n");
+    } else if (count > 0) {
+      printf("Too many files to upload at once.\n");
+      for (int i = 0; i < count; i++) {
+	free(files[i].content);
+      }
+    }
+    printf("scheme> ");
+    fflush(stdout);
+    free(files);
+    return 0;
+  }
+  pthread_mutex_lock(&batch_mutex);
+  upload.answered = false;
+  upload.id++;
+  pthread_mutex_unlock(&batch_mutex);
+
+  char *missing;
+  int result = request_missing_files(sock, files, count, length, &missing);
+
+  if (missing) {
+    char *line = strchr(missing, '\n') + 1;
+    size_t bytes = 0;
+    int stored = 0;
+
+    for (char *end; result == 0 && (end = strchr(line, '\n')); line = end + 1) {
+      *end = '\0';
+      for (int i = 0; i < count; i++) {
+	if (strcmp(line, files[i].hash) == 0) {
+	  result = send_blocks(sock, upload.id, files[i].content,
+			       files[i].length, FRAME_STORE,
+			       "Failed to send uploaded file.");
+	  bytes += files[i].length;
+	  stored++;
+	  break;
+	}
+      }
+    }
+    if (result == 0) {
+      printf(";; Sent %d of %d files, %zu bytes.\n", stored, count, bytes);
+      fflush(stdout);
+      result = send_evaluate_command(sock, upload.id);
+    }
+    free(missing);
+  }
+  for (int i = 0; i < count; i++) {
+    free(files[i].content);
+  }
+  free(files);
+  return result;
+}
\ No newline at end of file
@@ -5,257 +5,430 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.util.Log;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+// Prepare TARGET_BASE, Chibi's module path.  It holds BOOTSTRAP_FILES,
+// extracted from the APK, and links to SHARED_LIBRARIES.  The build generates
+// MANIFEST, the SHA-256 hash of every asset under lib/.  A copy of it is kept
+// next to the version marker after each extraction, so an upgrade only
+// rewrites the files whose hashes changed.
 public class Assets {
     private static final String LOG_TAG = "schmeep";
 
-    private static final String[] ESSENTIAL_FILES = {
-	"eg.scm",
-	"schmeep/exception-formatter.sld",
-	"chibi/ast.scm",
-	"chibi/ast.sld",
+    private static final int BUFFER_SIZE = 65536;
+    private static final int EXTRACTION_THREADS = 4;
+    private static final int IMAGE_KEY_LENGTH = 16;
+    private static final String IMAGE_MANIFEST = ".image_libraries";
+    private static final String INSTALLED_MANIFEST = ".assets_manifest";
+    private static final String MANIFEST = "assets.sha256";
+    private static final String MARKER = ".assets_timestamp";
+    static final String TARGET_BASE = "/data/data/com.speechcode.schmeep/lib";
+
+    // Everything else is read straight from the APK, by the module loader in
+    // lib/schmeep/asset-modules.scm, but sexp_load_standard_env needs these
+    // before that loader exists.
+    private static final String[] BOOTSTRAP_FILES = {"init-7.scm",
+						      "meta-7.scm"};
+
+    // Native libraries whose code a heap image depends on, from the native
+    // library directory.
+    private static final String[] IMAGE_LIBRARIES = {"libchibi-scheme.so",
+						     "libschmeep.so"};
+
+    // The build installs these in the native library directory, with names
+    // made by nativeLibraryName().  Chibi finds them on the module path
+    // through symbolic links.
+    private static final String[] SHARED_LIBRARIES = {
 	"chibi/ast.so",
-	"chibi/char-set.sld",
-	"chibi/char-set/ascii.scm",
-	"chibi/char-set/ascii.sld",
-	"chibi/char-set/base.sld",
-	"chibi/char-set/boundary.scm",
-	"chibi/char-set/boundary.sld",
-	"chibi/char-set/extras.scm",
-	"chibi/char-set/extras.sld",
-	"chibi/char-set/full.scm",
-	"chibi/char-set/full.sld",
-	"chibi/disasm.sld",
 	"chibi/disasm.so",
-	"chibi/equiv.scm",
-	"chibi/equiv.sld",
-	"chibi/heap-stats.sld",
 	"chibi/heap-stats.so",
-	"chibi/io.sld",
-	"chibi/io/io.scm",
 	"chibi/io/io.so",
 	"chibi/io/port.so",
-	"chibi/iset.sld",
-	"chibi/iset/base.scm",
-	"chibi/iset/base.sld",
-	"chibi/iset/constructors.scm",
-	"chibi/iset/constructors.sld",
-	"chibi/iset/iterators.scm",
-	"chibi/iset/iterators.sld",
-	"chibi/iset/optimize.scm",
-	"chibi/iset/optimize.sld",
-	"chibi/json.scm",
-	"chibi/json.sld",
 	"chibi/json.so",
-	"chibi/optimize.scm",
-	"chibi/optimize/profile.scm",
 	"chibi/optimize/profile.so",
-	"chibi/optimize/rest.scm",
 	"chibi/optimize/rest.so",
-	"chibi/string.scm",
-	"chibi/string.sld",
-	"chibi/sxml.scm",
-	"chibi/sxml.sld",
-	"chibi/weak.sld",
 	"chibi/weak.so",
-	"init-7.scm",
-	"meta-7.scm",
-	"scheme/base.sld",
-	"scheme/case-lambda.sld",
-	"scheme/char.sld",
-	"scheme/complex.sld",
-	"scheme/cxr.scm",
-	"scheme/cxr.sld",
-	"scheme/define-values.scm",
-	"scheme/digit-value.scm",
-	"scheme/division.scm",
-	"scheme/eval.sld",
-	"scheme/extras.scm",
-	"scheme/file.sld",
-	"scheme/inexact.scm",
-	"scheme/inexact.sld",
-	"scheme/misc-macros.scm",
-	"scheme/lazy.sld",
-	"scheme/list.sld",
-	"scheme/load.sld",
-	"scheme/process-context.sld",
-	"scheme/r5rs.sld",
-	"scheme/read.sld",
-	"scheme/repl.sld",
-	"scheme/time.sld",
 	"scheme/time.so",
-	"scheme/write.sld",
-	"srfi/1.sld",
-	"srfi/1/alists.scm",
-	"srfi/1/constructors.scm",
-	"srfi/1/deletion.scm",
-	"srfi/1/fold.scm",
-	"srfi/1/lset.scm",
-	"srfi/1/misc.scm",
-	"srfi/1/predicates.scm",
-	"srfi/1/search.scm",
-	"srfi/1/selectors.scm",
-	"srfi/9.scm",
-	"srfi/9.sld",
-	"srfi/11.sld",
-	"srfi/18.sld",
-	"srfi/18/interface.scm",
 	"srfi/18/threads.so",
-	"srfi/18/types.scm",
-	"srfi/27.sld",
-	"srfi/27/constructors.scm",
 	"srfi/27/rand.so",
-	"srfi/38.scm",
-	"srfi/38.sld",
-	"srfi/39.sld",
 	"srfi/39/param.so",
-	"srfi/39/syntax.scm",
-	"srfi/69.sld",
 	"srfi/69/hash.so",
-	"srfi/69/interface.scm",
-	"srfi/69/type.scm",
-	"srfi/95.sld",
 	"srfi/95/qsort.so",
-	"srfi/95/sort.scm",
-	"srfi/98.sld",
 	"srfi/98/env.so",
-	"srfi/99.sld",
-	"srfi/99/records.sld",
-	"srfi/99/records/inspection.scm",
-	"srfi/99/records/inspection.sld",
-	"srfi/99/records/procedural.scm",
-	"srfi/99/records/procedural.sld",
-	"srfi/99/records/syntactic.scm",
-	"srfi/99/records/syntactic.sld",
-	"srfi/144.sld",
-	"srfi/144/flonum.scm",
 	"srfi/144/lgamma_r.so",
-	"srfi/151.sld",
-	"srfi/151/bit.so",
-	"srfi/151/bitwise.scm"};
+	"srfi/151/bit.so"};
 
-    private static boolean emptyDirectory(File dir) {
-	File[] files = dir.listFiles();
+    // Copy each of BOOTSTRAP_FILES whose contents differ from what is
+    // installed, and remove any other files extracted by earlier versions.
+    public static boolean extractAssets(Context context) {
+	AssetManager assetManager = context.getAssets();
+	File baseDir = new File(TARGET_BASE);
 
-	if (files != null) {
-	    for (File file : files) {
-		if (file.isDirectory()) {
-		    if (!emptyDirectory(file)) {
-			Log.e(LOG_TAG,
-			      "Failed to delete: " + file.getAbsolutePath());
-			return false;
-		    }
-		}
-		if (!file.delete()) {
-		    Log.e(LOG_TAG,
-			  "Failed to delete: " + file.getAbsolutePath());
-		    return false;
-		}
+	if (!baseDir.exists() && !baseDir.mkdirs()) {
+	    Log.e(LOG_TAG, "Failed to create base directory: " + TARGET_BASE);
+	    return false;
+	}
+
+	Map<String, String> wanted = readAssetManifest(assetManager);
+	Map<String, String> installed =
+	    readManifest(new File(baseDir, INSTALLED_MANIFEST));
+	List<String> changed = new ArrayList<>();
+	Map<String, String> extracted = new HashMap<>();
+
+	for (String assetPath : BOOTSTRAP_FILES) {
+	    String hash = wanted.get(assetPath);
+	    File target = new File(baseDir, assetPath);
+
+	    if (hash != null && target.exists() &&
+		hash.equals(installedHash(installed, assetPath, target))) {
+		extracted.put(assetPath, hash);
+	    } else {
+		changed.add(assetPath);
+	    }
+	}
+	Log.i(LOG_TAG, "Extracting " + changed.size() + " of " +
+			   BOOTSTRAP_FILES.length + " bootstrap files.");
+
+	if (!extractInParallel(assetManager, baseDir, changed)) {
+	    return false;
+	}
+	for (String assetPath : changed) {
+	    if (wanted.containsKey(assetPath)) {
+		extracted.put(assetPath, wanted.get(assetPath));
 	    }
 	}
+	removeObsoleteFiles(baseDir, baseDir);
+
+	try {
+	    writeManifest(new File(baseDir, INSTALLED_MANIFEST), extracted);
+	} catch (IOException e) {
+	    Log.e(LOG_TAG,
+		  "Error writing installed manifest: " + e.getMessage());
+	    return false;
+	}
+	Log.i(LOG_TAG, "Bootstrap file extraction complete: " +
+			   changed.size() + " files extracted.");
 	return true;
     }
 
-    public static boolean extractAssets(Context context) {
-	AssetManager assetManager = context.getAssets();
-	String targetBase = "/data/data/com.speechcode.schmeep/lib";
+    // Copy assetPath to a temporary file next to targetFile, then rename it,
+    // so that targetFile is never seen partly written.
+    private static void extractAssetFile(AssetManager assetManager,
+					 String assetPath, File targetFile)
+	throws IOException {
+	File parentDir = targetFile.getParentFile();
+
+	if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs() &&
+	    !parentDir.exists()) {
+	    throw new IOException("Failed to create parent directory: " +
+				  parentDir.getAbsolutePath());
+	}
 
-	File baseDir = new File(targetBase);
+	File tempFile = new File(parentDir, targetFile.getName() + ".tmp");
 
-	if (baseDir.exists()) {
-	    if (!emptyDirectory(baseDir)) {
-		Log.i(LOG_TAG, "Failed to empty directory: " +
-				   baseDir.getAbsolutePath());
-		return false;
+	try (InputStream inputStream = assetManager.open(assetPath);
+	     FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+	    long totalBytes = inputStream.transferTo(outputStream);
+
+	    outputStream.getFD().sync();
+	    Log.d(LOG_TAG,
+		  "Extracted " + assetPath + " (" + totalBytes + " bytes).");
+	} catch (IOException e) {
+	    tempFile.delete();
+	    throw e;
+	}
+
+	Files.move(tempFile.toPath(), targetFile.toPath(),
+		   StandardCopyOption.ATOMIC_MOVE,
+		   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean extractInParallel(AssetManager assetManager,
+					     File baseDir,
+					     List<String> assetPaths) {
+	if (assetPaths.isEmpty()) {
+	    return true;
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(
+	    Math.min(EXTRACTION_THREADS, assetPaths.size()));
+	List<Future<?>> futures = new ArrayList<>();
+
+	try {
+	    for (String assetPath : assetPaths) {
+		futures.add(pool.submit(() -> {
+		    extractAssetFile(assetManager, "lib/" + assetPath,
+				     new File(baseDir, assetPath));
+		    return null;
+		}));
 	    }
-	    Log.i(LOG_TAG, "Emptied directory: " + baseDir.getAbsolutePath());
-	} else if (!baseDir.mkdirs()) {
-	    Log.e(LOG_TAG, "Failed to create base directory: " + targetBase);
+	    for (int i = 0; i < futures.size(); i++) {
+		try {
+		    futures.get(i).get();
+		} catch (ExecutionException e) {
+		    Log.e(LOG_TAG, "Error extracting " + assetPaths.get(i) +
+				       ": " + e.getCause().getMessage());
+		    return false;
+		}
+	    }
+	    return true;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
 	    return false;
+	} finally {
+	    pool.shutdownNow();
 	}
+    }
 
-	Log.i(LOG_TAG, "Starting essential Scheme library extraction.");
+    // Point a link on the module path at each of SHARED_LIBRARIES.  The
+    // native library directory changes whenever the app is installed, so this
+    // is checked on every start.
+    public static void linkSharedLibraries(Context context) {
+	File nativeDir =
+	    new File(context.getApplicationInfo().nativeLibraryDir);
+	int linked = 0;
 
-	int count = 0;
-	for (String assetPath : ESSENTIAL_FILES) {
-	    String targetPath = targetBase + "/" + assetPath;
-	    String sourceAssetPath = "lib/" + assetPath;
+	for (String path : SHARED_LIBRARIES) {
+	    Path link = new File(TARGET_BASE, path).toPath();
+	    Path target = new File(nativeDir, nativeLibraryName(path)).toPath();
 
 	    try {
-		if (extractAssetFile(assetManager, sourceAssetPath,
-				     targetPath)) {
-		    count++;
-		    if (assetPath.endsWith(".so")) {
-			Log.i(LOG_TAG,
-			      "Extracted shared library: " + assetPath);
-		    } else {
-			Log.i(LOG_TAG,
-			      "Extracted essential file: " + assetPath);
-		    }
-		} else {
-		    Log.e(LOG_TAG, "Failed to extract: " + assetPath);
-		    return false;
+		if (Files.isSymbolicLink(link) &&
+		    Files.readSymbolicLink(link).equals(target)) {
+		    continue;
 		}
+		Files.createDirectories(link.getParent());
+		Files.deleteIfExists(link);
+		Files.createSymbolicLink(link, target);
+		linked++;
 	    } catch (IOException e) {
-		Log.e(LOG_TAG,
-		      "Error extracting " + assetPath + ": " + e.getMessage());
-		return false;
+		Log.e(LOG_TAG, "Error linking " + path + ": " + e.getMessage());
 	    }
 	}
+	if (linked > 0) {
+	    Log.i(LOG_TAG, "Linked " + linked + " shared libraries.");
+	}
+    }
 
-	if (count > 0) {
-	    Log.i(LOG_TAG, "Essential file extraction complete: " + count +
-			       " files extracted.");
-	    return true;
-	} else {
-	    Log.e(LOG_TAG, "No essential files extracted.");
-	    return false;
+    // The APK may only hold native libraries named lib*.so at the top of its
+    // library directory, so e.g. srfi/69/hash.so becomes libsrfi_69_hash.so.
+    // The Makefile must agree.
+    static String nativeLibraryName(String path) {
+	return "lib" + path.replace('/', '_');
+    }
+
+    private static String hashFile(File file) throws IOException {
+	MessageDigest digest;
+
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException(e);
+	}
+	try (InputStream input = new FileInputStream(file)) {
+	    byte[] buffer = new byte[BUFFER_SIZE];
+	    int n;
+
+	    while ((n = input.read(buffer)) != -1) {
+		digest.update(buffer, 0, n);
+	    }
+	}
+
+	StringBuilder hex = new StringBuilder();
+
+	for (byte b : digest.digest()) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.toString();
+    }
+
+    // Return the recorded hash of an installed file.  If there is no record,
+    // e.g. because the files were extracted by an older version, hash the
+    // file itself, since reading it is cheaper than rewriting it.
+    private static String installedHash(Map<String, String> installed,
+					String assetPath, File target) {
+	String hash = installed.get(assetPath);
+
+	if (hash != null) {
+	    return hash;
+	}
+	try {
+	    return hashFile(target);
+	} catch (IOException e) {
+	    return null;
 	}
     }
 
-    private static boolean extractAssetFile(AssetManager assetManager,
-					    String assetPath, String targetPath)
+    // Return a key for the heap image that this installation would save: a
+    // hash of MANIFEST, which covers the source of every library, and of
+    // IMAGE_LIBRARIES, which include Chibi itself.  Unlike the app's version,
+    // it only changes when something that the image holds changes, so an
+    // image survives upgrades that leave Scheme alone.
+    //
+    // The hashes of IMAGE_LIBRARIES are kept in IMAGE_MANIFEST, by name, size,
+    // and modification time, since those change whenever the app is
+    // installed.  That way the libraries are only read after an install.
+    static String imageKey(Context context) throws IOException {
+	MessageDigest digest;
+
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException(e);
+	}
+	try (InputStream input = context.getAssets().open("lib/" + MANIFEST)) {
+	    byte[] buffer = new byte[BUFFER_SIZE];
+	    int n;
+
+	    while ((n = input.read(buffer)) != -1) {
+		digest.update(buffer, 0, n);
+	    }
+	}
+
+	File nativeDir =
+	    new File(context.getApplicationInfo().nativeLibraryDir);
+	File manifestFile = new File(TARGET_BASE, IMAGE_MANIFEST);
+	Map<String, String> cached = readManifest(manifestFile);
+	Map<String, String> current = new HashMap<>();
+
+	for (String library : IMAGE_LIBRARIES) {
+	    File file = new File(nativeDir, library);
+	    String stamp =
+		library + " " + file.length() + " " + file.lastModified();
+	    String hash = cached.get(stamp);
+
+	    if (hash == null) {
+		hash = hashFile(file);
+	    }
+	    current.put(stamp, hash);
+	    digest.update(hash.getBytes(StandardCharsets.UTF_8));
+	}
+	if (!current.equals(cached)) {
+	    try {
+		writeManifest(manifestFile, current);
+	    } catch (IOException e) {
+		Log.w(LOG_TAG,
+		      "Error writing image manifest: " + e.getMessage());
+	    }
+	}
+
+	StringBuilder hex = new StringBuilder();
+
+	for (byte b : digest.digest()) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.substring(0, IMAGE_KEY_LENGTH);
+    }
+
+    // Parse the output of sha256sum: a hash, two spaces, and a path on each
+    // line.
+    private static Map<String, String> parseManifest(InputStream input)
 	throws IOException {
-	File targetFile = new File(targetPath);
-	File parentDir = targetFile.getParentFile();
+	Map<String, String> manifest = new HashMap<>();
+	BufferedReader reader = new BufferedReader(
+	    new InputStreamReader(input, StandardCharsets.UTF_8));
+	String line;
 
-	if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
-	    Log.e(LOG_TAG, "Failed to create parent directory: " +
-			       parentDir.getAbsolutePath());
-	    return false;
+	while ((line = reader.readLine()) != null) {
+	    int space = line.indexOf(' ');
+
+	    if (space > 0 && line.length() > space + 2) {
+		manifest.put(line.substring(space + 2),
+			     line.substring(0, space));
+	    }
 	}
+	return manifest;
+    }
 
-	try (InputStream inputStream = assetManager.open(assetPath);
-	     FileOutputStream outputStream = new FileOutputStream(targetFile)) {
-	    long totalBytes = inputStream.transferTo(outputStream);
+    private static Map<String, String>
+    readAssetManifest(AssetManager assetManager) {
+	try (InputStream input = assetManager.open("lib/" + MANIFEST)) {
+	    return parseManifest(input);
+	} catch (IOException e) {
+	    Log.w(LOG_TAG, "No asset manifest.  Extracting every file.");
+	    return new HashMap<>();
+	}
+    }
+
+    // Delete the regular files under dir that aren't bootstrap files,
+    // bookkeeping, or heap images, e.g. libraries extracted by earlier
+    // versions.  Links are left alone.  ChibiScheme removes stale images.
+    private static void removeObsoleteFiles(File baseDir, File dir) {
+	File[] files = dir.listFiles();
+
+	if (files == null) {
+	    return;
+	}
 
-	    outputStream.flush();
+	List<String> keep = new ArrayList<>(Arrays.asList(BOOTSTRAP_FILES));
 
-	    if (targetPath.endsWith(".so")) {
-		if (!targetFile.setExecutable(true)) {
-		    Log.w(LOG_TAG, "Failed to set executable permissions on: " +
-				       targetPath);
-		}
+	keep.add(IMAGE_MANIFEST);
+	keep.add(INSTALLED_MANIFEST);
+	keep.add(MARKER);
+	for (File file : files) {
+	    Path path = file.toPath();
+
+	    if (Files.isSymbolicLink(path)) {
+		continue;
+	    }
+	    if (file.isDirectory()) {
+		removeObsoleteFiles(baseDir, file);
+		continue;
 	    }
 
-	    Log.d(LOG_TAG,
-		  "Extracted " + assetPath + " (" + totalBytes + " bytes).");
-	    return true;
+	    String relative = baseDir.toPath().relativize(path).toString();
 
+	    if (!keep.contains(relative) &&
+		!relative.startsWith(ChibiScheme.HEAP_IMAGE_PREFIX) &&
+		file.delete()) {
+		Log.i(LOG_TAG, "Removed obsolete file: " + relative);
+	    }
+	}
+    }
+
+    private static Map<String, String> readManifest(File file) {
+	try (InputStream input = new FileInputStream(file)) {
+	    return parseManifest(input);
 	} catch (IOException e) {
-	    Log.e(LOG_TAG, "IOException extracting " + assetPath + ": " +
-			       e.getMessage());
-	    if (targetFile.exists()) {
-		targetFile.delete();
+	    return new HashMap<>();
+	}
+    }
+
+    private static void writeManifest(File file, Map<String, String> manifest)
+	throws IOException {
+	File tempFile = new File(file.getPath() + ".tmp");
+
+	try (OutputStream output = new FileOutputStream(tempFile)) {
+	    for (Map.Entry<String, String> entry : manifest.entrySet()) {
+		output.write((entry.getValue() + "  " + entry.getKey() + "\n")
+				 .getBytes(StandardCharsets.UTF_8));
 	    }
-	    throw e;
 	}
+	Files.move(tempFile.toPath(), file.toPath(),
+		   StandardCopyOption.ATOMIC_MOVE,
+		   StandardCopyOption.REPLACE_EXISTING);
     }
 
     public static void handleAssetExtraction(Context context) {
@@ -273,6 +446,7 @@ public class Assets {
 		Log.i(LOG_TAG,
 		      "Version unchanged.  Skipping asset extraction.");
 	    }
+	    linkSharedLibraries(context);
 	} catch (Exception e) {
 	    Log.e(LOG_TAG, "Error during asset extraction: " + e.getMessage());
 	}
@@ -284,13 +458,13 @@ public class Assets {
 		context.getPackageManager().getPackageInfo(
 		    context.getPackageName(), 0);
 	    long currentVersionCode = packageInfo.versionCode;
-	    File libDir = new File("/data/data/com.speechcode.schmeep/lib");
+	    File libDir = new File(TARGET_BASE);
 
 	    if (!libDir.exists()) {
 		libDir.mkdirs();
 	    }
 
-	    File markerFile = new File(libDir, ".assets_timestamp");
+	    File markerFile = new File(libDir, MARKER);
 
 	    try (FileOutputStream fos = new FileOutputStream(markerFile)) {
 		fos.write(String.valueOf(currentVersionCode).getBytes());
@@ -309,8 +483,7 @@ public class Assets {
 		context.getPackageManager().getPackageInfo(
 		    context.getPackageName(), 0);
 	    long currentVersionCode = packageInfo.versionCode;
-	    File markerFile = new File(
-		"/data/data/com.speechcode.schmeep/lib/.assets_timestamp");
+	    File markerFile = new File(TARGET_BASE, MARKER);
 	    String storedVersionString;
 
 	    try (FileInputStream fis = new FileInputStream(markerFile)) {
@@ -2,64 +2,94 @@ package com.speechcode.schmeep;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
-import android.webkit.WebView;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+// The REPL server.  Clients arrive through Transports: Bluetooth RFCOMM,
+// TCP if the app was built with a TCP_PORT, and in-process loopback clients
+// from connectLoopback().  All of them share the same client limit.
 public class Bluetooth {
+    private static final long ACCEPT_RETRY_INITIAL_MS = 50;
+    private static final long ACCEPT_RETRY_MAX_MS = 3000;
     private static final int BLUETOOTH_REQUEST_CODE = 1001;
-    private static final int CMD_C2A_EVALUATE = 254;
-    private static final int CMD_C2A_INTERRUPT = 255;
-    private static final int CMD_C2A_MIN_COMMAND = CMD_C2A_EVALUATE;
-    private static final byte CMD_A2C_EVALUATION_COMPLETE = (byte)255;
-    private static final int MAX_MESSAGE_LENGTH = 1048576;
-    private static final UUID SCHMEEP_UUID =
-	UUID.fromString("611a1a1a-94ba-11f0-b0a8-5f754c08f133");
-    private static final String SERVICE_NAME = "schmeep";
-    private static final UUID SPP_UUID =
-	UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final int DEFAULT_MAX_CLIENTS = 4;
+    private static final String HEAP_BUDGET_KEY =
+	"com.speechcode.schmeep.HEAP_BUDGET_KB";
+    private static final String MAX_CLIENTS_KEY =
+	"com.speechcode.schmeep.MAX_CLIENTS";
+    private static final String OUTPUT_POLICY_KEY =
+	"com.speechcode.schmeep.OUTPUT_POLICY";
+    private static final String TCP_NETWORK_KEY =
+	"com.speechcode.schmeep.TCP_NETWORK";
+    private static final String TCP_PORT_KEY =
+	"com.speechcode.schmeep.TCP_PORT";
+    private static final String TIME_BUDGET_KEY =
+	"com.speechcode.schmeep.TIME_BUDGET_MS";
+    private static final String UPLOAD_DIRECTORY = "uploads";
     private static final String LOG_TAG = "schmeep";
 
+    private final Budget budget;
     private final AtomicBoolean isRunning;
     private final ChibiScheme chibiScheme;
     private final ExecutorService executorService;
     private final MainActivity mainActivity;
-    private final WebView webView;
+    private final int maxClients;
+    private final SendQueue.Policy outputPolicy;
+    private final PatchQueue patches;
+    private final Set<Session> sessions;
+    private final boolean tcpNetwork;
+    private final int tcpPort;
+    private final List<Transport> transports;
+    private final UploadStore uploadStore;
 
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothServerSocket serverSocket;
-    private BluetoothSocket clientSocket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
     private String connectionStatus;
-    private StringBuilder expressionBuffer;
+    private LoopbackTransport loopback;
 
     public Bluetooth(MainActivity activity, ChibiScheme chibiScheme,
-		     WebView webView) {
+		     PatchQueue patches) {
+	this.budget = readBudget(activity);
 	this.chibiScheme = chibiScheme;
 	this.connectionStatus = "Bluetooth disabled";
-	this.executorService = Executors.newSingleThreadExecutor();
+	this.executorService = Executors.newCachedThreadPool();
 	this.isRunning = new AtomicBoolean(false);
 	this.mainActivity = activity;
-	this.webView = webView;
-	this.expressionBuffer = new StringBuilder();
-	setNativeOutputCallback();
+	this.maxClients = readMaxClients(activity);
+	this.outputPolicy = readOutputPolicy(activity);
+	this.patches = patches;
+	this.sessions = ConcurrentHashMap.newKeySet();
+	this.tcpNetwork = readTcpNetwork(activity);
+	this.tcpPort = readTcpPort(activity);
+	this.transports = new CopyOnWriteArrayList<>();
+	this.uploadStore =
+	    new UploadStore(new File(activity.getFilesDir(), UPLOAD_DIRECTORY));
     }
 
-    private native void setNativeOutputCallback();
+    // Connect a client within the app, and return its end of the
+    // connection, or null if the server isn't running.
+    public synchronized Transport.Connection connectLoopback() {
+	if (!isRunning.get()) {
+	    return null;
+	}
+	if (loopback == null) {
+	    loopback = new LoopbackTransport();
+	    startTransport(loopback);
+	}
+	return loopback.connect();
+    }
 
     public void handleBluetoothPermissionsResult(int requestCode,
 						 String[] permissions,
@@ -74,10 +104,10 @@ public class Bluetooth {
 	    }
 	    if (allGranted) {
 		Log.i(LOG_TAG, "Bluetooth permissions granted.");
-		start();
 	    } else {
 		Log.w(LOG_TAG, "Bluetooth permissions denied.");
 	    }
+	    start();
 	}
     }
 
@@ -85,8 +115,10 @@ public class Bluetooth {
 	if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
 	    if (hasBluetoothPermissions()) {
 		Log.i(LOG_TAG, "Bluetooth permissions already granted.");
-		start();
+	    } else {
+		Log.w(LOG_TAG, "Bluetooth permissions missing.");
 	    }
+	    start();
 	} else {
 	    String[] permissions = {Manifest.permission.BLUETOOTH_CONNECT,
 				    Manifest.permission.BLUETOOTH_ADVERTISE};
@@ -110,200 +142,107 @@ public class Bluetooth {
     }
 
     public void start() {
-	if (isRunning.compareAndSet(false, true)) {
-	    bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-
-	    if (bluetoothAdapter == null) {
-		updateConnectionStatus("bluetooth-not-supported",
-				       "Bluetooth not supported.");
-		isRunning.set(false);
-		return;
-	    }
-
-	    if (!bluetoothAdapter.isEnabled()) {
-		updateConnectionStatus("bluetooth-disabled",
-				       "Bluetooth disabled.");
-		isRunning.set(false);
-		return;
-	    }
-
-	    if (!hasBluetoothPermissions()) {
-		updateConnectionStatus("bluetooth-permissions-required",
-				       "Bluetooth permissions required.");
-		isRunning.set(false);
-		return;
-	    }
-
+	if (!isRunning.compareAndSet(false, true)) {
+	    return;
+	}
+	if (tcpPort > 0) {
 	    try {
-		IOException lastException = null;
-		boolean serviceStarted = false;
-
-		for (UUID uuid : new UUID[] {SCHMEEP_UUID, SPP_UUID}) {
-		    try {
-			serverSocket =
-			    bluetoothAdapter.listenUsingRfcommWithServiceRecord(
-				SERVICE_NAME, uuid);
-			Log.i(
-			    LOG_TAG,
-			    "Started Bluetooth REPL service (secure) with UUID: " +
-				uuid);
-			serviceStarted = true;
-			break;
-		    } catch (IOException e) {
-			lastException = e;
-			Log.w(LOG_TAG, "Failed to start with UUID " + uuid +
-					   ": " + e.getMessage());
-		    }
-		}
-
-		if (!serviceStarted) {
-		    throw lastException != null
-			? lastException
-			: new IOException(
-			      "Could not start any Bluetooth service");
-		}
-
-		updateConnectionStatus(
-		    "awaiting-connection",
-		    "Bluetooth server started.  Waiting for connections.");
-		executorService.execute(this::handleIncomingConnections);
-
+		startTransport(new TcpTransport(tcpPort, tcpNetwork));
+		Log.i(LOG_TAG, "Listening for TCP clients on port " + tcpPort +
+				   (tcpNetwork ? " from the network."
+					       : " from this device."));
 	    } catch (IOException e) {
-		Log.e(LOG_TAG,
-		      "Failed to start Bluetooth server: " + e.getMessage());
-		updateConnectionStatus("failed-to-start",
-				       "Failed to start server: " +
-					   e.getMessage());
-		isRunning.set(false);
+		Log.e(LOG_TAG, "Failed to listen on TCP port " + tcpPort +
+				   ": " + e.getMessage());
 	    }
 	}
+	// Keep running even if neither started, since loopback clients can
+	// still connect.
+	startBluetooth();
     }
 
     public void stop() {
 	if (isRunning.compareAndSet(true, false)) {
-	    Log.i(LOG_TAG, "Stopping Bluetooth REPL service");
+	    Log.i(LOG_TAG, "Stopping REPL service");
 	    updateConnectionStatus("disconnected", "Disconnected.");
 
-	    try {
-		if (serverSocket != null) {
-		    serverSocket.close();
+	    for (Transport transport : transports) {
+		try {
+		    transport.close();
+		} catch (IOException e) {
+		    Log.w(LOG_TAG, "Error closing " + transport.name() +
+				       " transport: " + e.getMessage());
 		}
-	    } catch (IOException e) {
-		Log.w(LOG_TAG,
-		      "Error closing server socket: " + e.getMessage());
-	    }
-
-	    closeClientConnection();
-	    executorService.shutdown();
-	}
-    }
-
-    private void closeClientConnection() {
-	try {
-	    if (inputStream != null) {
-		inputStream.close();
-		inputStream = null;
 	    }
-	} catch (IOException e) {
-	    Log.w(LOG_TAG, "Error closing input stream: " + e.getMessage());
-	}
-
-	try {
-	    if (outputStream != null) {
-		outputStream.close();
-		outputStream = null;
+	    transports.clear();
+	    synchronized (this) {
+		loopback = null;
 	    }
-	} catch (IOException e) {
-	    Log.w(LOG_TAG, "Error closing output stream: " + e.getMessage());
-	}
 
-	try {
-	    if (clientSocket != null) {
-		clientSocket.close();
-		clientSocket = null;
+	    for (Session session : sessions) {
+		session.close();
 	    }
-	} catch (IOException e) {
-	    Log.w(LOG_TAG, "Error closing client socket: " + e.getMessage());
-	}
-
-	expressionBuffer.setLength(0);
-	if (isRunning.get()) {
-	    updateConnectionStatus(
-		"awaiting-connection",
-		"Client disconnected.  Waiting for new connection.");
+	    executorService.shutdown();
 	}
     }
 
-    private void displayExpression(String expression) {
-	executeJavaScriptOnWebView(
-	    String.format("displayBluetoothExpression(\"%s\");",
-			  JavaScript.escape(expression)),
-	    "Executing JavaScript for received Bluetooth expression: " +
-		expression,
-	    "displayExpression");
+    // Add a transcript entry named entry for expression.  See PatchQueue.
+    void displayExpression(String entry, String expression) {
+	Log.d(LOG_TAG,
+	      "Displaying received Bluetooth expression: " + expression);
+	patches.displayExpression(entry, expression, "bluetooth", "queued");
     }
 
-    private void displayResult(String expression, String result) {
-	executeJavaScriptOnWebView(
-	    String.format("displayBluetoothResult(\"%s\", \"%s\");",
-			  JavaScript.escape(expression),
-			  JavaScript.escape(result)),
-	    "Executing JavaScript for Bluetooth result: " + expression + " = " +
-		result,
-	    "displayResult");
+    void displayResult(String entry, String expression, String result) {
+	Log.d(LOG_TAG,
+	      "Displaying Bluetooth result: " + expression + " = " + result);
+	patches.completeEvaluation(entry, result, "remote");
     }
 
-    private void executeJavaScriptOnWebView(String javascript,
-					    String logMessage,
-					    String methodName) {
-	webView.post(() -> {
-	    try {
-		Log.d(LOG_TAG, logMessage);
-		webView.evaluateJavascript(javascript, null);
-	    } catch (Exception e) {
-		Log.e(LOG_TAG,
-		      "Error in " + methodName + ": " + e.getMessage());
-	    }
-	});
-    }
+    // The files that clients have uploaded, shared by all sessions.
+    UploadStore uploadStore() { return uploadStore; }
+
+    // Accept clients from transport until stopped.  A client whose link
+    // drops can reconnect at once, since its old connection belongs to its
+    // own session and doesn't hold up accept().  Only repeated accept()
+    // failures are retried with a delay, which doubles each time up to
+    // ACCEPT_RETRY_MAX_MS.
+    private void handleIncomingConnections(Transport transport) {
+	long retryDelay = ACCEPT_RETRY_INITIAL_MS;
 
-    private void handleClientSession() throws IOException {
 	while (isRunning.get()) {
 	    try {
-		int commandOrLength = inputStream.read();
-
-		if (commandOrLength == -1) {
-		    Log.i(LOG_TAG, "Client disconnected normally.");
-		    break;
+		if (sessions.isEmpty()) {
+		    updateConnectionStatus("waiting-for-connection",
+					   "Waiting for client connection.");
 		}
-
-		if (commandOrLength == CMD_C2A_EVALUATE) {
-		    handleEvaluateCommand();
-		} else if (commandOrLength == CMD_C2A_INTERRUPT) {
-		    handleInterruptCommand();
-		} else {
-		    handleDataBlock(commandOrLength);
+		Log.i(LOG_TAG, "Waiting for " + transport.name() +
+				   " client connection.");
+
+		Transport.Connection connection = transport.accept();
+
+		retryDelay = ACCEPT_RETRY_INITIAL_MS;
+		Log.i(LOG_TAG, "Client connected: " + transport.name() + " " +
+				   connection.address());
+		if (sessions.size() >= maxClients) {
+		    Log.w(LOG_TAG, "Rejecting client: " + maxClients +
+				       " clients already connected.");
+		    String reason =
+			"Connection limit of " + maxClients + " reached.";
+
+		    executorService.execute(
+			() -> Session.reject(connection, reason));
+		    continue;
 		}
-	    } catch (IOException e) {
-		Log.e(LOG_TAG, "Error in message handling: " + e.getMessage());
-		throw e;
-	    }
-	}
-    }
 
-    private void handleIncomingConnections() {
-	while (isRunning.get()) {
-	    try {
-		updateConnectionStatus("waiting-for-connection",
-				       "Waiting for client connection.");
-		Log.i(LOG_TAG, "Waiting for Bluetooth client connection.");
-		clientSocket = serverSocket.accept();
-		Log.i(LOG_TAG, "Client connected: " +
-				   clientSocket.getRemoteDevice().getAddress());
-		inputStream = clientSocket.getInputStream();
-		outputStream = clientSocket.getOutputStream();
-		updateConnectionStatus("connected", "Client connected.");
-		handleClientSession();
+		Session session =
+		    new Session(this, chibiScheme, transport.name(),
+				connection, outputPolicy, budget);
+
+		sessions.add(session);
+		Stats.record(Stats.CONNECTIONS, 1);
+		updateClientStatus();
+		executorService.execute(() -> serveSession(session));
 	    } catch (IOException e) {
 		if (isRunning.get()) {
 		    Log.e(LOG_TAG, "Connection error: " + e.getMessage());
@@ -312,14 +251,13 @@ public class Bluetooth {
 					       e.getMessage());
 		}
 
-		closeClientConnection();
-
 		if (isRunning.get()) {
 		    try {
-			Log.i(
-			    LOG_TAG,
-			    "Waiting for RFCOMM cleanup before accepting new connections...");
-			Thread.sleep(3000);
+			Log.i(LOG_TAG, "Retrying accept in " + retryDelay +
+					   " ms.");
+			Thread.sleep(retryDelay);
+			retryDelay =
+			    Math.min(retryDelay * 2, ACCEPT_RETRY_MAX_MS);
 		    } catch (InterruptedException ie) {
 			Thread.currentThread().interrupt();
 			break;
@@ -329,6 +267,44 @@ public class Bluetooth {
 	}
     }
 
+    private void startBluetooth() {
+	bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+
+	if (bluetoothAdapter == null) {
+	    updateConnectionStatus("bluetooth-not-supported",
+				   "Bluetooth not supported.");
+	    return;
+	}
+
+	if (!bluetoothAdapter.isEnabled()) {
+	    updateConnectionStatus("bluetooth-disabled", "Bluetooth disabled.");
+	    return;
+	}
+
+	if (!hasBluetoothPermissions()) {
+	    updateConnectionStatus("bluetooth-permissions-required",
+				   "Bluetooth permissions required.");
+	    return;
+	}
+
+	try {
+	    startTransport(RfcommTransport.listen(bluetoothAdapter));
+	    updateConnectionStatus(
+		"awaiting-connection",
+		"Bluetooth server started.  Waiting for connections.");
+	} catch (IOException e) {
+	    Log.e(LOG_TAG,
+		  "Failed to start Bluetooth server: " + e.getMessage());
+	    updateConnectionStatus("failed-to-start",
+				   "Failed to start server: " + e.getMessage());
+	}
+    }
+
+    private void startTransport(Transport transport) {
+	transports.add(transport);
+	executorService.execute(() -> handleIncomingConnections(transport));
+    }
+
     private boolean hasBluetoothPermissions() {
 	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
 	    return mainActivity.checkSelfPermission(
@@ -347,165 +323,134 @@ public class Bluetooth {
 	}
     }
 
-    private void handleDataBlock(int length) throws IOException {
-	if (length == 0)
-	    return;
-
-	byte[] buffer = new byte[length];
-	int bytesRead = 0;
-
-	while (bytesRead < length) {
-	    int result =
-		inputStream.read(buffer, bytesRead, length - bytesRead);
-	    if (result == -1) {
-		throw new IOException(
-		    "Connection closed while reading data block.");
+    // Return the limits on each client evaluation, as configured at build
+    // time.
+    private static Budget readBudget(MainActivity activity) {
+	try {
+	    ApplicationInfo info =
+		activity.getPackageManager().getApplicationInfo(
+		    activity.getPackageName(), PackageManager.GET_META_DATA);
+	    Bundle metaData = info.metaData;
+
+	    if (metaData != null) {
+		return new Budget(metaData.getInt(TIME_BUDGET_KEY),
+				  metaData.getInt(HEAP_BUDGET_KEY) * 1024L);
 	    }
-	    bytesRead += result;
+	} catch (PackageManager.NameNotFoundException e) {
+	    Log.w(LOG_TAG, "Couldn't read budget: " + e.getMessage());
 	}
-
-	String data = new String(buffer, StandardCharsets.UTF_8);
-
-	expressionBuffer.append(data);
-	Log.d(LOG_TAG, "Received data block: " + data.replace("\n", "\\n"));
+	return Budget.UNLIMITED;
     }
 
-    private void handleEvaluateCommand() {
-	String expression = expressionBuffer.toString();
-
-	if (expression.isEmpty()) {
-	    return;
-	}
-
-	boolean isComplete = chibiScheme.isCompleteExpression(expression);
-
-	if (!isComplete) {
-	    Log.i(LOG_TAG, "Expression incomplete.  Waiting for more input: " +
-			       expression.replace("\n", "\\n"));
-	    return;
-	}
-
-	expressionBuffer.setLength(0);
-
-	Log.i(LOG_TAG,
-	      "Executing expression: " + expression.replace("\n", "\\n"));
-	displayExpression(expression);
+    private static int readMaxClients(MainActivity activity) {
+	try {
+	    ApplicationInfo info =
+		activity.getPackageManager().getApplicationInfo(
+		    activity.getPackageName(), PackageManager.GET_META_DATA);
+	    Bundle metaData = info.metaData;
 
-	new Thread(() -> {
-	    try {
-		updateConnectionStatus("evaluating", "Evaluating expression.");
-		String result = chibiScheme.evaluateScheme(expression);
-
-		Log.i(LOG_TAG,
-		      "Evaluation result: " + result.replace("\n", "\\n"));
-		updateConnectionStatus("connected", "Client connected.");
-		streamToClient(result);
-		displayResult(expression, result);
-	    } catch (Exception e) {
-		Log.e(LOG_TAG, "Error during evaluation: " + e.getMessage());
-		streamToClient("Error: " + e.getMessage());
-		updateConnectionStatus("connected", "Client connected.");
+	    if (metaData != null && metaData.getInt(MAX_CLIENTS_KEY) > 0) {
+		return metaData.getInt(MAX_CLIENTS_KEY);
 	    }
-	}).start();
+	} catch (PackageManager.NameNotFoundException e) {
+	    Log.w(LOG_TAG, "Couldn't read client limit: " + e.getMessage());
+	}
+	return DEFAULT_MAX_CLIENTS;
     }
 
-    private void handleInterruptCommand() {
-	Log.i(LOG_TAG, "Interrupt command received.");
-	expressionBuffer.setLength(0);
-
-	new Thread(() -> {
-	    try {
-		String result = chibiScheme.interruptScheme();
-
-		Log.i(LOG_TAG, "Interrupt result: " + result);
-	    } catch (Exception e) {
-		Log.e(LOG_TAG, "Error during interrupt: " + e.getMessage());
+    // Return the policy for output that a client isn't reading fast enough,
+    // "block", "drop", or "pause", as configured at build time.
+    private static SendQueue.Policy readOutputPolicy(MainActivity activity) {
+	try {
+	    ApplicationInfo info =
+		activity.getPackageManager().getApplicationInfo(
+		    activity.getPackageName(), PackageManager.GET_META_DATA);
+	    Bundle metaData = info.metaData;
+	    String policy =
+		metaData == null ? null : metaData.getString(OUTPUT_POLICY_KEY);
+
+	    if (policy != null) {
+		return SendQueue.Policy.valueOf(
+		    policy.toUpperCase(Locale.ROOT));
 	    }
-	}).start();
-    }
-
-    private void sendDataBlockToClient(byte[] data, int length)
-	throws IOException {
-	if (outputStream != null) {
-	    outputStream.write(length);
-	    outputStream.write(data, 0, length);
-	    outputStream.flush();
+	} catch (IllegalArgumentException |
+		 PackageManager.NameNotFoundException e) {
+	    Log.w(LOG_TAG, "Couldn't read output policy: " + e.getMessage());
 	}
+	return SendQueue.Policy.BLOCK;
     }
 
-    private void sendEvaluationCompleteToClient() throws IOException {
-	if (outputStream != null) {
-	    outputStream.write(CMD_A2C_EVALUATION_COMPLETE);
-	    outputStream.flush();
+    // Return true if TCP clients may connect from the network rather than
+    // only through the loopback interface, as configured at build time.
+    private static boolean readTcpNetwork(MainActivity activity) {
+	try {
+	    ApplicationInfo info =
+		activity.getPackageManager().getApplicationInfo(
+		    activity.getPackageName(), PackageManager.GET_META_DATA);
+	    Bundle metaData = info.metaData;
+
+	    if (metaData != null) {
+		return metaData.getBoolean(TCP_NETWORK_KEY);
+	    }
+	} catch (PackageManager.NameNotFoundException e) {
+	    Log.w(LOG_TAG, "Couldn't read TCP interface: " + e.getMessage());
 	}
+	return false;
     }
 
-    public void streamPartialOutput(String output) {
+    // Return the TCP port to listen on, or 0 for none, as configured at build
+    // time.
+    private static int readTcpPort(MainActivity activity) {
 	try {
-	    if (output != null && !output.isEmpty()) {
-		byte[] outputBytes = output.getBytes(StandardCharsets.UTF_8);
+	    ApplicationInfo info =
+		activity.getPackageManager().getApplicationInfo(
+		    activity.getPackageName(), PackageManager.GET_META_DATA);
+	    Bundle metaData = info.metaData;
 
-		writeBlocks(outputBytes, true);
+	    if (metaData != null) {
+		return metaData.getInt(TCP_PORT_KEY);
 	    }
-	} catch (IOException e) {
-	    Log.e(LOG_TAG, "Error streaming partial output to client: " +
-			       e.getMessage());
+	} catch (PackageManager.NameNotFoundException e) {
+	    Log.w(LOG_TAG, "Couldn't read TCP port: " + e.getMessage());
 	}
+	return 0;
     }
 
-    private void streamToClient(String message) {
+    private void serveSession(Session session) {
 	try {
-	    if (outputStream != null) {
-		String messageWithNewline = message + "\n";
-		byte[] messageBytes =
-		    messageWithNewline.getBytes(StandardCharsets.UTF_8);
-
-		writeBlocks(messageBytes, false);
-		sendEvaluationCompleteToClient();
-	    }
+	    session.run();
 	} catch (IOException e) {
-	    Log.e(LOG_TAG, "Error streaming to client: " + e.getMessage());
+	    if (isRunning.get()) {
+		Log.e(LOG_TAG, "Error in session for " + session.address +
+				   ": " + e.getMessage());
+	    }
+	} finally {
+	    // Forget the session first, so that a client that sees its
+	    // connection close can connect again at once, even at the limit.
+	    sessions.remove(session);
+	    session.close();
+	    if (isRunning.get()) {
+		updateClientStatus();
+	    }
 	}
     }
 
-    private void updateConnectionStatus(String statusType, String message) {
-	this.connectionStatus = message;
-	webView.post(() -> {
-	    String javascript =
-		String.format("updateConnectionStatus(\"%s\", \"%s\");",
-			      statusType.replace("\"", "\\\""),
-			      message.replace("\"", "\\\""));
-
-	    webView.evaluateJavascript(javascript, null);
-	});
-    }
+    void updateClientStatus() {
+	int count = sessions.size();
 
-    private void writeBlocks(byte[] data, boolean useSynchronization)
-	throws IOException {
-	if (outputStream == null || data == null || data.length == 0) {
-	    return;
+	if (count == 0) {
+	    updateConnectionStatus("awaiting-connection",
+				   "Waiting for client connection.");
+	} else {
+	    updateConnectionStatus("connected",
+				   count == 1 ? "Client connected."
+					      : count + " clients connected.");
 	}
+	patches.setStats(Stats.summary());
+    }
 
-	int sent = 0;
-
-	while (sent < data.length) {
-	    int blockSize =
-		Math.min(CMD_C2A_MIN_COMMAND - 1, data.length - sent);
-
-	    if (useSynchronization) {
-		synchronized (this) {
-		    if (outputStream != null) {
-			outputStream.write(blockSize);
-			outputStream.write(data, sent, blockSize);
-			outputStream.flush();
-		    }
-		}
-	    } else {
-		outputStream.write(blockSize);
-		outputStream.write(data, sent, blockSize);
-		outputStream.flush();
-	    }
-	    sent += blockSize;
-	}
+    void updateConnectionStatus(String statusType, String message) {
+	this.connectionStatus = message;
+	patches.setStatus(statusType, message);
     }
 }
\ No newline at end of file
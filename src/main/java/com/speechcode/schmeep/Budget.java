@@ -0,0 +1,35 @@
+package com.speechcode.schmeep;
+
+// Limits on one evaluation: how long it may run, in milliseconds, and how many
+// bytes it may grow its context's heap by.  Zero means no limit.  Evaluator's
+// watchdog interrupts evaluations that exceed their budget.
+public class Budget {
+    static final Budget UNLIMITED = new Budget(0, 0);
+
+    final long heapBytes;
+    final long timeMillis;
+
+    Budget(long timeMillis, long heapBytes) {
+	this.heapBytes = Math.max(0, heapBytes);
+	this.timeMillis = Math.max(0, timeMillis);
+    }
+
+    boolean isUnlimited() { return heapBytes == 0 && timeMillis == 0; }
+
+    // Return this budget, tightened wherever limit is tighter, so that clients
+    // can't loosen the limits that the app was built with.
+    Budget within(Budget limit) {
+	return new Budget(tighter(timeMillis, limit.timeMillis),
+			  tighter(heapBytes, limit.heapBytes));
+    }
+
+    @Override
+    public String toString() {
+	return (timeMillis == 0 ? "no time limit" : timeMillis + " ms") +
+	    ", " + (heapBytes == 0 ? "no heap limit" : heapBytes + " bytes");
+    }
+
+    private static long tighter(long a, long b) {
+	return a == 0 ? b : b == 0 ? a : Math.min(a, b);
+    }
+}
\ No newline at end of file
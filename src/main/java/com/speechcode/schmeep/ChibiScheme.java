@@ -1,21 +1,109 @@
 package com.speechcode.schmeep;
 
+import android.content.Context;
+import android.content.res.AssetManager;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
 
+// Each session has its own native Scheme context, with its own heap and lock,
+// so sessions evaluate in parallel rather than one at a time.  Definitions made
+// in one session aren't visible in the others, except for those in the page's
+// Scheme scripts, which are loaded into every context.
+//
+// A context outlives its session's evaluator, so that a client that reconnects
+// gets it back, but at most MAX_CONTEXTS can exist at once.  When another is
+// needed, the least recently used one that no evaluator is using is
+// destroyed.
+//
+// The page evaluates with evalAsync, which queues the expression for the UI
+// context's evaluator thread and returns at once, so long evaluations don't
+// freeze the WebView.  Results reach the page through MainActivity's message
+// port.
+//
+// RAX event handlers are compiled once, to procedures that the native side
+// keeps in a table, and each event just applies one to the event's JSON.
 public class ChibiScheme {
     private static final String LOG_TAG = "schmeep";
 
+    static final String ASYNC_CANCELLED = "cancelled";
+    // Prefixes an asynchronous evaluation's id to name its transcript entry.
+    // See PatchQueue.  Must match ASYNC_ENTRY_PREFIX in main.js.
+    static final String ASYNC_ENTRY_PREFIX = "eval-";
+    static final String ASYNC_ERROR = "error";
+    static final String ASYNC_RESULT = "result";
+    // Recorded in handlers for a handler that failed to compile, so that it
+    // isn't compiled again.  Never a handler number.
+    static final int HANDLER_FAILED = 0;
+    static final String HEAP_IMAGE_PREFIX = "heap-";
+    static final String HEAP_IMAGE_SUFFIX = ".img";
+    // Must match MAX_CONTEXTS in main_jni.c.
+    static final int MAX_CONTEXTS = 16;
+    static final String UI_SESSION = "ui";
+
+    // Receives a context's output while it evaluates, as the first length
+    // bytes of output, which are UTF-8 and end on a character boundary.  The
+    // array is reused for the next chunk, so it must not be kept.
+    public interface OutputSink {
+	void streamPartialOutput(byte[] output, int length);
+    }
+
+    private final MainActivity activity;
+    // Contexts by session, least recently used first, and the number of
+    // evaluators using each.  A context is reserved here before it is created,
+    // so that creating it doesn't hold the lock, and its future completes once
+    // it is ready, with 0 if creating it failed.
+    private final Map<String, CompletableFuture<Long>> contexts =
+	new LinkedHashMap<>(MAX_CONTEXTS, 0.75f, true);
+    private final Map<String, Integer> contextUsers = new HashMap<>();
+
+    // Handler numbers from compileHandler, by handler expression, or
+    // HANDLER_FAILED for handlers that didn't compile.  Only used on the UI
+    // evaluator's thread.
+    private final Map<String, Integer> handlers = new HashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, EvaluationRequest> pendingRequests =
+	new HashMap<>();
+    private final List<String> prelude = new ArrayList<>();
+    private final long uiContext;
+    private final Evaluator uiEvaluator;
+
+    public native String applyHandler(long context, int handler,
+				      String argument, OutputSink sink);
     public native void cleanupScheme();
-    public native String evaluateScheme(String expression);
-    public native void initializeScheme();
-    public native String interruptScheme();
-    public native boolean isCompleteExpression(String expression);
+    public native int compileHandler(long context, String expression);
+    public native long createContext();
+    public native void destroyContext(long context);
+    // If paged, a huge result is cut to one page, and (more) returns the
+    // rest.  That is only for expressions typed at a REPL.
+    public native String evaluateScheme(long context, String expression,
+					OutputSink sink, boolean paged);
+    // Return the size of context's heap, which only grows, in bytes.
+    public native long heapSize(long context);
+    public native void initializeScheme(AssetManager assetManager,
+					String heapImagePath);
+    public native String interruptScheme(long context);
 
     public ChibiScheme(MainActivity activity) {
+	this.activity = activity;
 	try {
 	    Assets.handleAssetExtraction(activity);
-	    initializeScheme();
+	    initializeScheme(activity.getAssets(), heapImagePath(activity));
+	    uiContext = context(UI_SESSION);
+	    if (uiContext == 0) {
+		throw new IllegalStateException(
+		    "Failed to create UI Scheme context.");
+	    }
+	    uiEvaluator = new Evaluator(this, UI_SESSION, null);
 	    Log.i(LOG_TAG, "Chibi Scheme initialized successfully.");
 	} catch (Exception e) {
 	    Log.e(LOG_TAG,
@@ -25,9 +113,290 @@ public class ChibiScheme {
 	}
     }
 
+    // Return the context for session, creating it on first use, and count
+    // the caller as one of its users until it calls release().  Creating a
+    // context loads a standard environment, so it is slow.  That happens
+    // outside the lock, so sessions start in parallel.  Returns 0 if no
+    // context could be created.
+    public long context(String session) {
+	CompletableFuture<Long> future;
+	boolean create = false;
+
+	synchronized (this) {
+	    future = contexts.get(session);
+	    if (future != null) {
+		if (!session.equals(UI_SESSION)) {
+		    Stats.record(Stats.RECONNECTS, 1);
+		}
+	    } else {
+		if (contexts.size() >= MAX_CONTEXTS) {
+		    evictContext();
+		}
+		future = new CompletableFuture<>();
+		contexts.put(session, future);
+		create = true;
+	    }
+	    contextUsers.merge(session, 1, Integer::sum);
+	}
+	if (create) {
+	    future.complete(createPrimedContext(session));
+	}
+
+	long context = future.join();
+
+	if (context == 0) {
+	    synchronized (this) {
+		contexts.remove(session, future);
+	    }
+	    release(session);
+	}
+	return context;
+    }
+
+    // Create a context for session and evaluate the page's scripts in it,
+    // including any loaded meanwhile.  Return 0 if it couldn't be created.
+    private long createPrimedContext(String session) {
+	long created = createContext();
+
+	if (created == 0) {
+	    Log.e(LOG_TAG, "Failed to create Scheme context for session " +
+			       session + ".");
+	    return 0;
+	}
+	Log.i(LOG_TAG, "Created Scheme context for session " + session + ".");
+	for (int i = 0;; i++) {
+	    String source;
+
+	    synchronized (this) {
+		if (i == prelude.size()) {
+		    return created;
+		}
+		source = prelude.get(i);
+	    }
+	    evaluateScheme(created, source, null, false);
+	}
+    }
+
+    // Stop counting a caller of context(session) as a user of its context,
+    // which may then be destroyed to make room for another.
+    public void release(String session) { release(session, true); }
+
+    // Like the above, but unless keep is true, destroy the context once it
+    // has no users, since nobody will ask for it again.
+    public synchronized void release(String session, boolean keep) {
+	Integer users = contextUsers.get(session);
+
+	if (users == null) {
+	    return;
+	}
+	if (users > 1) {
+	    contextUsers.put(session, users - 1);
+	    return;
+	}
+	contextUsers.remove(session);
+	if (!keep) {
+	    CompletableFuture<Long> future = contexts.remove(session);
+
+	    if (future != null) {
+		destroyContext(future.join());
+		Log.i(LOG_TAG, "Destroyed Scheme context for session " +
+				   session + ".");
+	    }
+	}
+    }
+
+    // Return the number of Scheme contexts, including the UI's.
+    synchronized int contextCount() { return contexts.size(); }
+
+    // Destroy the least recently used context that has no users, if any.
+    private void evictContext() {
+	Iterator<Map.Entry<String, CompletableFuture<Long>>> i =
+	    contexts.entrySet().iterator();
+
+	while (i.hasNext()) {
+	    Map.Entry<String, CompletableFuture<Long>> entry = i.next();
+
+	    // A context without users has finished being created.
+	    if (!contextUsers.containsKey(entry.getKey())) {
+		i.remove();
+		destroyContext(entry.getValue().join());
+		Log.i(LOG_TAG, "Destroyed Scheme context for session " +
+				   entry.getKey() + " to make room.");
+		return;
+	    }
+	}
+	Log.w(LOG_TAG, "All " + MAX_CONTEXTS + " Scheme contexts are in use.");
+    }
+
+    // Return the path of the heap image for this installation, next to the
+    // extracted libraries and named by Assets.imageKey, removing images that
+    // have other keys, which are stale, and those that older versions left in
+    // the files directory.  Returns null if there is no key, which disables
+    // images.
+    static String heapImagePath(Context context) {
+	try {
+	    String name = HEAP_IMAGE_PREFIX + Assets.imageKey(context) +
+			  HEAP_IMAGE_SUFFIX;
+	    String path = new File(Assets.TARGET_BASE, name).getPath();
+
+	    for (File directory : new File[] {new File(Assets.TARGET_BASE),
+					      context.getFilesDir()}) {
+		File[] files = directory.listFiles();
+
+		if (files == null) {
+		    continue;
+		}
+		for (File file : files) {
+		    String fileName = file.getName();
+
+		    if (fileName.startsWith(HEAP_IMAGE_PREFIX) &&
+			!file.getPath().startsWith(path) && file.delete()) {
+			Log.i(LOG_TAG, "Removed stale heap image " + fileName +
+					   ".");
+		    }
+		}
+	    }
+	    return path;
+	} catch (Exception e) {
+	    Log.w(LOG_TAG, "Heap image disabled: " + e.getMessage());
+	    return null;
+	}
+    }
+
+    // Cancel the evalAsync request with the given id.  If it is still queued,
+    // its result is ASYNC_CANCELLED.  If it is being evaluated, it is
+    // interrupted, and its result is the interruption error.
+    @JavascriptInterface
+    public void cancel(long id) {
+	EvaluationRequest request;
+
+	synchronized (pendingRequests) {
+	    request = pendingRequests.get(id);
+	}
+	if (request != null && uiEvaluator.cancel(request)) {
+	    finishAsync(id, ASYNC_CANCELLED, "Cancelled.");
+	}
+    }
+
     @JavascriptInterface
     public String eval(String expression) {
 	Log.i(LOG_TAG, "Chibi Scheme: local evaluation: " + expression);
-	return evaluateScheme(expression);
+	return evaluateScheme(uiContext, expression, null, false);
+    }
+
+    // Queue expression for evaluation in the UI context, and return an id
+    // that identifies its result.
+    @JavascriptInterface
+    public long evalAsync(String expression) {
+	return submitAsync(
+	    id -> new EvaluationRequest(
+		EvaluationRequest.Kind.EVALUATE, expression, asyncOutput(id),
+		null,
+		(request, result) -> finishAsync(id, ASYNC_RESULT, result)));
+    }
+
+    // Like evalAsync, but for an expression typed at the page's REPL, so a
+    // huge result is cut to one page, and (more) returns the rest.
+    @JavascriptInterface
+    public long replAsync(String expression) {
+	return submitAsync(
+	    id -> new EvaluationRequest(
+		EvaluationRequest.Kind.REPL, expression, asyncOutput(id), null,
+		(request, result) -> finishAsync(id, ASYNC_RESULT, result)));
+    }
+
+    // Send the output of asynchronous evaluation id to its transcript entry.
+    private OutputSink asyncOutput(long id) {
+	return (output, length) -> activity.displayCapturedOutput(
+	    ASYNC_ENTRY_PREFIX + id, output, length);
+    }
+
+    // Like evalAsync, but apply the procedure that handler evaluates to to
+    // argument.  Handler is only evaluated the first time.
+    @JavascriptInterface
+    public long handleAsync(String handler, String argument) {
+	return submitAsync(
+	    id -> new EvaluationRequest(
+		handler, argument,
+		(request, result) -> finishAsync(id, ASYNC_RESULT, result)));
+    }
+
+    // Compile handler ahead of its first event.
+    @JavascriptInterface
+    public void prepareHandler(String handler) {
+	uiEvaluator.offer(
+	    new EvaluationRequest(EvaluationRequest.Kind.COMPILE_HANDLER,
+				  handler, (request, result) -> {}));
+    }
+
+    // Return the handler number of handler, compiling it if it hasn't been
+    // compiled yet, or HANDLER_FAILED.  Compilation is only attempted once,
+    // since it evaluates handler, which may have side effects.
+    int compiledHandler(long context, String handler) {
+	Integer compiled = handlers.get(handler);
+
+	if (compiled == null) {
+	    compiled = compileHandler(context, handler);
+	    handlers.put(handler, compiled);
+	}
+	return compiled;
+    }
+
+    // Apply the procedure that handler evaluates to to argument, compiling
+    // it first if necessary.  Handlers that failed to compile, e.g. because
+    // of an error, are evaluated from source with each event, so that errors
+    // are reported just as they were before.
+    String runHandler(long context, String handler, String argument,
+		      OutputSink sink) {
+	int compiled = compiledHandler(context, handler);
+
+	if (compiled == HANDLER_FAILED) {
+	    return evaluateScheme(
+		context,
+		"(" + handler + " \"" + Scheme.escape(argument) + "\")",
+		sink, false);
+	}
+	return applyHandler(context, compiled, argument, sink);
+    }
+
+    // Queue the request that newRequest makes for a new id, and return the
+    // id.
+    private long submitAsync(LongFunction<EvaluationRequest> newRequest) {
+	long id = nextRequestId.getAndIncrement();
+	EvaluationRequest request = newRequest.apply(id);
+
+	synchronized (pendingRequests) {
+	    pendingRequests.put(id, request);
+	}
+	if (!uiEvaluator.offer(request)) {
+	    finishAsync(id, ASYNC_ERROR, "Error: Too many evaluations queued.");
+	}
+	return id;
+    }
+
+    // Stop the UI evaluator, interrupting any evaluation in progress.
+    public void stop() {
+	uiEvaluator.interrupt();
+	uiEvaluator.stop();
+    }
+
+    private void finishAsync(long id, String status, String result) {
+	synchronized (pendingRequests) {
+	    if (pendingRequests.remove(id) == null) {
+		return;
+	    }
+	}
+	activity.postEvaluationResult(id, status, result);
+    }
+
+    // Evaluate source, one of the page's Scheme scripts, in the UI context,
+    // and remember it so that contexts created later evaluate it, too.
+    @JavascriptInterface
+    public String load(String source) {
+	Log.i(LOG_TAG, "Chibi Scheme: loading page script.");
+	synchronized (this) {
+	    prelude.add(source);
+	}
+	return evaluateScheme(uiContext, source, null, false);
     }
 }
\ No newline at end of file
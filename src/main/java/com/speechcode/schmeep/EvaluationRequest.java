@@ -1,13 +1,59 @@
 package com.speechcode.schmeep;
 
-import java.io.OutputStream;
-
 public class EvaluationRequest {
+    public interface Callback {
+	void onResult(EvaluationRequest request, String result);
+    }
+
+    enum Kind {
+	// Apply the procedure that expression evaluates to to argument.
+	APPLY_HANDLER,
+	// Compile expression as a handler without applying it.
+	COMPILE_HANDLER,
+	// Evaluate expression, returning its whole result.
+	EVALUATE,
+	// Evaluate expression, which was typed at a REPL, returning only the
+	// first page of a huge result.
+	REPL
+    }
+
+    final String argument;
+    final Budget budget;
+    final Callback callback;
+    final long enqueuedAt;
     final String expression;
-    final OutputStream responseStream;
+    final Kind kind;
+    final ChibiScheme.OutputSink outputSink;
+
+    // A request of kind, which must not be APPLY_HANDLER, for expression.
+    EvaluationRequest(Kind kind, String expression, Callback callback) {
+	this(kind, expression, null, null, callback);
+    }
+
+    // Like the above, but send output to outputSink instead of to the
+    // evaluator's sink, and limit the evaluation to budget instead of the
+    // evaluator's budget, unless either is null.
+    EvaluationRequest(Kind kind, String expression,
+		      ChibiScheme.OutputSink outputSink, Budget budget,
+		      Callback callback) {
+	this(kind, expression, null, outputSink, budget, callback);
+    }
+
+    // Apply the procedure that handler evaluates to to argument, which is
+    // passed as a string.
+    EvaluationRequest(String handler, String argument, Callback callback) {
+	this(Kind.APPLY_HANDLER, handler, argument, null, null, callback);
+    }
 
-    EvaluationRequest(String expression, OutputStream responseStream) {
+    private EvaluationRequest(Kind kind, String expression, String argument,
+			      ChibiScheme.OutputSink outputSink, Budget budget,
+			      Callback callback) {
+	this.argument = argument;
+	this.budget = budget;
+	this.callback = callback;
+	this.enqueuedAt = System.nanoTime();
 	this.expression = expression;
-	this.responseStream = responseStream;
+	this.kind = kind;
+	this.outputSink = outputSink;
     }
 }
\ No newline at end of file
@@ -0,0 +1,276 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Run EvaluationRequests one at a time on a single long-lived thread.  The
+// queue is bounded, so a client that submits faster than Scheme can evaluate
+// blocks in submit(), which stops it from reading more input.
+//
+// While an evaluation with a Budget runs, a watchdog thread shared by all
+// evaluators checks it every WATCHDOG_INTERVAL_MS, and interrupts it the same
+// way a client's interrupt does once it has run too long or grown its
+// context's heap too much.  Its result is then BUDGET_EXCEEDED followed by the
+// reason.
+public class Evaluator {
+    private static final String LOG_TAG = "schmeep";
+    private static final int QUEUE_CAPACITY = 16;
+
+    static final String BUDGET_EXCEEDED = "Budget exceeded: ";
+    static final String INTERRUPTED = "Interrupted.";
+    static final long WATCHDOG_INTERVAL_MS = 50;
+
+    private static final ScheduledExecutorService watchdog =
+	Executors.newSingleThreadScheduledExecutor(runnable -> {
+	    Thread thread = new Thread(runnable, "schmeep-watchdog");
+
+	    thread.setDaemon(true);
+	    return thread;
+	});
+
+    // The watchdog's view of one evaluation.  Use watch() to make one, so
+    // that it is fully constructed before the watchdog can see it.
+    private class Watch implements Runnable {
+	final Budget budget;
+	final EvaluationRequest request;
+	final long startHeap;
+	final long startNanos;
+
+	volatile String exceeded;
+	// Only used on the evaluator thread.
+	ScheduledFuture<?> future;
+
+	private Watch(EvaluationRequest request, Budget budget) {
+	    this.budget = budget;
+	    this.request = request;
+	    this.startHeap = chibiScheme.heapSize(context);
+	    this.startNanos = System.nanoTime();
+	}
+
+	@Override
+	public void run() {
+	    if (exceeded != null) {
+		return;
+	    }
+
+	    long elapsed =
+		TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	    long growth = chibiScheme.heapSize(context) - startHeap;
+
+	    if (budget.timeMillis > 0 && elapsed > budget.timeMillis) {
+		exceed("ran for more than " + budget.timeMillis + " ms.");
+	    } else if (budget.heapBytes > 0 && growth > budget.heapBytes) {
+		exceed("grew the heap by more than " + budget.heapBytes +
+		       " bytes.");
+	    }
+	}
+
+	private void exceed(String reason) {
+	    if (exceeded != null || current != request) {
+		return;
+	    }
+	    exceeded = reason;
+	    Log.i(LOG_TAG, "Evaluation " + reason + "  Interrupting it.");
+	    interruptEvaluation();
+	}
+    }
+
+    private final ChibiScheme chibiScheme;
+    private final ChibiScheme.OutputSink outputSink;
+    private final BlockingQueue<EvaluationRequest> queue;
+    private final String session;
+    private final Thread thread;
+
+    private volatile Budget budget = Budget.UNLIMITED;
+    private volatile long context;
+    private volatile EvaluationRequest current;
+    private volatile boolean keepContext = true;
+    private long evaluationCount;
+    private int maxQueueDepth;
+    private volatile boolean running;
+    private long totalWaitNanos;
+
+    // Evaluate in session's Scheme context, which is created on the evaluator
+    // thread rather than the caller's, and released when it stops, and send
+    // output to outputSink.
+    public Evaluator(ChibiScheme chibiScheme, String session,
+		     ChibiScheme.OutputSink outputSink) {
+	this.chibiScheme = chibiScheme;
+	this.outputSink = outputSink;
+	this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	this.running = true;
+	this.session = session;
+	this.thread = new Thread(this::run, "schmeep-evaluator-" + session);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    // Cancel request, removing it from the queue or interrupting it if it is
+    // being evaluated.  Return true if it was removed, in which case its
+    // callback will never be called.
+    public boolean cancel(EvaluationRequest request) {
+	if (queue.remove(request)) {
+	    return true;
+	}
+	if (current == request) {
+	    interrupt();
+	}
+	return false;
+    }
+
+    // Limit evaluations that don't have budgets of their own to budget.
+    public void setBudget(Budget budget) {
+	Log.i(LOG_TAG, "Evaluation budget for " + session + ": " + budget +
+			   ".");
+	this.budget = budget;
+    }
+
+    public void interrupt() {
+	if (current != null) {
+	    Log.i(LOG_TAG, "Interrupt result: " + interruptEvaluation());
+	}
+    }
+
+    // Interrupt the evaluation in progress.  Scheme only notices the
+    // interrupt between instructions, so also interrupt the evaluator thread,
+    // which wakes it if it is waiting in the middle of an evaluation, e.g. for
+    // room for its output.
+    private String interruptEvaluation() {
+	String result = chibiScheme.interruptScheme(context);
+
+	thread.interrupt();
+	return result;
+    }
+
+    public void stop() {
+	running = false;
+	thread.interrupt();
+	queue.clear();
+    }
+
+    // Like stop, but unless keepContext is true, destroy the session's
+    // context once this evaluator has released it, e.g. because its client
+    // can't reconnect to it.
+    public void stop(boolean keepContext) {
+	this.keepContext = keepContext;
+	stop();
+    }
+
+    // Like submit, but return false instead of waiting if the queue is full.
+    public boolean offer(EvaluationRequest request) {
+	if (!queue.offer(request)) {
+	    return false;
+	}
+	recordQueueDepth();
+	return true;
+    }
+
+    public void submit(EvaluationRequest request) throws InterruptedException {
+	if (!queue.offer(request)) {
+	    Log.i(LOG_TAG, "Evaluation queue full (" + QUEUE_CAPACITY +
+			       " requests).  Waiting for room.");
+	    queue.put(request);
+	}
+	recordQueueDepth();
+    }
+
+    // Make a Watch for request, which is limited to budget, and schedule it.
+    private Watch watch(EvaluationRequest request, Budget budget) {
+	Watch watch = new Watch(request, budget);
+
+	watch.future = watchdog.scheduleAtFixedRate(
+	    watch, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS,
+	    TimeUnit.MILLISECONDS);
+	return watch;
+    }
+
+    private void recordQueueDepth() {
+	int depth = queue.size();
+
+	synchronized (this) {
+	    maxQueueDepth = Math.max(maxQueueDepth, depth);
+	}
+    }
+
+    private void run() {
+	context = chibiScheme.context(session);
+	while (running) {
+	    EvaluationRequest request;
+
+	    try {
+		request = queue.take();
+	    } catch (InterruptedException e) {
+		// Either stop() or an interrupt that arrived after its
+		// evaluation had finished.
+		continue;
+	    }
+
+	    long waitNanos = System.nanoTime() - request.enqueuedAt;
+
+	    Stats.record(Stats.QUEUE_WAIT,
+			 TimeUnit.NANOSECONDS.toMicros(waitNanos));
+
+	    synchronized (this) {
+		evaluationCount++;
+		totalWaitNanos += waitNanos;
+		Log.i(LOG_TAG, "Starting evaluation after " +
+				   TimeUnit.NANOSECONDS.toMillis(waitNanos) +
+				   " ms in queue (" + queue.size() +
+				   " waiting, at most " + maxQueueDepth +
+				   ", mean wait " +
+				   TimeUnit.NANOSECONDS.toMillis(
+				       totalWaitNanos / evaluationCount) +
+				   " ms).");
+	    }
+
+	    ChibiScheme.OutputSink sink = request.outputSink == null
+					      ? outputSink
+					      : request.outputSink;
+	    Budget limit = request.budget == null ? budget : request.budget;
+	    String result;
+
+	    // Forget any interrupt meant for an earlier evaluation.
+	    Thread.interrupted();
+	    current = request;
+
+	    Watch watch = limit.isUnlimited() ? null : watch(request, limit);
+
+	    try {
+		switch (request.kind) {
+		case APPLY_HANDLER:
+		    result = chibiScheme.runHandler(context, request.expression,
+						    request.argument, sink);
+		    break;
+		case COMPILE_HANDLER:
+		    chibiScheme.compiledHandler(context, request.expression);
+		    result = null;
+		    break;
+		default:
+		    result = chibiScheme.evaluateScheme(
+			context, request.expression, sink,
+			request.kind == EvaluationRequest.Kind.REPL);
+		}
+	    } catch (Exception e) {
+		Log.e(LOG_TAG, "Error during evaluation: " + e.getMessage());
+		result = "Error: " + e.getMessage();
+	    } finally {
+		current = null;
+		if (watch != null) {
+		    watch.future.cancel(false);
+		}
+	    }
+	    if (watch != null && watch.exceeded != null &&
+		INTERRUPTED.equals(result)) {
+		result = BUDGET_EXCEEDED + "evaluation " + watch.exceeded;
+	    }
+	    request.callback.onResult(request, result);
+	}
+	chibiScheme.release(session, keepContext);
+	Log.i(LOG_TAG, "Evaluator stopped.");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,258 @@
+package com.speechcode.schmeep;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Decide whether buffered REPL input holds complete Scheme expressions without
+// calling the reader.  The scanner keeps its state between calls to feed(), so
+// each byte is examined once no matter how many blocks an expression arrives
+// in.  It works on UTF-8 bytes, since every byte that matters to Scheme syntax
+// is ASCII and never appears inside a multi-byte character.
+public class ExpressionScanner {
+    private static final int BAR_SYMBOL = 1;
+    private static final int BAR_SYMBOL_ESCAPE = 2;
+    private static final int BLOCK_COMMENT = 3;
+    private static final int BLOCK_COMMENT_BAR = 4;
+    private static final int BLOCK_COMMENT_HASH = 5;
+    private static final int CHARACTER = 6;
+    private static final int COMMA = 7;
+    private static final int HASH = 8;
+    private static final int LINE_COMMENT = 9;
+    private static final int NORMAL = 0;
+    private static final int STRING = 10;
+    private static final int STRING_ESCAPE = 11;
+    private static final int TOKEN = 12;
+
+    private static final int DATUM_COMMENT = 1;
+    private static final int LIST = 2;
+    private static final int QUOTE = 3;
+
+    // Prefixes waiting for a datum, innermost last, with a LIST marker for
+    // each open parenthesis.
+    private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+    private final StringBuilder token = new StringBuilder();
+
+    private int blockCommentDepth;
+    private int depth;
+    private boolean malformed;
+    private int state;
+
+    public boolean isComplete() {
+	if (malformed) {
+	    return true;
+	}
+	if (depth > 0) {
+	    return false;
+	}
+	switch (state) {
+	case LINE_COMMENT:
+	case NORMAL:
+	    return pending.isEmpty();
+	case TOKEN:
+	    return wouldCompleteAll();
+	default:
+	    return false;
+	}
+    }
+
+    public void feed(byte[] data) {
+	for (byte b : data) {
+	    feed((char)(b & 0xff));
+	}
+    }
+
+    public void reset() {
+	blockCommentDepth = 0;
+	depth = 0;
+	malformed = false;
+	pending.clear();
+	state = NORMAL;
+	token.setLength(0);
+    }
+
+    private void feed(char c) {
+	switch (state) {
+	case BAR_SYMBOL:
+	    if (c == '\\') {
+		state = BAR_SYMBOL_ESCAPE;
+	    } else if (c == '|') {
+		state = TOKEN;
+	    }
+	    return;
+	case BAR_SYMBOL_ESCAPE:
+	    state = BAR_SYMBOL;
+	    return;
+	case BLOCK_COMMENT:
+	    if (c == '|') {
+		state = BLOCK_COMMENT_BAR;
+	    } else if (c == '#') {
+		state = BLOCK_COMMENT_HASH;
+	    }
+	    return;
+	case BLOCK_COMMENT_BAR:
+	    if (c == '#') {
+		blockCommentDepth--;
+		state = blockCommentDepth == 0 ? NORMAL : BLOCK_COMMENT;
+	    } else if (c != '|') {
+		state = BLOCK_COMMENT;
+	    }
+	    return;
+	case BLOCK_COMMENT_HASH:
+	    if (c == '|') {
+		blockCommentDepth++;
+		state = BLOCK_COMMENT;
+	    } else if (c != '#') {
+		state = BLOCK_COMMENT;
+	    }
+	    return;
+	case CHARACTER:
+	    // The character after "#\" is part of the literal even if it is a
+	    // delimiter, e.g. "#\(" or "#\ ".
+	    state = TOKEN;
+	    return;
+	case COMMA:
+	    state = NORMAL;
+	    if (c == '@') {
+		return;
+	    }
+	    break;
+	case HASH:
+	    if (c == '|') {
+		blockCommentDepth = 1;
+		state = BLOCK_COMMENT;
+		token.setLength(0);
+		return;
+	    }
+	    if (c == ';') {
+		pending.addLast(DATUM_COMMENT);
+		state = NORMAL;
+		token.setLength(0);
+		return;
+	    }
+	    if (c == '\\') {
+		state = CHARACTER;
+		token.append(c);
+		return;
+	    }
+	    state = TOKEN;
+	    break;
+	case LINE_COMMENT:
+	    if (c == '\n') {
+		state = NORMAL;
+	    }
+	    return;
+	case STRING:
+	    if (c == '\\') {
+		state = STRING_ESCAPE;
+	    } else if (c == '"') {
+		state = NORMAL;
+		completeDatum();
+	    }
+	    return;
+	case STRING_ESCAPE:
+	    state = STRING;
+	    return;
+	}
+
+	if (state == TOKEN) {
+	    if (!isDelimiter(c)) {
+		if (c == '|') {
+		    state = BAR_SYMBOL;
+		} else if (token.length() < 4) {
+		    token.append(c);
+		}
+		return;
+	    }
+	    state = NORMAL;
+
+	    // "#(" and "#u8(" open vectors and bytevectors, so the token is
+	    // part of the list that follows rather than a datum of its own.
+	    boolean vectorPrefix = c == '(' && (token.toString().equals("#") ||
+						token.toString().equals("#u8"));
+
+	    token.setLength(0);
+	    if (!vectorPrefix) {
+		completeDatum();
+	    }
+	}
+
+	switch (c) {
+	case '"':
+	    state = STRING;
+	    break;
+	case '#':
+	    state = HASH;
+	    token.append(c);
+	    break;
+	case '\'':
+	case '`':
+	    pending.addLast(QUOTE);
+	    break;
+	case '(':
+	    depth++;
+	    pending.addLast(LIST);
+	    break;
+	case ')':
+	    closeList();
+	    break;
+	case ',':
+	    pending.addLast(QUOTE);
+	    state = COMMA;
+	    break;
+	case ';':
+	    state = LINE_COMMENT;
+	    break;
+	case '|':
+	    state = BAR_SYMBOL;
+	    break;
+	default:
+	    if (!isWhitespace(c)) {
+		state = TOKEN;
+		token.append(c);
+	    }
+	}
+    }
+
+    private void closeList() {
+	if (depth == 0) {
+	    malformed = true;
+	    return;
+	}
+	while (!pending.isEmpty() && pending.removeLast() != LIST) {
+	}
+	depth--;
+	completeDatum();
+    }
+
+    // A datum has been read, so satisfy the prefixes waiting for it.  Quote
+    // prefixes turn it into another datum, but a datum comment discards it.
+    private void completeDatum() {
+	while (!pending.isEmpty() && pending.peekLast() != LIST) {
+	    if (pending.removeLast() == DATUM_COMMENT) {
+		return;
+	    }
+	}
+    }
+
+    private static boolean isDelimiter(char c) {
+	return isWhitespace(c) || c == '(' || c == ')' ||
+	    c == '"' || c == ';';
+    }
+
+    // Only ASCII whitespace counts, since bytes above 0x7f are parts of
+    // multi-byte characters.
+    private static boolean isWhitespace(char c) {
+	return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private boolean wouldCompleteAll() {
+	Iterator<Integer> i = pending.descendingIterator();
+
+	while (i.hasNext()) {
+	    if (i.next() == DATUM_COMMENT) {
+		return !i.hasNext();
+	    }
+	}
+	return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Drive the REPL server through LoopbackTransport clients, which speak
+// protocol version 1, as tests/loopback.expect does by starting the app with
+// CLIENTS_EXTRA.  More clients than there are Scheme contexts connect one
+// after another.  Each must start with a fresh context, which must be
+// destroyed once it disconnects.  The outcome is logged as "Loopback test
+// passed" or "Loopback test failed".
+class LoopbackTest {
+    private static final String LOG_TAG = "schmeep";
+
+    static final String CLIENTS_EXTRA =
+	"com.speechcode.schmeep.LOOPBACK_CLIENTS";
+    static final long POLL_MS = 50;
+    static final long TIMEOUT_MS = 10000;
+
+    // A client's end of a loopback connection.
+    private static class Client {
+	private final Transport.Connection connection;
+	private final InputStream input;
+	private final OutputStream output;
+
+	Client(Transport.Connection connection) throws IOException {
+	    this.connection = connection;
+	    this.input = connection.getInputStream();
+	    this.output = connection.getOutputStream();
+	}
+
+	// Tell the app that the client is done, wait for it to close its end,
+	// and close this one.
+	void close() throws IOException {
+	    output.close();
+	    while (input.read() != -1) {
+	    }
+	    connection.close();
+	}
+
+	// Return the output and result of evaluating expression.
+	String evaluate(String expression) throws IOException {
+	    byte[] bytes = expression.getBytes(StandardCharsets.UTF_8);
+
+	    for (int i = 0; i < bytes.length; i += Protocol.LEGACY_BLOCK_SIZE) {
+		int length =
+		    Math.min(Protocol.LEGACY_BLOCK_SIZE, bytes.length - i);
+
+		output.write(length);
+		output.write(bytes, i, length);
+	    }
+	    output.write(Protocol.CMD_C2A_EVALUATE);
+	    output.flush();
+
+	    ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+	    while (true) {
+		int length = input.read();
+
+		if (length == -1) {
+		    throw new IOException("App disconnected.");
+		}
+		if (length == Protocol.CMD_A2C_EVALUATION_COMPLETE) {
+		    return response.toString("UTF-8");
+		}
+
+		byte[] block = new byte[length];
+
+		for (int n = 0; n < length;) {
+		    int count = input.read(block, n, length - n);
+
+		    if (count == -1) {
+			throw new IOException("App disconnected.");
+		    }
+		    n += count;
+		}
+		response.write(block, 0, length);
+	    }
+	}
+    }
+
+    // Run the test with clients clients, waiting up to TIMEOUT_MS for the
+    // server to start.
+    static void run(Bluetooth bluetooth, ChibiScheme chibiScheme,
+		    int clients) {
+	try {
+	    long start = System.nanoTime();
+
+	    for (int i = 1; i <= clients; i++) {
+		int before = chibiScheme.contextCount();
+		Client client = new Client(connect(bluetooth));
+
+		expect(client, "(guard (e (#t 'fresh)) client)", "fresh");
+		expect(client, "(define client " + i + ")", null);
+		expect(client, "(* client 1000)", Integer.toString(i * 1000));
+		client.close();
+		awaitContextCount(chibiScheme, before);
+	    }
+	    Log.i(LOG_TAG, "Loopback test passed: " + clients + " clients in " +
+			       (System.nanoTime() - start) / 1000000 +
+			       " ms.");
+	} catch (IOException e) {
+	    Log.e(LOG_TAG, "Loopback test failed: " + e.getMessage());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    Log.e(LOG_TAG, "Loopback test failed: interrupted.");
+	}
+    }
+
+    // Wait until the contexts of clients that have disconnected are gone, so
+    // that there are no more than count.
+    private static void awaitContextCount(ChibiScheme chibiScheme, int count)
+	throws IOException, InterruptedException {
+	long deadline = System.nanoTime() + TIMEOUT_MS * 1000000;
+
+	while (chibiScheme.contextCount() > count) {
+	    if (System.nanoTime() > deadline) {
+		throw new IOException("A context outlived its client.");
+	    }
+	    Thread.sleep(POLL_MS);
+	}
+    }
+
+    // Connect a client once the server is running.
+    private static Transport.Connection connect(Bluetooth bluetooth)
+	throws IOException, InterruptedException {
+	long deadline = System.nanoTime() + TIMEOUT_MS * 1000000;
+
+	while (true) {
+	    Transport.Connection connection = bluetooth.connectLoopback();
+
+	    if (connection != null) {
+		return connection;
+	    }
+	    if (System.nanoTime() > deadline) {
+		throw new IOException("The REPL server isn't running.");
+	    }
+	    Thread.sleep(POLL_MS);
+	}
+    }
+
+    // Evaluate expression as client, and fail unless the result is expected,
+    // or anything if expected is null.
+    private static void expect(Client client, String expression,
+			       String expected) throws IOException {
+	String result = client.evaluate(expression).trim();
+
+	if (expected != null && !result.equals(expected)) {
+	    throw new IOException(expression + " returned \"" + result +
+				  "\", not \"" + expected + "\".");
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,236 @@
+package com.speechcode.schmeep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Clients within the app, connected by pipes, for driving sessions as fast as
+// they can go, without a radio or a network.  connect() returns the client's
+// end of a new connection, and accept() returns the app's end.  Each client
+// has an address of its own, so its Scheme context is destroyed when it
+// closes.
+public class LoopbackTransport implements Transport {
+    static final int PIPE_SIZE = 65536;
+
+    // Bytes on their way in one direction, PIPE_SIZE at most.  Unlike
+    // PipedInputStream, any thread may read or write, whether or not the
+    // threads that used it before are still alive.  As with a socket, once
+    // the output is closed, the input reads the rest and then end of file,
+    // and once the input is closed, reading or writing fails.
+    private static class Pipe {
+	private final byte[] buffer = new byte[PIPE_SIZE];
+
+	private int count;
+	private boolean inputClosed;
+	private boolean outputClosed;
+	private int start;
+
+	final InputStream input = new InputStream() {
+	    @Override
+	    public int available() {
+		synchronized (Pipe.this) {
+		    return count;
+		}
+	    }
+
+	    @Override
+	    public void close() {
+		closeInput();
+	    }
+
+	    @Override
+	    public int read() throws IOException {
+		byte[] one = new byte[1];
+
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+	    }
+
+	    @Override
+	    public int read(byte[] data, int offset, int length)
+		throws IOException {
+		return Pipe.this.read(data, offset, length);
+	    }
+	};
+
+	final OutputStream output = new OutputStream() {
+	    @Override
+	    public void close() {
+		closeOutput();
+	    }
+
+	    @Override
+	    public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	    }
+
+	    @Override
+	    public void write(byte[] data, int offset, int length)
+		throws IOException {
+		Pipe.this.write(data, offset, length);
+	    }
+	};
+
+	synchronized void closeInput() {
+	    inputClosed = true;
+	    count = 0;
+	    notifyAll();
+	}
+
+	synchronized void closeOutput() {
+	    outputClosed = true;
+	    notifyAll();
+	}
+
+	// Copy up to length bytes to data at offset, waiting for at least one,
+	// and return how many, or -1 at end of file.
+	private synchronized int read(byte[] data, int offset, int length)
+	    throws IOException {
+	    if (length == 0) {
+		return 0;
+	    }
+	    while (count == 0) {
+		if (inputClosed) {
+		    throw new IOException("Pipe closed.");
+		}
+		if (outputClosed) {
+		    return -1;
+		}
+		await();
+	    }
+
+	    int n = Math.min(length, Math.min(count, PIPE_SIZE - start));
+
+	    System.arraycopy(buffer, start, data, offset, n);
+	    start = (start + n) % PIPE_SIZE;
+	    count -= n;
+	    notifyAll();
+	    return n;
+	}
+
+	// Wait for the reader, or for the pipe to close.
+	private void await() throws IOException {
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Interrupted on pipe.");
+	    }
+	}
+
+	// Copy length bytes from data at offset, waiting for room as needed.
+	private synchronized void write(byte[] data, int offset, int length)
+	    throws IOException {
+	    while (length > 0) {
+		if (inputClosed || outputClosed) {
+		    throw new IOException("Pipe closed.");
+		}
+		if (count == PIPE_SIZE) {
+		    await();
+		    continue;
+		}
+
+		int end = (start + count) % PIPE_SIZE;
+		int n = Math.min(length,
+				 Math.min(PIPE_SIZE - count, PIPE_SIZE - end));
+
+		System.arraycopy(data, offset, buffer, end, n);
+		count += n;
+		offset += n;
+		length -= n;
+		notifyAll();
+	    }
+	}
+    }
+
+    // One end of a connection, which reads from one pipe and writes to the
+    // other.  Closing it closes both, so the other end reads end of file and
+    // fails to write, as with a socket.
+    private static class PipeConnection implements Connection {
+	private final String address;
+	private final Pipe input;
+	private final Pipe output;
+
+	PipeConnection(String address, Pipe input, Pipe output) {
+	    this.address = address;
+	    this.input = input;
+	    this.output = output;
+	}
+
+	@Override
+	public String address() {
+	    return address;
+	}
+
+	@Override
+	public void close() {
+	    output.closeOutput();
+	    input.closeInput();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+	    return input.input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+	    return output.output;
+	}
+
+	@Override
+	public boolean reconnects() {
+	    return false;
+	}
+    }
+
+    // Returned by accept() once the transport is closed.
+    private static final Connection CLOSED =
+	new PipeConnection("closed", null, null);
+
+    private final BlockingQueue<Connection> pending =
+	new LinkedBlockingQueue<>();
+
+    private int clientCount;
+
+    // Connect a new client, and return its end of the connection.
+    public Connection connect() {
+	Pipe toApp = new Pipe();
+	Pipe toClient = new Pipe();
+	String address;
+
+	synchronized (this) {
+	    address = "client-" + clientCount++;
+	}
+	pending.add(new PipeConnection(address, toApp, toClient));
+	return new PipeConnection(address, toClient, toApp);
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+	try {
+	    Connection connection = pending.take();
+
+	    if (connection == CLOSED) {
+		pending.add(CLOSED);
+		throw new IOException("Loopback transport closed.");
+	    }
+	    return connection;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while accepting.");
+	}
+    }
+
+    @Override
+    public void close() {
+	pending.add(CLOSED);
+    }
+
+    @Override
+    public String name() {
+	return "loopback";
+    }
+}
\ No newline at end of file
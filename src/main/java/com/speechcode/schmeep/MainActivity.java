@@ -2,17 +2,32 @@ package com.speechcode.schmeep;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 public class MainActivity extends Activity {
+    private static final String BRIDGE_MESSAGE = "schmeep-bridge";
     private static final String LOG_TAG = "schmeep";
 
+    // Messages posted before the page has its bridge port.  Only touched on
+    // the UI thread.
+    private final List<String> pendingBridgeMessages = new ArrayList<>();
+
     private Bluetooth bluetooth;
+    private WebMessagePort bridgePort;
     private ChibiScheme chibiScheme;
+    private PatchQueue patches;
     private WebView webView;
 
     static { System.loadLibrary("schmeep"); }
@@ -25,6 +40,7 @@ public class MainActivity extends Activity {
 	setTitle("Schmeep: Chibi Scheme REPL");
 	Log.i(LOG_TAG, "MainActivity onCreate started.");
 
+	patches = new PatchQueue(this);
 	registerForOutputCapture();
 	chibiScheme = new ChibiScheme(this);
 	setupWebView();
@@ -44,11 +60,11 @@ public class MainActivity extends Activity {
 	webSettings.setAllowFileAccessFromFileURLs(true);
 	try {
 	    Log.i(LOG_TAG, "Direct JNI test result: " +
-			       chibiScheme.evaluateScheme("(+ 2 3)"));
+			       chibiScheme.eval("(+ 2 3)"));
 	    Log.i(LOG_TAG, "Direct JNI test result: " +
-			       chibiScheme.evaluateScheme("(* 4 5)"));
+			       chibiScheme.eval("(* 4 5)"));
 	    Log.i(LOG_TAG, "Direct JNI test result: " +
-			       chibiScheme.evaluateScheme("(list 1 2 3)"));
+			       chibiScheme.eval("(list 1 2 3)"));
 	} catch (Exception e) {
 	    Log.e(LOG_TAG, "JNI test failed: " + e.getMessage());
 	}
@@ -69,61 +85,106 @@ public class MainActivity extends Activity {
 
     @JavascriptInterface
     public void displayExpression(String expression) {
-	runOnUiThread(() -> {
-	    String escapedExpr = JavaScript.escape(expression);
-	    String jsCode = "if (window.nativeDisplayExpression) { "
-			    + "window.nativeDisplayExpression(\"" +
-			    escapedExpr + "\"); }";
-	    webView.evaluateJavascript(jsCode, null);
-	});
+	patches.displayExpression(null, expression, "local", "local");
     }
 
     @JavascriptInterface
     public void displayResult(String text, String source, String type) {
-	runOnUiThread(() -> {
-	    String escapedText = JavaScript.escape(text);
-	    String jsCode = "if (window.nativeDisplayResult) { "
-			    + "window.nativeDisplayResult(\"" + escapedText +
-			    "\", \"" + source + "\", \"" + type + "\"); }";
-	    webView.evaluateJavascript(jsCode, null);
-	});
+	patches.displayResult(text, source, type);
     }
 
-    @JavascriptInterface
-    public void displayCapturedOutput(String output) {
-	runOnUiThread(() -> {
-	    String escapedOutput = JavaScript.escape(output);
-	    String jsCode = "if (window.nativeDisplayCapturedOutput) { "
-			    + "window.nativeDisplayCapturedOutput(\"" +
-			    escapedOutput + "\"); }";
-	    webView.evaluateJavascript(jsCode, null);
-	});
+    // Called from native code with the first length bytes of output, which
+    // are UTF-8 and are only valid during the call, from an evaluation that
+    // has no transcript entry.
+    public void displayCapturedOutput(byte[] output, int length) {
+	displayCapturedOutput(null, output, length);
+    }
+
+    // Like the above, but for the evaluation whose transcript entry is named
+    // entry.  See PatchQueue.
+    public void displayCapturedOutput(String entry, byte[] output,
+				      int length) {
+	if (length > 0) {
+	    patches.appendOutput(
+		entry, new String(output, 0, length, StandardCharsets.UTF_8));
+	}
     }
 
     @JavascriptInterface
     public void replaceElementHTML(String selector, String html) {
+	patches.replace(selector, html);
+    }
+
+    // Give the newly loaded page a message port on which to receive the
+    // results of Scheme.evalAsync and patches from PatchQueue.
+    void openBridge() {
+	WebMessagePort[] ports = webView.createWebMessageChannel();
+
+	if (bridgePort != null) {
+	    bridgePort.close();
+	}
+	bridgePort = ports[0];
+	webView.postWebMessage(
+	    new WebMessage(BRIDGE_MESSAGE, new WebMessagePort[] {ports[1]}),
+	    Uri.parse("*"));
+	for (String message : pendingBridgeMessages) {
+	    bridgePort.postMessage(new WebMessage(message));
+	}
+	pendingBridgeMessages.clear();
+	Log.i(LOG_TAG, "Evaluation bridge opened.");
+    }
+
+    // Send the page the result of the Scheme.evalAsync request with the given
+    // id.  May be called on any thread.
+    void postEvaluationResult(long id, String status, String result) {
+	String message;
+
+	try {
+	    message = new JSONObject()
+			  .put("id", id)
+			  .put("status", status)
+			  .put("result", result)
+			  .toString();
+	} catch (JSONException e) {
+	    Log.e(LOG_TAG,
+		  "Error encoding evaluation result: " + e.getMessage());
+	    return;
+	}
+	// Flush first so that the page sees output produced during the
+	// evaluation before its result.
+	patches.setStats(Stats.summary());
 	runOnUiThread(() -> {
-	    String escapedSelector = JavaScript.escape(selector);
-	    String escapedHtml = JavaScript.escape(html);
-	    String jsCode =
-		"(function() { "
-		+ "try { "
-		+ "var el = document.querySelector(\"" + escapedSelector +
-		"\"); "
-		+ "if (el) { el.outerHTML = \"" + escapedHtml + "\"; } "
-		+
-		"else { console.error('Element not found: " + escapedSelector +
-		"'); } "
-		+
-		"} catch (e) { console.error('replaceElementHTML error:', e); } "
-		+ "})();";
-	    webView.evaluateJavascript(jsCode, null);
+	    patches.flush();
+	    postBridgeMessage(message);
 	});
     }
 
+    // Must be called on the UI thread.
+    void postBridgeMessage(String message) {
+	if (bridgePort == null) {
+	    pendingBridgeMessages.add(message);
+	} else {
+	    bridgePort.postMessage(new WebMessage(message));
+	}
+    }
+
+    // Start the REPL server, and, if the app was started with
+    // LoopbackTest.CLIENTS_EXTRA, run LoopbackTest against it.
     public void initializeBluetooth() {
-	bluetooth = new Bluetooth(this, chibiScheme, webView);
+	bluetooth = new Bluetooth(this, chibiScheme, patches);
 	bluetooth.requestBluetoothPermissions();
+
+	int loopbackClients =
+	    getIntent().getIntExtra(LoopbackTest.CLIENTS_EXTRA, 0);
+
+	if (loopbackClients > 0) {
+	    Bluetooth server = bluetooth;
+
+	    new Thread(() -> LoopbackTest.run(server, chibiScheme,
+					      loopbackClients),
+		       "schmeep-loopback-test")
+		.start();
+	}
     }
 
     @Override
@@ -133,6 +194,7 @@ public class MainActivity extends Activity {
 	    bluetooth.stop();
 	}
 	if (chibiScheme != null) {
+	    chibiScheme.stop();
 	    chibiScheme.cleanupScheme();
 	}
 	Log.i(LOG_TAG, "MainActivity destroyed");
@@ -17,6 +17,7 @@ public class PageLoadedWebViewClient extends WebViewClient {
     public void onPageFinished(WebView view, String url) {
 	super.onPageFinished(view, url);
 	Log.i(LOG_TAG, "WebView page finished loading: " + url);
+	mainActivity.openBridge();
 	mainActivity.initializeBluetooth();
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import android.view.Choreographer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Changes to the page, e.g. transcript entries, captured output, and status
+// updates.  Patches may be added on any thread.  They are sent to the page
+// together, at most once per frame, as one message on MainActivity's bridge
+// port, and applyPatches in main.js applies them.  Consecutive output patches
+// for the same entry are merged, and only the latest status and stats updates
+// in each batch are sent.
+//
+// Evaluations may overlap, so each transcript entry for one is named by a key,
+// its entry, which the patches for its output and result carry.  The page
+// maps it to the entry.  A null entry names none.
+public class PatchQueue implements Choreographer.FrameCallback {
+    private static final String LOG_TAG = "schmeep";
+
+    private final MainActivity activity;
+    private final List<JSONObject> patches = new ArrayList<>();
+
+    private boolean scheduled;
+    private JSONObject stats;
+    private JSONObject status;
+
+    PatchQueue(MainActivity activity) { this.activity = activity; }
+
+    // Append text to the output of the transcript's entry named entry.
+    public void appendOutput(String entry, String text) {
+	synchronized (this) {
+	    JSONObject last =
+		patches.isEmpty() ? null : patches.get(patches.size() - 1);
+
+	    if (last != null && "output".equals(last.optString("verb")) &&
+		Objects.equals(entry, last.opt("entry"))) {
+		put(last, "text", last.optString("text") + text);
+		return;
+	    }
+	}
+	add(patch("output", "entry", entry, "text", text));
+    }
+
+    // Show result as the value of the transcript's entry named entry.
+    public void completeEvaluation(String entry, String result, String type) {
+	add(patch("complete", "entry", entry, "text", result, "type", type));
+    }
+
+    // Add an entry named entry for expression to the transcript, awaiting its
+    // value.
+    public void displayExpression(String entry, String expression,
+				  String source, String type) {
+	add(patch("expression", "entry", entry, "text", expression, "source",
+		  source, "type", type));
+    }
+
+    // Add an entry containing just text to the transcript.
+    public void displayResult(String text, String source, String type) {
+	add(patch("result", "text", text, "source", source, "type", type));
+    }
+
+    public void replace(String selector, String html) {
+	add(patch("replace", "selector", selector, "html", html));
+    }
+
+    // Show summary, from Stats.summary(), on the status bar.
+    public void setStats(String summary) {
+	JSONObject patch = patch("stats", "text", summary);
+
+	synchronized (this) {
+	    stats = patch;
+	}
+	schedule();
+    }
+
+    public void setStatus(String type, String message) {
+	JSONObject patch = patch("status", "type", type, "text", message);
+
+	synchronized (this) {
+	    status = patch;
+	}
+	schedule();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+	flush();
+    }
+
+    // Send pending patches now.  Must be called on the UI thread.
+    public void flush() {
+	JSONArray batch = new JSONArray();
+
+	synchronized (this) {
+	    scheduled = false;
+	    if (patches.isEmpty() && stats == null && status == null) {
+		return;
+	    }
+	    for (JSONObject patch : patches) {
+		batch.put(patch);
+	    }
+	    if (stats != null) {
+		batch.put(stats);
+	    }
+	    if (status != null) {
+		batch.put(status);
+	    }
+	    patches.clear();
+	    stats = null;
+	    status = null;
+	}
+
+	JSONObject message = new JSONObject();
+
+	put(message, "patches", batch);
+	activity.postBridgeMessage(message.toString());
+    }
+
+    private void add(JSONObject patch) {
+	synchronized (this) {
+	    patches.add(patch);
+	}
+	schedule();
+    }
+
+    private static JSONObject patch(String verb, String... fields) {
+	JSONObject patch = new JSONObject();
+
+	put(patch, "verb", verb);
+	for (int i = 0; i < fields.length; i += 2) {
+	    put(patch, fields[i], fields[i + 1]);
+	}
+	return patch;
+    }
+
+    private static void put(JSONObject object, String key, Object value) {
+	try {
+	    object.put(key, value);
+	} catch (JSONException e) {
+	    Log.e(LOG_TAG, "Error encoding patch: " + e.getMessage());
+	}
+    }
+
+    private void schedule() {
+	synchronized (this) {
+	    if (scheduled) {
+		return;
+	    }
+	    scheduled = true;
+	}
+	activity.runOnUiThread(
+	    () -> Choreographer.getInstance().postFrameCallback(this));
+    }
+}
\ No newline at end of file
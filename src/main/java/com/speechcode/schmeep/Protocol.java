@@ -0,0 +1,387 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Framing for the REPL wire protocol.
+//
+// Version 1 (legacy): each client-to-app byte 0-253 is the length of the data
+// block that follows, and 254 and 255 are the evaluate and interrupt commands.
+// App-to-client bytes 0-254 are data block lengths, and 255 means that
+// evaluation is complete.
+//
+// Version 2 (framed): a client that wants version 2 first sends a legacy data
+// block containing HANDSHAKE_MAGIC, its version, and the largest frame it
+// accepts, followed by a legacy interrupt command so that a version 1 app
+// discards the block.  A version 2 app replies with a legacy data block of the
+// same shape carrying the agreed version and frame size.  The client confirms
+// by sending that block back, also followed by an interrupt.  Until then, the
+// app stays with version 1, so a client that stopped waiting for the reply,
+// and discards it when it arrives late, stays in step.  After the
+// confirmation, every message in both directions is a frame: one type byte
+// followed by a two-byte big-endian payload length, or a four-byte one if the
+// type has FRAME_LONG_LENGTH set.  In version 2, a client may also send
+// FRAME_STATS, to which the app replies with Stats.report() as if it were a
+// result.
+//
+// Version 3 (tagged): like version 2, but every frame's payload starts with
+// the four-byte big-endian id of the request it belongs to, which the client
+// chooses.  App-to-client FRAME_DATA payloads continue with a channel byte,
+// CHANNEL_OUTPUT for output produced during evaluation, or CHANNEL_RESULT,
+// CHANNEL_ERROR, or CHANNEL_STATS for the final response, and
+// FRAME_EVALUATION_COMPLETE ends the request.  A client may have several
+// requests in flight at once.  FRAME_INTERRUPT with a request's id cancels
+// just that request, whether it is running or still queued, and with id 0
+// interrupts whatever is running, as in earlier versions.  FRAME_BUDGET,
+// whose payload after the id is a four-byte time limit in milliseconds and a
+// four-byte heap growth limit in bytes, 0 meaning none, sets the Budget for
+// the request with that id, or, with id 0, for the session.  The app agrees
+// to the highest version that both it and the client speak.
+//
+// Also in version 3, a client uploads files to the UploadStore and loads them
+// as one request.  It sends FRAME_UPLOAD with a manifest in the format of
+// sha256sum, a hash, two spaces, and a name on each line, in the order the
+// files are to be loaded.  The app replies on CHANNEL_MISSING with the number
+// of files it doesn't have, on a line of its own, followed by their hashes,
+// one per line.  The client sends each of those files, in that order, as
+// FRAME_DATA followed by FRAME_STORE, then sends FRAME_EVALUATE, and the app
+// loads every file in the manifest.
+public class Protocol {
+    private static final String LOG_TAG = "schmeep";
+
+    static final int CHANNEL_ERROR = 2;
+    static final int CHANNEL_MISSING = 4;
+    static final int CHANNEL_OUTPUT = 0;
+    static final int CHANNEL_RESULT = 1;
+    static final int CHANNEL_STATS = 3;
+    static final int CMD_A2C_EVALUATION_COMPLETE = 255;
+    static final int CMD_C2A_EVALUATE = 254;
+    static final int CMD_C2A_INTERRUPT = 255;
+    static final int CMD_C2A_MIN_COMMAND = CMD_C2A_EVALUATE;
+    static final int FRAME_BUDGET = 6;
+    static final int FRAME_DATA = 1;
+    static final int FRAME_EVALUATE = 2;
+    static final int FRAME_EVALUATION_COMPLETE = 4;
+    static final int FRAME_INTERRUPT = 3;
+    static final int FRAME_LONG_LENGTH = 0x80;
+    static final int FRAME_STATS = 5;
+    static final int FRAME_STORE = 8;
+    static final int FRAME_UPLOAD = 7;
+    static final byte[] HANDSHAKE_MAGIC = {
+	0, 's', 'c', 'h', 'm', 'e', 'e', 'p'};
+    static final int HANDSHAKE_LENGTH = HANDSHAKE_MAGIC.length + 5;
+    static final int LEGACY_BLOCK_SIZE = CMD_C2A_MIN_COMMAND - 1;
+    static final int MAX_MESSAGE_LENGTH = 1048576;
+    static final int MAX_SHORT_FRAME = 0xffff;
+    static final long NEGOTIATE_POLL_MS = 10;
+    static final int OUTPUT_BUFFER_SIZE = 65536;
+    static final int TAG_LENGTH = 4;
+    static final int VERSION_FRAMED = 2;
+    static final int VERSION_LEGACY = 1;
+    static final int VERSION_TAGGED = 3;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // A message from the client.  Before version 3, id is always 0.
+    public static class Message {
+	final int id;
+	final int type;
+	final byte[] payload;
+
+	Message(int type, int id, byte[] payload) {
+	    this.id = id;
+	    this.type = type;
+	    this.payload = payload;
+	}
+    }
+
+    private final DataInputStream input;
+    private final OutputStream output;
+
+    private int frameSize;
+    private boolean handshakeAllowed;
+    private int offeredFrameSize;
+    private int offeredVersion;
+    private volatile int version;
+
+    public Protocol(InputStream input, OutputStream output) {
+	this.frameSize = LEGACY_BLOCK_SIZE;
+	this.handshakeAllowed = true;
+	this.input = new DataInputStream(input);
+	this.output = new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+	this.version = VERSION_LEGACY;
+    }
+
+    public int getVersion() { return version; }
+
+    // Settle the protocol version without reading anything else, waiting up
+    // to timeoutMillis for the client's handshake and its confirmation.  A
+    // client that doesn't offer one stays with version 1.  This is for
+    // clients that are only to be told something, e.g. why they were turned
+    // away, so it polls rather than blocking on a client that never speaks.
+    public void negotiate(long timeoutMillis) throws IOException {
+	long deadline =
+	    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+	while (handshakeAllowed && version == VERSION_LEGACY) {
+	    if (input.available() == 0) {
+		if (System.nanoTime() >= deadline) {
+		    return;
+		}
+		try {
+		    Thread.sleep(NEGOTIATE_POLL_MS);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return;
+		}
+		continue;
+	    }
+
+	    int first = input.read();
+
+	    if (first == -1 || first >= CMD_C2A_MIN_COMMAND) {
+		handshakeAllowed = false;
+		return;
+	    }
+
+	    byte[] payload = readPayload(first);
+
+	    if (!isHandshake(payload)) {
+		handshakeAllowed = false;
+		return;
+	    }
+	    acceptHandshake(payload);
+	}
+    }
+
+    // Return the next message from the client, with type FRAME_BUDGET,
+    // FRAME_DATA, FRAME_EVALUATE, FRAME_INTERRUPT, FRAME_STATS, FRAME_STORE,
+    // or FRAME_UPLOAD, or null once the client has disconnected.
+    public Message read() throws IOException {
+	while (true) {
+	    int first = input.read();
+
+	    if (first == -1) {
+		return null;
+	    }
+
+	    if (version == VERSION_LEGACY) {
+		if (first == CMD_C2A_EVALUATE) {
+		    handshakeAllowed = false;
+		    return received(new Message(FRAME_EVALUATE, 0, EMPTY));
+		}
+		if (first == CMD_C2A_INTERRUPT) {
+		    handshakeAllowed = false;
+		    return received(new Message(FRAME_INTERRUPT, 0, EMPTY));
+		}
+
+		byte[] payload = readPayload(first);
+
+		if (handshakeAllowed && isHandshake(payload)) {
+		    acceptHandshake(payload);
+		    continue;
+		}
+		handshakeAllowed = false;
+		return received(new Message(FRAME_DATA, 0, payload));
+	    }
+
+	    int length = (first & FRAME_LONG_LENGTH) != 0
+			     ? input.readInt()
+			     : input.readUnsignedShort();
+
+	    if (length < 0 || length > frameSize) {
+		throw new IOException("Frame too large: " + length +
+				      " bytes.");
+	    }
+
+	    int type = first & ~FRAME_LONG_LENGTH;
+
+	    if (version == VERSION_FRAMED) {
+		return received(new Message(type, 0, readPayload(length)));
+	    }
+	    if (length < TAG_LENGTH) {
+		throw new IOException("Frame without request id.");
+	    }
+
+	    int id = input.readInt();
+
+	    return received(
+		new Message(type, id, readPayload(length - TAG_LENGTH)));
+	}
+    }
+
+    // Send whatever has been written.
+    public synchronized void flush() throws IOException {
+	output.flush();
+	Stats.record(Stats.FLUSHES, 1);
+    }
+
+    // Send data, the final response to request id on channel, then mark the
+    // request complete.
+    public synchronized void sendResult(int id, int channel, byte[] data)
+	throws IOException {
+	writeResult(id, channel, data);
+	flush();
+    }
+
+    // Write the first length bytes of data, which request id produced on
+    // channel, e.g. output while it is still being evaluated, without
+    // flushing.
+    public synchronized void writeOutput(int id, int channel, byte[] data,
+					 int length) throws IOException {
+	writeData(id, channel, data, length);
+    }
+
+    // Like sendResult, but without flushing.
+    public synchronized void writeResult(int id, int channel, byte[] data)
+	throws IOException {
+	writeData(id, channel, data, data.length);
+	if (version == VERSION_LEGACY) {
+	    output.write(CMD_A2C_EVALUATION_COMPLETE);
+	} else if (version == VERSION_FRAMED) {
+	    writeHeader(FRAME_EVALUATION_COMPLETE, 0);
+	} else {
+	    writeHeader(FRAME_EVALUATION_COMPLETE, TAG_LENGTH);
+	    writeTag(id);
+	}
+    }
+
+    // Reply to the client's handshake, or, if this is the client's
+    // confirmation of the reply, switch to the agreed version.
+    private void acceptHandshake(byte[] payload) throws IOException {
+	int offered = payload[HANDSHAKE_MAGIC.length] & 0xff;
+	int requestedFrameSize = readInt(payload, HANDSHAKE_MAGIC.length + 1);
+
+	// The client follows each handshake block with an interrupt so that
+	// legacy apps discard the block.
+	if (input.read() != CMD_C2A_INTERRUPT) {
+	    throw new IOException("Malformed protocol handshake.");
+	}
+	if (offeredVersion != 0) {
+	    if (offered != offeredVersion ||
+		requestedFrameSize != offeredFrameSize) {
+		throw new IOException("Mismatched protocol confirmation.");
+	    }
+	    frameSize = offeredFrameSize;
+	    handshakeAllowed = false;
+	    version = offeredVersion;
+	    Log.i(LOG_TAG, "Negotiated protocol version " + version +
+			       " with frame size " + frameSize + ".");
+	    return;
+	}
+	if (offered < VERSION_FRAMED) {
+	    throw new IOException("Unsupported protocol version: " + offered +
+				  ".");
+	}
+
+	int agreedFrameSize = Math.max(
+	    LEGACY_BLOCK_SIZE, Math.min(requestedFrameSize, MAX_MESSAGE_LENGTH));
+	int agreedVersion = Math.min(offered, VERSION_TAGGED);
+	byte[] reply = new byte[HANDSHAKE_LENGTH];
+
+	System.arraycopy(HANDSHAKE_MAGIC, 0, reply, 0, HANDSHAKE_MAGIC.length);
+	reply[HANDSHAKE_MAGIC.length] = (byte)agreedVersion;
+	writeInt(reply, HANDSHAKE_MAGIC.length + 1, agreedFrameSize);
+	synchronized (this) {
+	    output.write(reply.length);
+	    output.write(reply);
+	    output.flush();
+	}
+	offeredFrameSize = agreedFrameSize;
+	offeredVersion = agreedVersion;
+    }
+
+    private static boolean isHandshake(byte[] payload) {
+	if (payload.length != HANDSHAKE_LENGTH) {
+	    return false;
+	}
+	for (int i = 0; i < HANDSHAKE_MAGIC.length; i++) {
+	    if (payload[i] != HANDSHAKE_MAGIC[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static Message received(Message message) {
+	Stats.record(Stats.FRAMES_IN, 1);
+	Stats.record(Stats.BYTES_IN, message.payload.length);
+	return message;
+    }
+
+    private byte[] readPayload(int length) throws IOException {
+	if (length == 0) {
+	    return EMPTY;
+	}
+
+	byte[] payload = new byte[length];
+
+	input.readFully(payload);
+	return payload;
+    }
+
+    static int readInt(byte[] data, int offset) {
+	return ((data[offset] & 0xff) << 24) |
+	    ((data[offset + 1] & 0xff) << 16) |
+	    ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private void writeData(int id, int channel, byte[] data, int length)
+	throws IOException {
+	int maximum = version == VERSION_LEGACY ? LEGACY_BLOCK_SIZE
+		      : version == VERSION_FRAMED ? frameSize
+		      : frameSize - TAG_LENGTH - 1;
+	int sent = 0;
+
+	while (sent < length) {
+	    int blockSize = Math.min(maximum, length - sent);
+
+	    if (version == VERSION_LEGACY) {
+		output.write(blockSize);
+	    } else if (version == VERSION_FRAMED) {
+		writeHeader(FRAME_DATA, blockSize);
+	    } else {
+		writeHeader(FRAME_DATA, TAG_LENGTH + 1 + blockSize);
+		writeTag(id);
+		output.write(channel);
+	    }
+	    output.write(data, sent, blockSize);
+	    sent += blockSize;
+	    Stats.record(Stats.FRAMES_OUT, 1);
+	}
+	Stats.record(Stats.BYTES_OUT, length);
+    }
+
+    private void writeHeader(int type, int length) throws IOException {
+	if (length > MAX_SHORT_FRAME) {
+	    byte[] header = new byte[5];
+
+	    header[0] = (byte)(type | FRAME_LONG_LENGTH);
+	    writeInt(header, 1, length);
+	    output.write(header);
+	} else {
+	    output.write(type);
+	    output.write(length >> 8);
+	    output.write(length);
+	}
+    }
+
+    private void writeTag(int id) throws IOException {
+	byte[] tag = new byte[TAG_LENGTH];
+
+	writeInt(tag, 0, id);
+	output.write(tag);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+	data[offset] = (byte)(value >> 24);
+	data[offset + 1] = (byte)(value >> 16);
+	data[offset + 2] = (byte)(value >> 8);
+	data[offset + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,99 @@
+package com.speechcode.schmeep;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// Bluetooth RFCOMM clients, e.g. the schmeep CLI, found through SDP.
+public class RfcommTransport implements Transport {
+    private static final String LOG_TAG = "schmeep";
+    private static final UUID SCHMEEP_UUID =
+	UUID.fromString("611a1a1a-94ba-11f0-b0a8-5f754c08f133");
+    private static final String SERVICE_NAME = "schmeep";
+    private static final UUID SPP_UUID =
+	UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private static class RfcommConnection implements Connection {
+	private final BluetoothSocket socket;
+
+	RfcommConnection(BluetoothSocket socket) { this.socket = socket; }
+
+	@Override
+	public String address() {
+	    return socket.getRemoteDevice().getAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+	    socket.close();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+	    return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+	    return socket.getOutputStream();
+	}
+
+	@Override
+	public boolean reconnects() {
+	    return true;
+	}
+    }
+
+    private final BluetoothServerSocket serverSocket;
+
+    private RfcommTransport(BluetoothServerSocket serverSocket) {
+	this.serverSocket = serverSocket;
+    }
+
+    // Register the schmeep service with adapter, falling back to the serial
+    // port profile's UUID, and start listening.
+    static RfcommTransport listen(BluetoothAdapter adapter)
+	throws IOException {
+	IOException lastException = null;
+
+	for (UUID uuid : new UUID[] {SCHMEEP_UUID, SPP_UUID}) {
+	    try {
+		BluetoothServerSocket serverSocket =
+		    adapter.listenUsingRfcommWithServiceRecord(SERVICE_NAME,
+							       uuid);
+
+		Log.i(LOG_TAG,
+		      "Started Bluetooth REPL service (secure) with UUID: " +
+			  uuid);
+		return new RfcommTransport(serverSocket);
+	    } catch (IOException e) {
+		lastException = e;
+		Log.w(LOG_TAG, "Failed to start with UUID " + uuid + ": " +
+				   e.getMessage());
+	    }
+	}
+	throw lastException != null
+	    ? lastException
+	    : new IOException("Could not start any Bluetooth service");
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+	return new RfcommConnection(serverSocket.accept());
+    }
+
+    @Override
+    public void close() throws IOException {
+	serverSocket.close();
+    }
+
+    @Override
+    public String name() {
+	return "bluetooth";
+    }
+}
\ No newline at end of file
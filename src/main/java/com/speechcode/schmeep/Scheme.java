@@ -0,0 +1,41 @@
+package com.speechcode.schmeep;
+
+public class Scheme {
+    // Return input escaped for use inside a Scheme string literal.  Control
+    // characters other than newline, return, and tab are written as R7RS hex
+    // escapes, e.g. \x7f;.
+    public static String escape(String input) {
+	StringBuilder result = new StringBuilder(input.length());
+
+	for (int i = 0; i < input.length(); i++) {
+	    char c = input.charAt(i);
+
+	    switch (c) {
+	    case '\\':
+		result.append("\\\\");
+		break;
+	    case '"':
+		result.append("\\\"");
+		break;
+	    case '\n':
+		result.append("\\n");
+		break;
+	    case '\r':
+		result.append("\\r");
+		break;
+	    case '\t':
+		result.append("\\t");
+		break;
+	    default:
+		if (c < ' ' || c == '\u007f') {
+		    result.append("\\x")
+			.append(Integer.toHexString(c))
+			.append(';');
+		} else {
+		    result.append(c);
+		}
+	    }
+	}
+	return result.toString();
+    }
+}
\ No newline at end of file
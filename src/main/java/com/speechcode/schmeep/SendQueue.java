@@ -0,0 +1,226 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bytes waiting to be sent to one client, and the thread that sends them.
+// Evaluations add output and results here instead of writing to the socket
+// themselves, so a slow client doesn't hold up Scheme while it holds its
+// context.  Output is copied into fixed-size chunks, so many small writes
+// become a few frames, and the writer flushes once per batch of chunks.
+//
+// At most capacity bytes of output may wait.  When output doesn't fit, the
+// policy decides what happens: BLOCK waits for room, DROP discards it and
+// later sends DROPPED_MARKER in its place, and PAUSE waits until the queue
+// has drained to half its capacity, so that evaluation resumes in bursts
+// rather than in lockstep with the link.  Results are always queued.  Each
+// chunk belongs to one request, identified by the client's request id.
+public class SendQueue {
+    private static final String LOG_TAG = "schmeep";
+
+    static final int CHUNK_SIZE = 4096;
+    static final int DEFAULT_CAPACITY = 65536;
+    static final byte[] DROPPED_MARKER =
+	"\n;; Output dropped.  The client isn't keeping up.\n".getBytes(
+	    StandardCharsets.UTF_8);
+    static final int MAX_SPARE_CHUNKS = 16;
+
+    public enum Policy { BLOCK, DROP, PAUSE }
+
+    private static class Chunk {
+	final byte[] data;
+	final boolean result;
+	int channel;
+	int id;
+	int length;
+
+	Chunk(byte[] data, int length, boolean result) {
+	    this.data = data;
+	    this.length = length;
+	    this.result = result;
+	}
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private final Policy policy;
+    private final Protocol protocol;
+    private final List<Chunk> spares = new ArrayList<>();
+    private final Thread thread;
+
+    private boolean closed;
+    private boolean dropping;
+    private int droppingId;
+    private int size;
+
+    SendQueue(Protocol protocol, String name, Policy policy, int capacity) {
+	this.capacity = capacity;
+	this.policy = policy;
+	this.protocol = protocol;
+	this.thread = new Thread(this::run, "schmeep-writer-" + name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    // Stop accepting bytes, wake anyone waiting for room, and stop the
+    // writer once it has sent what is already queued.
+    public synchronized void close() {
+	closed = true;
+	notifyAll();
+    }
+
+    // Queue data, a message on channel that doesn't end request id.  Unlike
+    // output, it is never dropped.
+    public synchronized void sendData(int id, int channel, byte[] data) {
+	if (!closed) {
+	    append(id, channel, data, 0, data.length);
+	}
+    }
+
+    // Queue the first length bytes of output from request id, which may be
+    // reused as soon as this returns.  If the thread is interrupted while
+    // waiting for room, e.g. by the watchdog, the rest is discarded.
+    public synchronized void sendOutput(int id, byte[] output, int length) {
+	int offset = 0;
+
+	while (offset < length && !closed) {
+	    if (size >= capacity) {
+		if (policy == Policy.DROP) {
+		    dropping = true;
+		    droppingId = id;
+		    return;
+		}
+		if (!awaitRoom(policy == Policy.PAUSE ? capacity / 2
+						      : capacity - 1)) {
+		    return;
+		}
+		continue;
+	    }
+	    if (dropping) {
+		dropping = false;
+		append(droppingId, Protocol.CHANNEL_OUTPUT, DROPPED_MARKER, 0,
+		       DROPPED_MARKER.length);
+	    }
+
+	    int count = Math.min(length - offset, capacity - size);
+
+	    append(id, Protocol.CHANNEL_OUTPUT, output, offset, count);
+	    offset += count;
+	}
+    }
+
+    // Queue result, the response on channel that ends request id, after any
+    // output before it.
+    public synchronized void sendResult(int id, int channel, byte[] result) {
+	if (closed) {
+	    return;
+	}
+	if (dropping) {
+	    dropping = false;
+	    append(droppingId, Protocol.CHANNEL_OUTPUT, DROPPED_MARKER, 0,
+		   DROPPED_MARKER.length);
+	}
+
+	Chunk chunk = new Chunk(result, result.length, true);
+
+	chunk.channel = channel;
+	chunk.id = id;
+	chunks.add(chunk);
+	notifyAll();
+    }
+
+    private void append(int id, int channel, byte[] data, int offset,
+			int length) {
+	size += length;
+	while (length > 0) {
+	    Chunk last = chunks.peekLast();
+
+	    if (last == null || last.result || last.id != id ||
+		last.channel != channel || last.length == CHUNK_SIZE) {
+		last = spares.isEmpty()
+			   ? new Chunk(new byte[CHUNK_SIZE], 0, false)
+			   : spares.remove(spares.size() - 1);
+		last.channel = channel;
+		last.id = id;
+		chunks.add(last);
+	    }
+
+	    int count = Math.min(length, CHUNK_SIZE - last.length);
+
+	    System.arraycopy(data, offset, last.data, last.length, count);
+	    last.length += count;
+	    offset += count;
+	    length -= count;
+	}
+	notifyAll();
+    }
+
+    // Wait until no more than limit bytes are queued.  Return false if the
+    // queue was closed or the thread was interrupted instead.
+    private boolean awaitRoom(int limit) {
+	try {
+	    while (size > limit && !closed) {
+		wait();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+	return !closed;
+    }
+
+    private void run() {
+	List<Chunk> batch = new ArrayList<>();
+
+	while (true) {
+	    synchronized (this) {
+		try {
+		    while (chunks.isEmpty() && !closed) {
+			wait();
+		    }
+		} catch (InterruptedException e) {
+		    return;
+		}
+		if (chunks.isEmpty()) {
+		    return;
+		}
+		batch.addAll(chunks);
+		chunks.clear();
+	    }
+
+	    int sent = 0;
+
+	    try {
+		for (Chunk chunk : batch) {
+		    if (chunk.result) {
+			protocol.writeResult(chunk.id, chunk.channel,
+					     chunk.data);
+		    } else {
+			protocol.writeOutput(chunk.id, chunk.channel,
+					     chunk.data, chunk.length);
+			sent += chunk.length;
+		    }
+		}
+		protocol.flush();
+	    } catch (IOException e) {
+		Log.e(LOG_TAG, "Error sending to client: " + e.getMessage());
+		close();
+	    }
+	    synchronized (this) {
+		size -= sent;
+		for (Chunk chunk : batch) {
+		    if (!chunk.result && spares.size() < MAX_SPARE_CHUNKS) {
+			chunk.length = 0;
+			spares.add(chunk);
+		    }
+		}
+		notifyAll();
+	    }
+	    batch.clear();
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,446 @@
+package com.speechcode.schmeep;
+
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One connected REPL client.  Each session has its own input buffer, protocol
+// state, evaluator thread, send queue, and Scheme context, so clients don't
+// wait for each other.  A client that reconnects gets back the context it had
+// before.
+//
+// Input, output, and results are kept apart by the client's request ids,
+// which are always 0 before version 3 of the protocol.  Requests are still
+// evaluated one at a time, in the order they arrive, since they share the
+// session's context.
+//
+// A request may also upload files to the app's UploadStore, then load them,
+// as described in Protocol.
+public class Session {
+    private static final String LOG_TAG = "schmeep";
+
+    // How long a rejected client has to offer a protocol version, so that
+    // the reason is framed the way it expects.
+    private static final long REJECT_HANDSHAKE_MS = 2000;
+
+    // Numbers sessions, so that their transcript entries have distinct
+    // names.  See PatchQueue.
+    private static final AtomicLong serial = new AtomicLong();
+
+    final String address;
+
+    // The input received so far for one request id.
+    private static class Input {
+	final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	final ExpressionScanner scanner = new ExpressionScanner();
+    }
+
+    // Files being uploaded as one request: the names and hashes of all of
+    // them, in the order to load them, the hashes of those the store lacks,
+    // in the order the client will send them, and the file being received.
+    private static class Upload {
+	final ByteArrayOutputStream content = new ByteArrayOutputStream();
+	final List<String> hashes = new ArrayList<>();
+	final ArrayDeque<String> missing = new ArrayDeque<>();
+	final List<String> names = new ArrayList<>();
+
+	// Set once storing a file has failed.  The client has already sent
+	// the rest of the upload, so its files are discarded as they arrive,
+	// and this is the response to its evaluate command.
+	String error;
+    }
+
+    private final Bluetooth bluetooth;
+    private final Map<Integer, Budget> budgets = new HashMap<>();
+    private final String entryPrefix =
+	"session-" + serial.incrementAndGet() + "-";
+    private final Evaluator evaluator;
+    private final Map<Integer, Input> inputs = new HashMap<>();
+    private final Budget limit;
+    private final Map<Integer, EvaluationRequest> pendingRequests =
+	new HashMap<>();
+    private final Protocol protocol;
+    private final SendQueue sendQueue;
+    private final Transport.Connection connection;
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+
+    private volatile boolean closed;
+
+    // Serve the client at the other end of connection, which came from the
+    // transport named transportName.  Limit evaluations to limit, which the
+    // client may tighten but not loosen.
+    Session(Bluetooth bluetooth, ChibiScheme chibiScheme, String transportName,
+	    Transport.Connection connection, SendQueue.Policy outputPolicy,
+	    Budget limit) throws IOException {
+	this.address = connection.address();
+	this.bluetooth = bluetooth;
+	this.limit = limit;
+	this.protocol =
+	    new Protocol(connection.getInputStream(),
+			 connection.getOutputStream());
+	this.sendQueue = new SendQueue(protocol, address, outputPolicy,
+				       SendQueue.DEFAULT_CAPACITY);
+	this.connection = connection;
+	this.evaluator = new Evaluator(
+	    chibiScheme, transportName + ":" + address, null);
+	evaluator.setBudget(limit);
+    }
+
+    // Stop the evaluator, interrupting any evaluation in progress, and close
+    // the connection.
+    public void close() {
+	if (closed) {
+	    return;
+	}
+	closed = true;
+	evaluator.interrupt();
+	evaluator.stop(connection.reconnects());
+	sendQueue.close();
+	try {
+	    connection.close();
+	} catch (IOException e) {
+	    Log.w(LOG_TAG,
+		  "Error closing client connection: " + e.getMessage());
+	}
+	Log.i(LOG_TAG, "Session for " + address + " closed.");
+    }
+
+    // Serve the client until it disconnects.
+    public void run() throws IOException {
+	while (!closed) {
+	    Protocol.Message message = protocol.read();
+
+	    if (message == null) {
+		Log.i(LOG_TAG, "Client " + address + " disconnected normally.");
+		break;
+	    }
+
+	    switch (message.type) {
+	    case Protocol.FRAME_BUDGET:
+		handleBudgetCommand(message.id, message.payload);
+		break;
+	    case Protocol.FRAME_DATA:
+		handleDataBlock(message.id, message.payload);
+		break;
+	    case Protocol.FRAME_EVALUATE:
+		handleEvaluateCommand(message.id);
+		break;
+	    case Protocol.FRAME_INTERRUPT:
+		handleInterruptCommand(message.id);
+		break;
+	    case Protocol.FRAME_STATS:
+		sendQueue.sendResult(
+		    message.id, Protocol.CHANNEL_STATS,
+		    Stats.report().getBytes(StandardCharsets.UTF_8));
+		break;
+	    case Protocol.FRAME_STORE:
+		handleStoreCommand(message.id);
+		break;
+	    case Protocol.FRAME_UPLOAD:
+		handleUploadCommand(message.id, message.payload);
+		break;
+	    default:
+		Log.w(LOG_TAG,
+		      "Ignoring unknown frame type " + message.type + ".");
+	    }
+	}
+    }
+
+    // Tell a client that couldn't be given a session why, in the version of
+    // the protocol that it offers, if any, then disconnect it.  This waits for
+    // the client's handshake, so it shouldn't be called on a thread that
+    // accepts connections.
+    static void reject(Transport.Connection connection, String reason) {
+	try {
+	    Protocol protocol =
+		new Protocol(connection.getInputStream(),
+			     connection.getOutputStream());
+
+	    protocol.negotiate(REJECT_HANDSHAKE_MS);
+	    protocol.sendResult(
+		0, Protocol.CHANNEL_ERROR,
+		("Error: " + reason + "\n").getBytes(StandardCharsets.UTF_8));
+	} catch (IOException e) {
+	    Log.w(LOG_TAG, "Error rejecting client: " + e.getMessage());
+	}
+	try {
+	    connection.close();
+	} catch (IOException e) {
+	    Log.w(LOG_TAG,
+		  "Error closing client connection: " + e.getMessage());
+	}
+    }
+
+    // Evaluation errors come back as text, like any other result, so
+    // recognize them by the forms that ChibiScheme's errors take.
+    private static boolean isError(String result) {
+	return result.startsWith("Error: ") ||
+	    result.startsWith("Exception:") ||
+	    result.startsWith(Evaluator.BUDGET_EXCEEDED) ||
+	    result.equals(Evaluator.INTERRUPTED);
+    }
+
+    // Set the budget of request id, or, if id is 0, of every request that
+    // doesn't have one of its own.
+    private void handleBudgetCommand(int id, byte[] payload) {
+	if (payload.length < 8) {
+	    Log.w(LOG_TAG, "Ignoring malformed budget from " + address + ".");
+	    return;
+	}
+
+	Budget budget =
+	    new Budget(Protocol.readInt(payload, 0) & 0xffffffffL,
+		       Protocol.readInt(payload, 4) & 0xffffffffL)
+		.within(limit);
+
+	if (id == 0) {
+	    evaluator.setBudget(budget);
+	} else {
+	    budgets.put(id, budget);
+	}
+    }
+
+    private void handleDataBlock(int id, byte[] payload) {
+	if (payload.length == 0)
+	    return;
+
+	Upload upload = uploads.get(id);
+
+	if (upload != null) {
+	    if (upload.error == null) {
+		upload.content.write(payload, 0, payload.length);
+	    }
+	    return;
+	}
+
+	Input input = inputs.get(id);
+
+	if (input == null) {
+	    input = new Input();
+	    inputs.put(id, input);
+	}
+	input.buffer.write(payload, 0, payload.length);
+	input.scanner.feed(payload);
+	Log.d(LOG_TAG, "Received data block of " + payload.length + " bytes.");
+    }
+
+    private void handleEvaluateCommand(int id) {
+	if (uploads.containsKey(id)) {
+	    loadUpload(id);
+	    return;
+	}
+
+	Input input = inputs.get(id);
+
+	if (input == null || input.buffer.size() == 0) {
+	    return;
+	}
+
+	if (!input.scanner.isComplete()) {
+	    Log.i(LOG_TAG, "Expression incomplete.  Waiting for more input (" +
+			       input.buffer.size() + " bytes buffered).");
+	    return;
+	}
+
+	String expression =
+	    new String(input.buffer.toByteArray(), StandardCharsets.UTF_8);
+
+	inputs.remove(id);
+	submit(id, expression);
+    }
+
+    // Queue expression for evaluation as request id.
+    private void submit(int id, String expression) {
+	Log.i(LOG_TAG, "Executing expression from " + address + ": " +
+			   expression.replace("\n", "\\n"));
+	bluetooth.displayExpression(entry(id), expression);
+	bluetooth.updateConnectionStatus("evaluating",
+					 "Evaluating expression.");
+
+	EvaluationRequest request = new EvaluationRequest(
+	    EvaluationRequest.Kind.REPL, expression,
+	    (output, length) -> streamPartialOutput(id, output, length),
+	    budgets.remove(id),
+	    (r, result) -> handleEvaluationResult(id, r, result));
+
+	synchronized (pendingRequests) {
+	    pendingRequests.put(id, request);
+	}
+	try {
+	    evaluator.submit(request);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    Log.w(LOG_TAG, "Interrupted while queueing expression.");
+	}
+    }
+
+    private void handleEvaluationResult(int id, EvaluationRequest request,
+					String result) {
+	Log.i(LOG_TAG, "Evaluation result: " + result.replace("\n", "\\n"));
+	synchronized (pendingRequests) {
+	    pendingRequests.remove(id, request);
+	}
+	bluetooth.updateClientStatus();
+	streamToClient(id, isError(result) ? Protocol.CHANNEL_ERROR
+					   : Protocol.CHANNEL_RESULT,
+		       result);
+	bluetooth.displayResult(entry(id), request.expression, result);
+    }
+
+    // Name the transcript entry of request id.  See PatchQueue.
+    private String entry(int id) { return entryPrefix + id; }
+
+    // Discard the input for request id, and cancel it.  If it is still
+    // queued, its response is "Cancelled.", and if it is being evaluated, it
+    // is interrupted.  Id 0 interrupts whatever is being evaluated.
+    private void handleInterruptCommand(int id) {
+	Log.i(LOG_TAG, "Interrupt command for request " + id +
+			   " received from " + address + ".");
+	inputs.remove(id);
+	uploads.remove(id);
+	if (id == 0) {
+	    evaluator.interrupt();
+	    return;
+	}
+
+	EvaluationRequest request;
+
+	synchronized (pendingRequests) {
+	    request = pendingRequests.get(id);
+	}
+	if (request != null && evaluator.cancel(request)) {
+	    synchronized (pendingRequests) {
+		pendingRequests.remove(id, request);
+	    }
+	    streamToClient(id, Protocol.CHANNEL_ERROR, "Cancelled.");
+	}
+    }
+
+    // Start upload id from its manifest, and tell the client which files to
+    // send.
+    private void handleUploadCommand(int id, byte[] payload) {
+	UploadStore store = bluetooth.uploadStore();
+	Upload upload = new Upload();
+	Set<String> missing = new LinkedHashSet<>();
+
+	for (String line :
+	     new String(payload, StandardCharsets.UTF_8).split("\n")) {
+	    int space = line.indexOf("  ");
+
+	    if (line.isEmpty()) {
+		continue;
+	    }
+	    if (space < 0 || !UploadStore.isHash(line.substring(0, space))) {
+		streamToClient(id, Protocol.CHANNEL_ERROR,
+			       "Error: Malformed upload manifest.");
+		return;
+	    }
+
+	    String hash = line.substring(0, space);
+
+	    upload.hashes.add(hash);
+	    upload.names.add(line.substring(space + 2));
+	    if (!store.contains(hash)) {
+		missing.add(hash);
+	    }
+	}
+	upload.missing.addAll(missing);
+	uploads.put(id, upload);
+	Log.i(LOG_TAG, "Upload of " + upload.hashes.size() + " files from " +
+			   address + ", " + missing.size() + " missing.");
+
+	StringBuilder reply = new StringBuilder();
+
+	reply.append(missing.size()).append('\n');
+	for (String hash : missing) {
+	    reply.append(hash).append('\n');
+	}
+	sendQueue.sendData(id, Protocol.CHANNEL_MISSING,
+			   reply.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Store the file just received for upload id, the next one that was
+    // missing.  If that fails, remember the error until the client's evaluate
+    // command for id, which is already on its way.
+    private void handleStoreCommand(int id) {
+	Upload upload = uploads.get(id);
+
+	if (upload == null) {
+	    streamToClient(id, Protocol.CHANNEL_ERROR,
+			   "Error: No file was expected.");
+	    return;
+	}
+	if (upload.error != null) {
+	    return;
+	}
+
+	String hash = upload.missing.poll();
+
+	if (hash == null) {
+	    upload.error = "Error: No file was expected.";
+	    return;
+	}
+	try {
+	    bluetooth.uploadStore().store(hash, upload.content.toByteArray());
+	} catch (IOException e) {
+	    Log.e(LOG_TAG, "Error storing upload: " + e.getMessage());
+	    upload.error = "Error: " + e.getMessage();
+	}
+	upload.content.reset();
+    }
+
+    // Load every file of upload id, in order, from the store.
+    private void loadUpload(int id) {
+	Upload upload = uploads.remove(id);
+
+	if (upload.error != null) {
+	    streamToClient(id, Protocol.CHANNEL_ERROR, upload.error);
+	    return;
+	}
+	if (!upload.missing.isEmpty()) {
+	    streamToClient(id, Protocol.CHANNEL_ERROR,
+			   "Error: " + upload.missing.size() +
+			       " uploaded files were never sent.");
+	    return;
+	}
+
+	UploadStore store = bluetooth.uploadStore();
+	StringBuilder expression = new StringBuilder();
+
+	for (int i = 0; i < upload.hashes.size(); i++) {
+	    File file = store.file(upload.hashes.get(i));
+
+	    // The name is only a comment, so it mustn't end the line.
+	    expression.append("(load \"")
+		.append(Scheme.escape(file.getPath()))
+		.append("\")  ; ")
+		.append(upload.names.get(i).replaceAll("[\\r\\n]", " "))
+		.append('\n');
+	}
+	submit(id, expression.toString());
+    }
+
+    private void streamPartialOutput(int id, byte[] output, int length) {
+	if (!closed && length > 0) {
+	    sendQueue.sendOutput(id, output, length);
+	}
+    }
+
+    private void streamToClient(int id, int channel, String message) {
+	if (closed) {
+	    return;
+	}
+	sendQueue.sendResult(
+	    id, channel, (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
\ No newline at end of file
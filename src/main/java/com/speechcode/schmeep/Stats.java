@@ -0,0 +1,29 @@
+package com.speechcode.schmeep;
+
+// Counters and latency histograms kept by the native library, which Scheme
+// reads with (schmeep stats), the CLI with its ,stats command, and the status
+// bar with summary().  These numbers must match enum stat_id in main_jni.c.
+// Latencies are in microseconds.  Counters are recorded as increments.
+public class Stats {
+    static final int BYTES_IN = 6;
+    static final int BYTES_OUT = 7;
+    static final int COMPILE = 3;
+    static final int CONNECTIONS = 11;
+    static final int EVAL = 4;
+    static final int FLUSHES = 10;
+    static final int FRAMES_IN = 8;
+    static final int FRAMES_OUT = 9;
+    static final int LOCK_WAIT = 1;
+    static final int QUEUE_WAIT = 0;
+    static final int READ = 2;
+    static final int RECONNECTS = 12;
+    static final int SERIALIZE = 5;
+
+    public static native void record(int stat, long value);
+
+    // Return a line for each stat.
+    public static native String report();
+
+    // Return a summary short enough for the status bar.
+    public static native String summary();
+}
\ No newline at end of file
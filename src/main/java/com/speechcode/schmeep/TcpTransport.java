@@ -0,0 +1,81 @@
+package com.speechcode.schmeep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// TCP clients, e.g. "schmeep --tcp localhost:PORT" through "adb forward", or
+// a load test on the same network.  Since every client forwarded by adb comes
+// from the loopback address, a client is identified by its host and port, so
+// each connection gets a Scheme context of its own, which is destroyed when it
+// closes.
+//
+// Anyone who can connect can evaluate anything, so only the loopback
+// interface, which adb forwards to, is served unless the app was built to
+// accept clients from the network.
+public class TcpTransport implements Transport {
+    static final int BACKLOG = 50;
+
+    private static class TcpConnection implements Connection {
+	private final Socket socket;
+
+	TcpConnection(Socket socket) { this.socket = socket; }
+
+	@Override
+	public String address() {
+	    return socket.getInetAddress().getHostAddress() + ":" +
+		socket.getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+	    socket.close();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+	    return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+	    return socket.getOutputStream();
+	}
+
+	// A client reconnects from a new port.
+	@Override
+	public boolean reconnects() {
+	    return false;
+	}
+    }
+
+    private final ServerSocket serverSocket;
+
+    // Listen on port, on every interface if network is true, or else only on
+    // the loopback interface.
+    TcpTransport(int port, boolean network) throws IOException {
+	this.serverSocket = new ServerSocket(
+	    port, BACKLOG, network ? null : InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+	Socket socket = serverSocket.accept();
+
+	socket.setTcpNoDelay(true);
+	return new TcpConnection(socket);
+    }
+
+    @Override
+    public void close() throws IOException {
+	serverSocket.close();
+    }
+
+    @Override
+    public String name() {
+	return "tcp";
+    }
+}
\ No newline at end of file
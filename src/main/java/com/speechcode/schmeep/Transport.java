@@ -0,0 +1,36 @@
+package com.speechcode.schmeep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// A way for REPL clients to reach the app, e.g. Bluetooth RFCOMM or TCP.
+// Sessions speak Protocol over any Connection, so the protocol doesn't depend
+// on how the bytes travel.
+public interface Transport {
+    // One client's connection.
+    interface Connection {
+	// Identify the client, so that it gets back the same Scheme context
+	// when it reconnects.
+	String address();
+
+	void close() throws IOException;
+
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	// Return true if the client has the same address when it reconnects,
+	// so its Scheme context is worth keeping after it disconnects.
+	boolean reconnects();
+    }
+
+    // Wait for the next client.
+    Connection accept() throws IOException;
+
+    // Stop accepting clients.  A blocked accept() throws IOException.
+    void close() throws IOException;
+
+    // Return a short name, e.g. "bluetooth", which prefixes session names.
+    String name();
+}
\ No newline at end of file
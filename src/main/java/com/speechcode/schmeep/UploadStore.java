@@ -0,0 +1,84 @@
+package com.speechcode.schmeep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Files that clients have uploaded, each named by the SHA-256 hash of its
+// contents, in hex.  Since a file's name says what it contains, a client that
+// uploads a project again, even after reconnecting, only has to send the files
+// that changed.  Files are never removed, except by clearing the app's data.
+public class UploadStore {
+    static final int HASH_LENGTH = 64;
+
+    private final File directory;
+
+    UploadStore(File directory) { this.directory = directory; }
+
+    public boolean contains(String hash) { return file(hash).isFile(); }
+
+    public File file(String hash) { return new File(directory, hash); }
+
+    static boolean isHash(String text) {
+	if (text.length() != HASH_LENGTH) {
+	    return false;
+	}
+	for (int i = 0; i < HASH_LENGTH; i++) {
+	    if (Character.digit(text.charAt(i), 16) < 0 ||
+		Character.isUpperCase(text.charAt(i))) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Store data, which the client says has the given hash.  Write it to a
+    // temporary file of its own first, so that a file in the store is never
+    // seen partly written, even if several sessions upload it at once.
+    public void store(String hash, byte[] data) throws IOException {
+	if (!hash.equals(sha256(data))) {
+	    throw new IOException("Upload doesn't match its hash, " + hash +
+				  ".");
+	}
+	if (!directory.exists() && !directory.mkdirs() &&
+	    !directory.exists()) {
+	    throw new IOException("Failed to create upload directory: " +
+				  directory.getAbsolutePath());
+	}
+
+	File tempFile = File.createTempFile(hash, ".tmp", directory);
+
+	try (FileOutputStream output = new FileOutputStream(tempFile)) {
+	    output.write(data);
+	    output.getFD().sync();
+	} catch (IOException e) {
+	    tempFile.delete();
+	    throw e;
+	}
+	Files.move(tempFile.toPath(), file(hash).toPath(),
+		   StandardCopyOption.ATOMIC_MOVE,
+		   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String sha256(byte[] data) throws IOException {
+	MessageDigest digest;
+
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException(e);
+	}
+	digest.update(data);
+
+	StringBuilder hex = new StringBuilder();
+
+	for (byte b : digest.digest()) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.toString();
+    }
+}
\ No newline at end of file